@@ -0,0 +1,231 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import lombok.RequiredArgsConstructor;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.rest.BalanceShardsRequest;
+import xyz.yawek.banking.model.rest.CacheStats;
+import xyz.yawek.banking.model.rest.FxRates;
+import xyz.yawek.banking.model.rest.LoanPortfolioReport;
+import xyz.yawek.banking.model.rest.LoanTermsRequest;
+import xyz.yawek.banking.model.rest.OutboxStats;
+import xyz.yawek.banking.model.rest.RepaymentReport;
+import xyz.yawek.banking.service.UserService;
+import xyz.yawek.banking.service.cache.RecentPaymentsCache;
+import xyz.yawek.banking.service.fx.FxRateService;
+import xyz.yawek.banking.service.fx.FxRateTable;
+import xyz.yawek.banking.service.outbox.OutboxRelay;
+import xyz.yawek.banking.service.quote.LoanOfferTable;
+import xyz.yawek.banking.service.repayment.RepaymentBatch;
+import xyz.yawek.banking.service.report.LoanReportService;
+import xyz.yawek.banking.service.rollup.PaymentRollupService;
+import xyz.yawek.banking.service.velocity.VelocityRule;
+import xyz.yawek.banking.service.velocity.VelocityService;
+
+import javax.validation.Valid;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.TreeMap;
+
+@RestController
+@RequestMapping(value = "/admin", produces = {"application/json"})
+@SecurityRequirement(name = "Bearer Authentication")
+@RequiredArgsConstructor
+public class AdminController {
+
+    private final UserService userService;
+    private final RecentPaymentsCache recentPaymentsCache;
+    private final PaymentRollupService paymentRollupService;
+    private final OutboxRelay outboxRelay;
+    private final FxRateService fxRateService;
+    private final VelocityService velocityService;
+    private final RepaymentBatch repaymentBatch;
+    private final LoanReportService loanReportService;
+    private final LoanOfferTable loanOfferTable;
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Set number of user's balance shards")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Shards set", content = @Content),
+            @ApiResponse(responseCode = "400", description = "Wrong number of shards", content = @Content),
+            @ApiResponse(responseCode = "404", description = "User not found", content = @Content),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @PutMapping("/users/{email}/balance-shards")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public ResponseEntity<?> balanceShards(
+            @PathVariable String email,
+            @RequestBody @Valid BalanceShardsRequest shardsRequest) {
+        User user = userService.loadByEmail(email);
+        userService.setBalanceShards(user, shardsRequest.getShards());
+        return ResponseEntity.ok().build();
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get statistics of the recent payments cache")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Cache statistics", useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @GetMapping("/caches/recent-payments")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public CacheStats recentPaymentsCache() {
+        return recentPaymentsCache.getStats();
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Recompute payment rollups from all payments")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Rollups rebuilt", content = @Content),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @PostMapping("/rollups/rebuild")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public ResponseEntity<?> rebuildRollups() {
+        paymentRollupService.rebuild();
+        return ResponseEntity.ok().build();
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get delivery lag and batch size of the outbox relay")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Outbox statistics", useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @GetMapping("/outbox")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public OutboxStats outbox() {
+        return outboxRelay.getStats();
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Reload exchange rates from their source")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Rates in use, previous ones if they could not be reloaded",
+                    useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @PostMapping("/fx/refresh")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public FxRates refreshFxRates() {
+        FxRateTable table = fxRateService.refresh();
+        return new FxRates(table.getBaseCurrency(), new TreeMap<>(table.getRates()), table.getLoadedAt());
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Reload payment velocity rules from their file")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Rules in use", useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @PostMapping("/velocity/reload")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public List<VelocityRule> reloadVelocityRules() throws IOException {
+        return velocityService.reload();
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Collect loan installments due up to a day, continuing its run if it was started")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Repayment run finished", useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @PostMapping("/loans/repayments")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public RepaymentReport collectRepayments(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate date) {
+        return repaymentBatch.collect(date == null ? LocalDate.now() : date);
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get exposure of outstanding loans by maturity, size and customer")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Portfolio report", useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @GetMapping("/loans/report")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public LoanPortfolioReport loanReport() {
+        return loanReportService.getReport();
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Change repayment multiplier and limit of new loans")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Terms changed", content = @Content),
+            @ApiResponse(responseCode = "400", description = "Wrong multiplier or limit", content = @Content),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @PutMapping("/loans/terms")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public ResponseEntity<?> loanTerms(@RequestBody @Valid LoanTermsRequest termsRequest) {
+        loanOfferTable.reload(termsRequest.getRepaymentAmountMultiplier(),
+                Money.valueOf(termsRequest.getRepaymentAmountLimit()));
+        return ResponseEntity.ok().build();
+    }
+
+}
@@ -26,6 +26,7 @@ import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
@@ -33,15 +34,21 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import xyz.yawek.banking.model.Loan;
 import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.LoanView;
+import xyz.yawek.banking.model.rest.CursorPage;
+import xyz.yawek.banking.model.rest.LoanQuotes;
 import xyz.yawek.banking.model.rest.LoanRequest;
+import xyz.yawek.banking.service.IdempotencyService;
 import xyz.yawek.banking.service.LoanService;
 import xyz.yawek.banking.service.UserService;
 
 import javax.validation.Valid;
+import java.time.LocalDate;
 
 @RestController
 @RequestMapping(value = "/loan", produces = {"application/json"})
@@ -51,12 +58,17 @@ public class LoanController {
 
     private final UserService userService;
     private final LoanService loanService;
+    private final IdempotencyService idempotencyService;
 
     @SuppressWarnings("unused")
     @Operation(summary = "Take a loan")
     @ApiResponses({
             @ApiResponse(responseCode = "200", description = "Loan taken", content = @Content),
             @ApiResponse(responseCode = "423", description = "Loan limit exceeded", content = @Content),
+            @ApiResponse(
+                    responseCode = "422",
+                    description = "Idempotency key was already used for a different loan",
+                    content = @Content),
             @ApiResponse(
                     responseCode = "401",
                     description = "User did not send token or sent token is expired",
@@ -64,13 +76,16 @@ public class LoanController {
     })
     @PostMapping("/take")
     @PreAuthorize("hasAuthority('USER')")
-    public ResponseEntity<?> takeLoan(@RequestBody @Valid LoanRequest loanRequest) {
+    public ResponseEntity<?> takeLoan(
+            @RequestBody @Valid LoanRequest loanRequest,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
 
         User user = userService.loadByEmail(authentication.getName());
-        loanService.createLoan(loanService.buildFromUserRequest(user, loanRequest));
-
-        return ResponseEntity.ok().build();
+        return idempotencyService.execute(user, "loan", idempotencyKey, loanRequest, () -> {
+            loanService.createLoan(loanService.buildFromUserRequest(user, loanRequest));
+            return ResponseEntity.ok().build();
+        });
     }
 
     @SuppressWarnings("unused")
@@ -87,11 +102,63 @@ public class LoanController {
     })
     @GetMapping("/loans")
     @PreAuthorize("hasAuthority('USER')")
-    public Page<Loan> loans(Pageable pageable) {
+    public Page<LoanView> loans(Pageable pageable) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
 
         User user = userService.loadByEmail(authentication.getName());
         return loanService.getLoansByUser(user, pageable);
     }
 
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get user's loans using a cursor, latest repayment date first,"
+            + " optionally only repaid or outstanding ones due in a range of days")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Loans data and cursor of the next page",
+                    useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "400",
+                    description = "Cursor is invalid",
+                    content = @Content),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @GetMapping(value = "/loans", params = "cursor")
+    @PreAuthorize("hasAuthority('USER')")
+    public CursorPage<LoanView> loansAfter(
+            @RequestParam String cursor,
+            @RequestParam(required = false) Boolean repaid,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(defaultValue = "${spring.data.web.pageable.default-page-size}") int size) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(authentication.getName());
+        return loanService.getPageByUser(user, repaid, from, to, cursor, size);
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get loans offered to the user")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Offers and user's headroom against the loan limit",
+                    useReturnTypeSchema = true),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content)
+    })
+    @GetMapping("/quotes")
+    @PreAuthorize("hasAuthority('USER')")
+    public LoanQuotes quotes() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(authentication.getName());
+        return loanService.getQuotes(user);
+    }
+
 }
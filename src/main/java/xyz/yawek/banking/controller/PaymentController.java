@@ -24,24 +24,55 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import xyz.yawek.banking.model.Payment;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.PaymentRollup;
+import xyz.yawek.banking.model.ScheduledPayment;
 import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.PaymentView;
+import xyz.yawek.banking.model.projection.ScheduledPaymentView;
+import xyz.yawek.banking.model.rest.BatchPaymentRequest;
+import xyz.yawek.banking.model.rest.CursorPage;
+import xyz.yawek.banking.model.rest.FileFormat;
+import xyz.yawek.banking.model.rest.PaymentLegResult;
 import xyz.yawek.banking.model.rest.PaymentRequest;
+import xyz.yawek.banking.model.rest.PaymentSummary;
+import xyz.yawek.banking.model.rest.PayrollReport;
+import xyz.yawek.banking.model.rest.ScheduledPaymentRequest;
+import xyz.yawek.banking.service.BatchPaymentService;
+import xyz.yawek.banking.service.IdempotencyService;
+import xyz.yawek.banking.service.PaymentExportService;
 import xyz.yawek.banking.service.PaymentService;
+import xyz.yawek.banking.service.PayrollService;
 import xyz.yawek.banking.service.UserService;
+import xyz.yawek.banking.service.pipeline.PaymentPipeline;
+import xyz.yawek.banking.service.rollup.PaymentRollupService;
+import xyz.yawek.banking.service.scheduled.ScheduledPaymentService;
+import xyz.yawek.banking.service.velocity.VelocityRecord;
+import xyz.yawek.banking.service.velocity.VelocityService;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
+import java.time.YearMonth;
+import java.util.List;
 
 @RestController
 @RequestMapping(value = "/payment", produces = {"application/json"})
@@ -51,6 +82,14 @@ public class PaymentController {
 
     private final UserService userService;
     private final PaymentService paymentService;
+    private final BatchPaymentService batchPaymentService;
+    private final PayrollService payrollService;
+    private final IdempotencyService idempotencyService;
+    private final PaymentExportService paymentExportService;
+    private final ScheduledPaymentService scheduledPaymentService;
+    private final PaymentRollupService paymentRollupService;
+    private final ObjectProvider<PaymentPipeline> paymentPipeline;
+    private final VelocityService velocityService;
 
     @SuppressWarnings("unused")
     @Operation(summary = "Send payment")
@@ -62,25 +101,167 @@ public class PaymentController {
             ),
             @ApiResponse(
                     responseCode = "400",
-                    description = "Not enough balance",
+                    description = "Not enough balance or unsupported currency",
                     content = @Content
             ),
             @ApiResponse(
                     responseCode = "401",
                     description = "User did not send token or sent token is expired",
                     content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Payment blocked by a velocity rule",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "409",
+                    description = "Balance was modified concurrently",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "422",
+                    description = "Idempotency key was already used for a different payment",
+                    content = @Content
             )
     })
     @PostMapping("/pay")
     @PreAuthorize("hasAuthority('USER')")
-    public ResponseEntity<?> pay(@RequestBody @Valid PaymentRequest payment) {
+    public ResponseEntity<?> pay(
+            @RequestBody @Valid PaymentRequest payment,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
         Authentication auth =
                 SecurityContextHolder.getContext().getAuthentication();
 
         User sender = userService.loadByEmail(auth.getName());
-        User receiver = userService.loadByEmail(payment.getReceiverEmail());
-        paymentService.makePayment(sender, receiver, payment.getAmount());
-        return ResponseEntity.ok().build();
+        return idempotencyService.execute(sender, "payment", idempotencyKey, payment, () -> {
+            User receiver = userService.loadByEmail(payment.getReceiverEmail());
+            Money amount = Money.valueOf(payment.getAmount());
+            VelocityRecord recorded = velocityService.check(sender, amount, payment.getCurrency());
+            PaymentPipeline pipeline = paymentPipeline.getIfAvailable();
+            try {
+                if (payment.getCurrency() != null || payment.getTargetCurrency() != null) {
+                    paymentService.makePayment(sender, receiver, amount,
+                            payment.getCurrency(), payment.getTargetCurrency());
+                } else if (pipeline != null) {
+                    pipeline.transfer(sender, receiver, amount);
+                } else {
+                    paymentService.makePayment(sender, receiver, amount);
+                }
+            } catch (RuntimeException e) {
+                // Failed payment does not count towards the limits
+                recorded.cancel();
+                throw e;
+            }
+            return ResponseEntity.ok().build();
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Send many payments at once")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payments sent, outcome of every payment",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "400",
+                    description = "Not enough balance for all payments or currency other than the base one",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @PostMapping("/batch")
+    @PreAuthorize("hasAuthority('USER')")
+    public List<PaymentLegResult> batch(@RequestBody @Valid BatchPaymentRequest batchRequest) {
+        Authentication auth =
+                SecurityContextHolder.getContext().getAuthentication();
+
+        User sender = userService.loadByEmail(auth.getName());
+        return batchPaymentService.makePayments(sender, batchRequest.getPayments());
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Send payments from a CSV (receiver,amount) or NDJSON payroll file")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payroll processed, report of sent and rejected payments",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @PostMapping(value = "/payroll", consumes = {"text/csv", "application/x-ndjson"})
+    @PreAuthorize("hasAuthority('USER')")
+    public PayrollReport payroll(HttpServletRequest request) throws IOException {
+        Authentication auth =
+                SecurityContextHolder.getContext().getAuthentication();
+
+        User sender = userService.loadByEmail(auth.getName());
+        return payrollService.process(sender, request.getInputStream(),
+                FileFormat.fromContentType(request.getContentType()));
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get user's recent payrolls, including running ones")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payroll reports",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @GetMapping("/payroll")
+    @PreAuthorize("hasAuthority('USER')")
+    public List<PayrollReport> payrollReports() {
+        Authentication auth =
+                SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(auth.getName());
+        return payrollService.getReports(user);
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get progress of a payroll")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payroll report",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "Payroll not found",
+                    content = @Content
+            )
+    })
+    @GetMapping("/payroll/{id}")
+    @PreAuthorize("hasAuthority('USER')")
+    public ResponseEntity<PayrollReport> payrollReport(@PathVariable String id) {
+        Authentication auth =
+                SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(auth.getName());
+        return ResponseEntity.of(payrollService.getReport(user, id));
     }
 
     @SuppressWarnings("unused")
@@ -99,11 +280,178 @@ public class PaymentController {
     })
     @GetMapping("/payments")
     @PreAuthorize("hasAuthority('USER')")
-    public Page<Payment> payments(Pageable pageable) {
+    public Page<PaymentView> payments(Pageable pageable) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
 
         User user = userService.loadByEmail(authentication.getName());
         return paymentService.getPageableByUser(pageable, user);
     }
 
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get user's received and sent payments using a cursor, newest first")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payments data and cursor of the next page",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "400",
+                    description = "Cursor is invalid",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @GetMapping(value = "/payments", params = "cursor")
+    @PreAuthorize("hasAuthority('USER')")
+    public CursorPage<PaymentView> paymentsAfter(
+            @RequestParam String cursor,
+            @RequestParam(defaultValue = "${spring.data.web.pageable.default-page-size}") int size) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(authentication.getName());
+        return paymentService.getPageByUser(user, cursor, size);
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get user's inflow and outflow per day or month and top counterparties,"
+            + " by default for the last 12 months")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payments summary",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @GetMapping("/summary")
+    @PreAuthorize("hasAuthority('USER')")
+    public PaymentSummary summary(
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM") YearMonth from,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM") YearMonth to,
+            @RequestParam(defaultValue = "MONTH") PaymentRollup.Period period) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(authentication.getName());
+        YearMonth end = to == null ? YearMonth.now() : to;
+        YearMonth start = from == null ? end.minusMonths(11) : from;
+        return paymentRollupService.getSummary(user, start, end, period);
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Export user's whole payment history as NDJSON or CSV")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payments, one per line",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @GetMapping(value = "/export", produces = {"application/x-ndjson", "text/csv"})
+    @PreAuthorize("hasAuthority('USER')")
+    public void export(@RequestParam(defaultValue = "NDJSON") FileFormat format,
+                       HttpServletResponse response) throws IOException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(authentication.getName());
+        response.setContentType(format.getMediaType().toString());
+        response.setCharacterEncoding("UTF-8");
+        paymentExportService.export(user, format, response.getOutputStream());
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Schedule a payment repeated every day, week or month")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Payment scheduled",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "Receiver not found",
+                    content = @Content
+            )
+    })
+    @PostMapping("/scheduled")
+    @PreAuthorize("hasAuthority('USER')")
+    public ScheduledPayment schedule(@RequestBody @Valid ScheduledPaymentRequest scheduledRequest) {
+        Authentication auth =
+                SecurityContextHolder.getContext().getAuthentication();
+
+        User sender = userService.loadByEmail(auth.getName());
+        User receiver = userService.loadByEmail(scheduledRequest.getReceiverEmail());
+        return scheduledPaymentService.schedule(sender, receiver, scheduledRequest);
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get user's scheduled payments")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Scheduled payments data",
+                    useReturnTypeSchema = true
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @GetMapping("/scheduled")
+    @PreAuthorize("hasAuthority('USER')")
+    public Page<ScheduledPaymentView> scheduledPayments(Pageable pageable) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(authentication.getName());
+        return scheduledPaymentService.getBySender(user, pageable);
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Cancel a scheduled payment")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Scheduled payment cancelled",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "Scheduled payment not found",
+                    content = @Content
+            )
+    })
+    @DeleteMapping("/scheduled/{id}")
+    @PreAuthorize("hasAuthority('USER')")
+    public ResponseEntity<?> cancelScheduledPayment(@PathVariable long id) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        User user = userService.loadByEmail(authentication.getName());
+        scheduledPaymentService.cancel(user, id);
+        return ResponseEntity.ok().build();
+    }
+
 }
@@ -25,17 +25,21 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import lombok.RequiredArgsConstructor;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import xyz.yawek.banking.model.User;
 import xyz.yawek.banking.service.UserService;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Map;
 
 @RestController
 @RequestMapping(value = "/user", produces = {"application/json"})
@@ -50,7 +54,7 @@ public class UserController {
     @ApiResponses({
             @ApiResponse(
                     responseCode = "200",
-                    description = "Account balance",
+                    description = "Account balance in the base currency",
                     content = @Content(schema = @Schema(implementation = BigDecimal.class))
             ),
             @ApiResponse(
@@ -64,7 +68,52 @@ public class UserController {
     public ResponseEntity<?> balance() {
         Authentication auth = SecurityContextHolder.getContext().getAuthentication();
         User user = userService.loadByEmail(auth.getName());
-        return ResponseEntity.ok(user.getBalance());
+        return ResponseEntity.ok(userService.getBalance(user));
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get user's balances in all currencies")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Balances by currency code, the base currency first",
+                    content = @Content(schema = @Schema(implementation = Map.class))
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @GetMapping("/balances")
+    @PreAuthorize("hasAuthority('USER')")
+    public ResponseEntity<?> balances() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        User user = userService.loadByEmail(auth.getName());
+        return ResponseEntity.ok(userService.getBalances(user));
+    }
+
+    @SuppressWarnings("unused")
+    @Operation(summary = "Get user's balance at the given time")
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Account balance at the given time",
+                    content = @Content(schema = @Schema(implementation = BigDecimal.class))
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "User did not send token or sent token is expired",
+                    content = @Content
+            )
+    })
+    @GetMapping(value = "/balance", params = "at")
+    @PreAuthorize("hasAuthority('USER')")
+    public ResponseEntity<?> balanceAt(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime at) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        User user = userService.loadByEmail(auth.getName());
+        return ResponseEntity.ok(userService.getBalanceAsOf(user, at));
     }
 
 }
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.NOT_FOUND, reason = "Scheduled payment not found.")
+public class ScheduledPaymentNotFoundException extends RuntimeException {
+
+    public ScheduledPaymentNotFoundException() {
+        super();
+    }
+
+    public ScheduledPaymentNotFoundException(String message) {
+        super(message);
+    }
+
+    public ScheduledPaymentNotFoundException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ScheduledPaymentNotFoundException(Throwable cause) {
+        super(cause);
+    }
+
+}
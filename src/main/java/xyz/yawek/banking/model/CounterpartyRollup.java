@@ -0,0 +1,65 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Totals of payments between a user and one counterparty in a month.
+ */
+@Entity(name = "counterparty_rollups")
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"user_id", "month", "counterparty_id"}))
+@Data
+@NoArgsConstructor
+public class CounterpartyRollup {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(name = "user_id", nullable = false)
+    private long userId;
+
+    @Column(nullable = false)
+    private LocalDate month;
+
+    @Column(name = "counterparty_id", nullable = false)
+    private long counterpartyId;
+
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private BigDecimal inflow;
+
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private BigDecimal outflow;
+
+    @Column(nullable = false)
+    private long payments;
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.time.Instant;
+
+/**
+ * Outcome of a request sent with an idempotency key,
+ * returned again when the request is retried with the same key.
+ */
+@Entity(name = "idempotency_keys")
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"user_id", "scope", "idempotency_key"}),
+        indexes = @Index(name = "idx_idempotency_keys_created_at", columnList = "created_at"))
+@Data
+@NoArgsConstructor
+public class IdempotencyRecord {
+
+    /**
+     * Status of a claim stored before the request executes.
+     */
+    public static final int IN_PROGRESS = 0;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(name = "user_id", nullable = false)
+    private long userId;
+
+    @Column(nullable = false, length = 16)
+    private String scope;
+
+    @Column(name = "idempotency_key", nullable = false, length = 64)
+    private String key;
+
+    /**
+     * SHA-256 of the request's canonical JSON, in hex.
+     */
+    @Column(nullable = false, length = 64)
+    private String requestHash;
+
+    @Column(nullable = false)
+    private int status;
+
+    private String reason;
+
+    @Column(nullable = false)
+    private Instant createdAt;
+
+    public IdempotencyRecord(long userId, String scope, String key,
+                             String requestHash, int status, String reason) {
+        this.userId = userId;
+        this.scope = scope;
+        this.key = key;
+        this.requestHash = requestHash;
+        this.status = status;
+        this.reason = reason;
+        this.createdAt = Instant.now();
+    }
+
+    public boolean isInProgress() {
+        return status == IN_PROGRESS;
+    }
+
+}
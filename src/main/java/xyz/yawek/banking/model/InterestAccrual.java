@@ -0,0 +1,66 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.time.LocalDate;
+
+/**
+ * Interest accrued on a loan's outstanding principal over the days after
+ * {@code fromDate} up to and including {@code toDate}. Days missed by earlier
+ * runs are accrued by a single entry.
+ */
+@Entity(name = "interest_accruals")
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"loan_id", "to_date"}))
+@Data
+@NoArgsConstructor
+public class InterestAccrual {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(name = "loan_id", nullable = false)
+    private long loanId;
+
+    @Column(name = "from_date", nullable = false)
+    private LocalDate fromDate;
+
+    @Column(name = "to_date", nullable = false)
+    private LocalDate toDate;
+
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private Money principal;
+
+    /**
+     * Interest in the loan's currency.
+     */
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private Money interest;
+
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Change of an account's balance. Entries are only appended, every transfer
+ * is recorded as a debit and a credit entry of the same amount.
+ * Table has no foreign keys and its ids grow over time, so it can be range partitioned by id.
+ */
+@Entity(name = "ledger_entries")
+@Table(indexes = @Index(name = "idx_ledger_entries_account", columnList = "account_id, id"))
+@Data
+@NoArgsConstructor
+public class LedgerEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    /**
+     * Id of the user, or {@code 0} for the bank's own account.
+     */
+    @Column(name = "account_id", nullable = false)
+    private long accountId;
+
+    /**
+     * Negative for debits, positive for credits.
+     */
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private BigDecimal amount;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Kind kind;
+
+    /**
+     * Id of the payment or loan, if known.
+     */
+    private Long referenceId;
+
+    @Column(nullable = false, columnDefinition = "datetime(6)")
+    private LocalDateTime createdAt;
+
+    public enum Kind {
+        OPENING,
+        PAYMENT,
+        LOAN,
+        REPAYMENT
+    }
+
+}
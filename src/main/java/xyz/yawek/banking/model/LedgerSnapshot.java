@@ -0,0 +1,62 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Balance of an account after all its ledger entries up to {@code lastEntryId}.
+ */
+@Entity(name = "ledger_snapshots")
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"account_id", "last_entry_id"}))
+@Data
+@NoArgsConstructor
+public class LedgerSnapshot {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(name = "account_id", nullable = false)
+    private long accountId;
+
+    @Column(name = "last_entry_id", nullable = false)
+    private long lastEntryId;
+
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private BigDecimal balance;
+
+    /**
+     * Time of the newest entry included in the snapshot.
+     */
+    @Column(nullable = false, columnDefinition = "datetime(6)")
+    private LocalDateTime coveredUntil;
+
+}
@@ -23,16 +23,20 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
-import java.math.BigDecimal;
+import javax.persistence.Table;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 
 @Entity(name = "loans")
+@Table(indexes = @Index(name = "idx_loans_user_repaid_date", columnList = "user_id, repaid, repayment_date, id"))
 @Data
 @NoArgsConstructor
 public class Loan {
@@ -42,15 +46,42 @@ public class Loan {
     @JsonIgnore
     private long id;
 
-    private BigDecimal amount;
+    private Money amount;
 
-    private BigDecimal repaymentAmount;
+    private Money repaymentAmount;
+
+    /**
+     * Currency of the amounts, {@code null} for the base currency.
+     */
+    @Column(length = 3)
+    private String currency;
+
+    /**
+     * Repayment amount in the base currency when the loan was taken,
+     * counted towards the user's outstanding loans until it is repaid.
+     */
+    @JsonIgnore
+    private Money limitAmount;
 
     @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
     private LocalDateTime repaymentDate;
 
     private boolean repaid = false;
 
+    /**
+     * Interest accrued daily on the outstanding principal, in the loan's currency.
+     * Only changed by {@link xyz.yawek.banking.service.interest.InterestAccrualService}.
+     */
+    @Column(nullable = false, updatable = false, columnDefinition = "decimal(22,2) default '0.00'")
+    private Money accruedInterest = Money.ZERO;
+
+    /**
+     * Last day included in the accrued interest.
+     */
+    @Column(name = "accrued_through", updatable = false)
+    @JsonIgnore
+    private LocalDate accruedThrough;
+
     @ManyToOne
     @JoinColumn(name = "user_id")
     @JsonIgnore
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.time.LocalDate;
+
+/**
+ * Part of a loan's repayment due on a day. Rows are kept small and without foreign keys,
+ * since every loan has an installment per month until its repayment date.
+ */
+@Entity(name = "loan_installments")
+@Table(indexes = @Index(name = "idx_loan_installments_due", columnList = "paid, due_date, user_id"),
+        uniqueConstraints = @UniqueConstraint(columnNames = {"loan_id", "number"}))
+@Data
+@NoArgsConstructor
+public class LoanInstallment {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(name = "loan_id", nullable = false)
+    private long loanId;
+
+    @Column(name = "user_id", nullable = false)
+    private long userId;
+
+    /**
+     * Position of the installment in the schedule, starting from 1.
+     */
+    @Column(nullable = false, columnDefinition = "smallint")
+    private int number;
+
+    @Column(name = "due_date", nullable = false)
+    private LocalDate dueDate;
+
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private Money amount;
+
+    /**
+     * Currency of the amount, {@code null} for the base currency.
+     */
+    @Column(length = 3)
+    private String currency;
+
+    @Column(nullable = false)
+    private boolean paid;
+
+    public LoanInstallment(long loanId, long userId, int number, LocalDate dueDate, Money amount, String currency) {
+        this.loanId = loanId;
+        this.userId = userId;
+        this.number = number;
+        this.dueDate = dueDate;
+        this.amount = amount;
+        this.currency = currency;
+    }
+
+}
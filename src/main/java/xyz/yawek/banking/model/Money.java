@@ -0,0 +1,163 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amount of money as a number of hundredths, so arithmetic on balances
+ * allocates nothing and is exact. Operations throw {@link ArithmeticException}
+ * instead of overflowing or silently dropping digits.
+ */
+public final class Money implements Comparable<Money>, Serializable {
+
+    public static final int SCALE = 2;
+    public static final Money ZERO = new Money(0);
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L,
+            1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L,
+            10_000_000_000_000L, 100_000_000_000_000L, 1_000_000_000_000_000L,
+            10_000_000_000_000_000L, 100_000_000_000_000_000L, 1_000_000_000_000_000_000L
+    };
+
+    private final long minorUnits;
+
+    private Money(long minorUnits) {
+        this.minorUnits = minorUnits;
+    }
+
+    public static Money ofMinorUnits(long minorUnits) {
+        return minorUnits == 0 ? ZERO : new Money(minorUnits);
+    }
+
+    public static Money ofMajorUnits(long majorUnits) {
+        return ofMinorUnits(Math.multiplyExact(majorUnits, POWERS_OF_TEN[SCALE]));
+    }
+
+    /**
+     * @throws ArithmeticException if the amount has more than two decimal places or does not fit
+     */
+    @JsonCreator
+    public static Money valueOf(BigDecimal amount) {
+        return ofMinorUnits(amount.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact());
+    }
+
+    public static Money valueOf(String amount) {
+        return valueOf(new BigDecimal(amount));
+    }
+
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+
+    public Money add(Money other) {
+        if (other.minorUnits == 0) return this;
+        return ofMinorUnits(Math.addExact(minorUnits, other.minorUnits));
+    }
+
+    public Money subtract(Money other) {
+        if (other.minorUnits == 0) return this;
+        return ofMinorUnits(Math.subtractExact(minorUnits, other.minorUnits));
+    }
+
+    public Money negate() {
+        return ofMinorUnits(Math.negateExact(minorUnits));
+    }
+
+    /**
+     * Multiplies the amount, rounding the result to hundredths with the given mode.
+     */
+    public Money multiply(BigDecimal factor, RoundingMode rounding) {
+        int scale = factor.scale();
+        if (scale >= 0 && scale < POWERS_OF_TEN.length && factor.precision() < 19) {
+            long unscaled = factor.unscaledValue().longValue();
+            long high = Math.multiplyHigh(minorUnits, unscaled);
+            long product = minorUnits * unscaled;
+            if ((high == 0 && product >= 0) || (high == -1 && product < 0))
+                return ofMinorUnits(divide(product, POWERS_OF_TEN[scale], rounding));
+        }
+        return valueOf(toBigDecimal().multiply(factor).setScale(SCALE, rounding));
+    }
+
+    /**
+     * @return number of whole times the divisor fits in the amount
+     */
+    public long divideToIntegral(Money divisor) {
+        return minorUnits / divisor.minorUnits;
+    }
+
+    public int signum() {
+        return Long.signum(minorUnits);
+    }
+
+    public boolean isNegative() {
+        return minorUnits < 0;
+    }
+
+    @JsonValue
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(minorUnits, other.minorUnits);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Money money && money.minorUnits == minorUnits;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(minorUnits);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+
+    private static long divide(long dividend, long divisor, RoundingMode rounding) {
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (remainder == 0) return quotient;
+        int sign = Long.signum(dividend);
+        long doubled = Math.abs(remainder) * 2;
+        boolean up = switch (rounding) {
+            case UP -> true;
+            case DOWN -> false;
+            case CEILING -> sign > 0;
+            case FLOOR -> sign < 0;
+            case HALF_UP -> doubled >= divisor;
+            case HALF_DOWN -> doubled > divisor;
+            case HALF_EVEN -> doubled > divisor || doubled == divisor && (quotient & 1) != 0;
+            case UNNECESSARY -> throw new ArithmeticException("Rounding necessary");
+        };
+        return up ? quotient + sign : quotient;
+    }
+
+}
@@ -22,20 +22,27 @@ import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.NoArgsConstructor;
-import org.hibernate.annotations.CreationTimestamp;
 
 import javax.persistence.CascadeType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.OneToOne;
-import javax.validation.constraints.Digits;
-import java.math.BigDecimal;
+import javax.persistence.PrePersist;
+import javax.persistence.Table;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 
 @Entity(name = "payments")
+@Table(indexes = {
+        @Index(name = "idx_payments_sender_timestamp", columnList = "sender_id, timestamp, id"),
+        @Index(name = "idx_payments_receiver_timestamp", columnList = "receiver_id, timestamp, id"),
+        @Index(name = "idx_payments_timestamp", columnList = "timestamp, id")
+})
 @Data
 @NoArgsConstructor
 public class Payment {
@@ -53,17 +60,44 @@ public class Payment {
     @JoinColumn(name = "receiver_id")
     private User receiver;
 
-    @Digits(integer = 20, fraction = 2)
-    private BigDecimal amount;
+    @Column(precision = 22, scale = 2)
+    private Money amount;
+
+    /**
+     * Currency of the amount, {@code null} for the base currency.
+     */
+    @Column(length = 3)
+    private String currency;
+
+    /**
+     * Amount added to the receiver, if it was converted to another currency.
+     */
+    @Column(precision = 22, scale = 2)
+    private Money receivedAmount;
+
+    @Column(length = 3)
+    private String receivedCurrency;
 
-    @CreationTimestamp
     @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
     private LocalDateTime timestamp;
 
-    public Payment(User sender, User receiver, BigDecimal amount) {
+    @Column(unique = true)
+    @JsonIgnore
+    private Long journalSeq;
+
+    public Payment(User sender, User receiver, Money amount) {
         this.sender = sender;
         this.receiver = receiver;
         this.amount = amount;
     }
 
+    /**
+     * Sets the timestamp at the precision of its {@code datetime} column, so the value
+     * kept after saving, like the cached one, equals the one read from the database.
+     */
+    @PrePersist
+    private void onCreate() {
+        if (timestamp == null) timestamp = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+    }
+
 }
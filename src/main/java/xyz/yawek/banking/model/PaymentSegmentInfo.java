@@ -0,0 +1,61 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import java.time.LocalDateTime;
+
+/**
+ * Immutable file of archived payments, ordered by timestamp.
+ */
+@Entity(name = "payment_segments")
+@Data
+@NoArgsConstructor
+public class PaymentSegmentInfo {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(name = "file_name", nullable = false, unique = true)
+    private String fileName;
+
+    @Column(nullable = false)
+    private int payments;
+
+    @Column(name = "min_timestamp", nullable = false, columnDefinition = "datetime(6)")
+    private LocalDateTime minTimestamp;
+
+    @Column(name = "max_timestamp", nullable = false, columnDefinition = "datetime(6)")
+    private LocalDateTime maxTimestamp;
+
+    /**
+     * Payments before this time were being archived when the segment was written.
+     */
+    @Column(name = "archived_before", nullable = false)
+    private LocalDateTime archivedBefore;
+
+}
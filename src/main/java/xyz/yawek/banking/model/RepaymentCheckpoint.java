@@ -0,0 +1,81 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.LocalDate;
+
+/**
+ * Progress of one user id range of a repayment run, moved with every chunk
+ * of installments, so an interrupted run continues where it stopped.
+ */
+@Entity(name = "repayment_checkpoints")
+@Table(indexes = @Index(name = "idx_repayment_checkpoints_run", columnList = "due_date"))
+@Data
+@NoArgsConstructor
+public class RepaymentCheckpoint {
+
+    /**
+     * Due date and number of the range, e.g. {@code 2022-01-01/3}.
+     */
+    @Id
+    @Column(length = 32)
+    private String name;
+
+    @Column(name = "due_date", nullable = false)
+    private LocalDate dueDate;
+
+    @Column(nullable = false)
+    private long fromUserId;
+
+    @Column(nullable = false)
+    private long toUserId;
+
+    /**
+     * Position of the last processed installment in the order of the due index.
+     */
+    @Column(nullable = false)
+    private LocalDate lastDueDate;
+
+    @Column(nullable = false)
+    private long lastUserId;
+
+    @Column(nullable = false)
+    private long lastInstallmentId;
+
+    @Column(nullable = false)
+    private long paid;
+
+    /**
+     * Installments not paid for lack of balance, they are retried by the next run.
+     */
+    @Column(nullable = false)
+    private long unpaid;
+
+    @Column(nullable = false)
+    private boolean finished;
+
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Payment repeated every day, week or month, starting at {@code startAt}.
+ */
+@Entity(name = "scheduled_payments")
+@Table(indexes = @Index(name = "idx_scheduled_payments_due", columnList = "status, next_run_at"))
+@Data
+@NoArgsConstructor
+public class ScheduledPayment {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "sender_id", nullable = false)
+    @JsonIgnore
+    private User sender;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "receiver_id", nullable = false)
+    @JsonIgnore
+    private User receiver;
+
+    @Column(nullable = false, columnDefinition = "decimal(22,2)")
+    private BigDecimal amount;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Frequency frequency;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    @Column(nullable = false, columnDefinition = "datetime(6)")
+    private LocalDateTime startAt;
+
+    /**
+     * Number of occurrences already executed or skipped.
+     */
+    @Column(nullable = false)
+    private int runs;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    @Column(name = "next_run_at", nullable = false, columnDefinition = "datetime(6)")
+    private LocalDateTime nextRunAt;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Status status = Status.ACTIVE;
+
+    /**
+     * Failed attempts of the current occurrence.
+     */
+    @Column(nullable = false)
+    private int failures;
+
+    private String lastError;
+
+    @Column(length = 36)
+    @JsonIgnore
+    private String claimToken;
+
+    @Column(columnDefinition = "datetime(6)")
+    @JsonIgnore
+    private LocalDateTime claimedUntil;
+
+    public ScheduledPayment(User sender, User receiver, BigDecimal amount,
+                            Frequency frequency, LocalDateTime startAt) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.amount = amount;
+        this.frequency = frequency;
+        this.startAt = startAt;
+        this.nextRunAt = startAt;
+    }
+
+    public enum Frequency {
+        DAILY,
+        WEEKLY,
+        MONTHLY;
+
+        /**
+         * @return time of the occurrence with the given number, counted from zero
+         */
+        public LocalDateTime occurrence(LocalDateTime startAt, int number) {
+            return switch (this) {
+                case DAILY -> startAt.plusDays(number);
+                case WEEKLY -> startAt.plusWeeks(number);
+                case MONTHLY -> startAt.plusMonths(number);
+            };
+        }
+    }
+
+    public enum Status {
+        ACTIVE,
+        CANCELLED
+    }
+
+}
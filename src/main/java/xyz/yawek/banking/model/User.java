@@ -31,8 +31,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
-import javax.validation.constraints.Digits;
-import java.math.BigDecimal;
+import javax.persistence.Version;
 import java.util.List;
 import java.util.Set;
 
@@ -57,10 +56,27 @@ public class User {
     @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
     private Set<String> roles;
 
-    @Digits(integer = 20, fraction = 2)
     @Column(nullable = false, columnDefinition = "decimal(22,2) default '0.00'")
     @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
-    private BigDecimal balance = BigDecimal.ZERO;
+    private Money balance = Money.ZERO;
+
+    @Column(nullable = false, columnDefinition = "int default 0")
+    @JsonIgnore
+    private int balanceShards;
+
+    /**
+     * Repayment amount of loans not repaid yet, in the base currency. Only changed
+     * by conditional updates in {@link xyz.yawek.banking.repository.UserRepository}.
+     */
+    @Column(nullable = false, insertable = false, updatable = false,
+            columnDefinition = "decimal(22,2) default '0.00'")
+    @JsonIgnore
+    private Money outstandingLoans = Money.ZERO;
+
+    @Version
+    @Column(nullable = false, columnDefinition = "bigint default 0")
+    @JsonIgnore
+    private long version;
 
     @OneToMany(mappedBy = "user")
     @JsonIgnore
@@ -71,11 +87,11 @@ public class User {
         this.passwordHash = passwordHash;
     }
 
-    public void addBalance(BigDecimal amount) {
+    public void addBalance(Money amount) {
         balance = balance.add(amount);
     }
 
-    public void takeBalance(BigDecimal amount) {
+    public void takeBalance(Money amount) {
         balance = balance.subtract(amount);
     }
 
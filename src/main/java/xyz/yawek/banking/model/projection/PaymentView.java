@@ -0,0 +1,59 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model.projection;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Payment as seen by one of its users.
+ */
+public interface PaymentView {
+
+    @JsonIgnore
+    long getId();
+
+    Direction getDirection();
+
+    /**
+     * @return email of the other user of the payment
+     */
+    String getCounterparty();
+
+    BigDecimal getAmount();
+
+    /**
+     * @return currency of the amount, {@code null} for the base currency
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    String getCurrency();
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    LocalDateTime getTimestamp();
+
+    enum Direction {
+        SENT,
+        RECEIVED
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model.rest;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Exposure of loans not repaid yet, as their repayment amount in the base currency.
+ */
+@Value
+public class LoanPortfolioReport {
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    LocalDateTime generatedAt;
+
+    long loans;
+
+    BigDecimal exposure;
+
+    long customers;
+
+    List<Bucket> maturities;
+
+    List<Bucket> sizeBands;
+
+    List<CustomerExposure> topCustomers;
+
+    @Value
+    public static class Bucket {
+
+        String label;
+
+        long loans;
+
+        BigDecimal exposure;
+
+    }
+
+    @Value
+    public static class CustomerExposure {
+
+        String customer;
+
+        long loans;
+
+        BigDecimal exposure;
+
+    }
+
+}
@@ -23,6 +23,7 @@ import lombok.Data;
 import xyz.yawek.banking.validation.LoanAmount;
 
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
 
 @Data
 public class LoanRequest {
@@ -35,4 +36,8 @@ public class LoanRequest {
             "lest or equal than 1000000")
     private long amount;
 
+    @Pattern(regexp = "[A-Z]{3}")
+    @Schema(description = "Currency of the loan, base currency if not set")
+    private String currency;
+
 }
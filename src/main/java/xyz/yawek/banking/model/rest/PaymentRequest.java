@@ -19,6 +19,7 @@
 package xyz.yawek.banking.model.rest;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.v3.oas.annotations.media.Schema;
 import lombok.Data;
 
 import javax.validation.constraints.DecimalMin;
@@ -26,6 +27,7 @@ import javax.validation.constraints.Digits;
 import javax.validation.constraints.Email;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
 import java.math.BigDecimal;
 
@@ -38,9 +40,17 @@ public class PaymentRequest {
     @Size(min = 3, max = 254)
     private String receiverEmail;
 
-    @Digits(integer = 20, fraction = 2)
+    @Digits(integer = 16, fraction = 2)
     @DecimalMin(value = "0.01")
     @NotNull
     private BigDecimal amount;
 
+    @Pattern(regexp = "[A-Z]{3}")
+    @Schema(description = "Currency of the amount taken from the sender, base currency if not set")
+    private String currency;
+
+    @Pattern(regexp = "[A-Z]{3}")
+    @Schema(description = "Currency the receiver gets the amount in, same as currency if not set")
+    private String targetCurrency;
+
 }
@@ -0,0 +1,67 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model.rest;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Inflow and outflow of user's payments per period and its top counterparties.
+ */
+@Value
+public class PaymentSummary {
+
+    List<PeriodTotals> periods;
+
+    List<CounterpartyTotals> topCounterparties;
+
+    @Value
+    public static class PeriodTotals {
+
+        @JsonFormat(pattern = "yyyy-MM-dd")
+        LocalDate start;
+
+        BigDecimal inflow;
+
+        BigDecimal outflow;
+
+        long received;
+
+        long sent;
+
+    }
+
+    @Value
+    public static class CounterpartyTotals {
+
+        String counterparty;
+
+        BigDecimal inflow;
+
+        BigDecimal outflow;
+
+        long payments;
+
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model.rest;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Progress and result of a payroll. Updated only by the thread
+ * processing the payroll, so it can be read while it is running.
+ */
+@Data
+public class PayrollReport {
+
+    private static final int MAX_ERRORS = 100;
+
+    private final String id;
+
+    @JsonIgnore
+    private final long senderId;
+
+    private volatile Status status = Status.RUNNING;
+
+    private volatile long linesRead;
+
+    private volatile long paymentsCompleted;
+
+    private volatile long paymentsRejected;
+
+    private volatile BigDecimal amountSent = BigDecimal.ZERO;
+
+    private final List<LineError> errors = new CopyOnWriteArrayList<>();
+
+    public void reject(long line, String message) {
+        paymentsRejected++;
+        if (errors.size() < MAX_ERRORS)
+            errors.add(new LineError(line, message));
+    }
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class LineError {
+
+        private long line;
+
+        private String message;
+
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model.rest;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import xyz.yawek.banking.model.ScheduledPayment;
+
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Digits;
+import javax.validation.constraints.Email;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+@Data
+public class ScheduledPaymentRequest {
+
+    @JsonProperty(value = "receiver")
+    @NotBlank
+    @Email(regexp = ".+@.+\\..+")
+    @Size(min = 3, max = 254)
+    private String receiverEmail;
+
+    @Digits(integer = 16, fraction = 2)
+    @DecimalMin(value = "0.01")
+    @NotNull
+    private BigDecimal amount;
+
+    @NotNull
+    private ScheduledPayment.Frequency frequency;
+
+    /**
+     * Time of the first payment, now if not set.
+     */
+    private LocalDateTime startAt;
+
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.repository;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+import xyz.yawek.banking.model.BalanceShard;
+import xyz.yawek.banking.model.Money;
+
+import java.math.BigDecimal;
+
+@Repository
+public interface BalanceShardRepository extends CrudRepository<BalanceShard, Long> {
+
+    @Modifying
+    @Query("update balance_shards s set s.balance = s.balance + :amount " +
+            "where s.user.id = :userId and s.slot = :slot")
+    int addBalance(long userId, int slot, Money amount);
+
+    @Query(value = "select coalesce(sum(balance), 0) from balance_shards " +
+            "where user_id = :userId for update", nativeQuery = true)
+    BigDecimal sumBalanceForUpdate(long userId);
+
+    @Modifying
+    @Query("update balance_shards s set s.balance = 0 where s.user.id = :userId")
+    int clearBalance(long userId);
+
+    @Modifying
+    @Query("delete from balance_shards s where s.user.id = :userId")
+    int deleteByUserId(long userId);
+
+    @Query(value = "select u.balance + coalesce((select sum(s.balance) from balance_shards s " +
+            "where s.user_id = u.id), 0) from users u where u.id = :userId", nativeQuery = true)
+    BigDecimal getTotalBalance(long userId);
+
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.repository;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+import xyz.yawek.banking.model.CurrencyBalance;
+import xyz.yawek.banking.model.Money;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@Repository
+public interface CurrencyBalanceRepository extends CrudRepository<CurrencyBalance, Long> {
+
+    List<CurrencyBalance> findByUserIdOrderByCurrency(long userId);
+
+    @Modifying
+    @Query("update currency_balances b set b.balance = b.balance - :amount " +
+            "where b.user.id = :userId and b.currency = :currency and b.balance >= :amount")
+    int takeBalanceIfSufficient(long userId, String currency, Money amount);
+
+    @Modifying
+    @Query(value = "insert into currency_balances (user_id, currency, balance) " +
+            "values (:userId, :currency, :amount) " +
+            "on duplicate key update balance = balance + values(balance)", nativeQuery = true)
+    int addBalance(long userId, String currency, BigDecimal amount);
+
+}
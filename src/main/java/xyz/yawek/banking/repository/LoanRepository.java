@@ -20,14 +20,47 @@ package xyz.yawek.banking.repository;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.stereotype.Repository;
 import xyz.yawek.banking.model.Loan;
-import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.LoanView;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 @Repository
 public interface LoanRepository extends PagingAndSortingRepository<Loan, Long> {
 
-    Page<Loan> findByUser(User user, Pageable pageable);
+    Page<LoanView> findByUserId(long userId, Pageable pageable);
+
+    /**
+     * Finds user's loans due in {@code [from, timestamp)} and before the given position,
+     * latest repayment date first. Each half of the union is a range scan of the
+     * (user_id, repaid, repayment_date, id) index, a status which is not included is skipped.
+     */
+    @Query(value = "select * from ("
+            + "(select l.id, l.amount, l.repayment_amount as repaymentAmount, l.currency,"
+            + " l.repayment_date as repaymentDate, l.repaid, l.accrued_interest as accruedInterest"
+            + " from loans l where l.user_id = :userId and l.repaid = false and :outstanding = true"
+            + " and l.repayment_date >= :from"
+            + " and (l.repayment_date < :timestamp or (l.repayment_date = :timestamp and l.id < :id))"
+            + " order by l.repayment_date desc, l.id desc limit :limit)"
+            + " union all "
+            + "(select l.id, l.amount, l.repayment_amount as repaymentAmount, l.currency,"
+            + " l.repayment_date as repaymentDate, l.repaid, l.accrued_interest as accruedInterest"
+            + " from loans l where l.user_id = :userId and l.repaid = true and :repaid = true"
+            + " and l.repayment_date >= :from"
+            + " and (l.repayment_date < :timestamp or (l.repayment_date = :timestamp and l.id < :id))"
+            + " order by l.repayment_date desc, l.id desc limit :limit)"
+            + ") l order by l.repaymentDate desc, l.id desc limit :limit",
+            nativeQuery = true)
+    List<LoanView> findViewsByUserBefore(long userId, boolean outstanding, boolean repaid,
+                                         LocalDateTime from, LocalDateTime timestamp, long id, int limit);
+
+    @Modifying
+    @Query("update loans l set l.repaid = true where l.id = :id and l.repaid = false")
+    int markRepaid(long id);
 
 }
@@ -20,14 +20,54 @@ package xyz.yawek.banking.repository;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.stereotype.Repository;
 import xyz.yawek.banking.model.Payment;
-import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.PaymentView;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 @Repository
 public interface PaymentRepository extends PagingAndSortingRepository<Payment, Long> {
 
-    Page<Payment> findBySenderOrReceiver(User receiver, User sender, Pageable pageable);
+    @Query(value = "select p.id as id,"
+            + " case when s.id = :userId then 'SENT' else 'RECEIVED' end as direction,"
+            + " case when s.id = :userId then r.email else s.email end as counterparty,"
+            + " case when s.id = :userId or p.receivedAmount is null"
+            + " then p.amount else p.receivedAmount end as amount,"
+            + " case when s.id = :userId or p.receivedAmount is null"
+            + " then p.currency else p.receivedCurrency end as currency,"
+            + " p.timestamp as timestamp"
+            + " from payments p join p.sender s join p.receiver r"
+            + " where s.id = :userId or r.id = :userId",
+            countQuery = "select count(p) from payments p"
+                    + " where p.sender.id = :userId or p.receiver.id = :userId")
+    Page<PaymentView> findViewsByUser(long userId, Pageable pageable);
+
+    @Query("select count(p) from payments p where p.sender.id = :userId or p.receiver.id = :userId")
+    long countByUser(long userId);
+
+    /**
+     * Finds user's payments older than the given position, newest first.
+     * Each half of the union is a range scan of the sender or receiver index.
+     */
+    @Query(value = "select * from ("
+            + "(select p.id, 'SENT' as direction, r.email as counterparty, p.amount, p.currency, p.timestamp"
+            + " from payments p join users r on r.id = p.receiver_id where p.sender_id = :userId"
+            + " and (p.timestamp < :timestamp or (p.timestamp = :timestamp and p.id < :id))"
+            + " order by p.timestamp desc, p.id desc limit :limit)"
+            + " union all "
+            + "(select p.id, 'RECEIVED' as direction, s.email as counterparty,"
+            + " coalesce(p.received_amount, p.amount),"
+            + " case when p.received_amount is null then p.currency else p.received_currency end, p.timestamp"
+            + " from payments p join users s on s.id = p.sender_id where p.receiver_id = :userId"
+            + " and p.sender_id <> :userId"
+            + " and (p.timestamp < :timestamp or (p.timestamp = :timestamp and p.id < :id))"
+            + " order by p.timestamp desc, p.id desc limit :limit)"
+            + ") p order by p.timestamp desc, p.id desc limit :limit",
+            nativeQuery = true)
+    List<PaymentView> findViewsByUserBefore(long userId, LocalDateTime timestamp, long id, int limit);
 
 }
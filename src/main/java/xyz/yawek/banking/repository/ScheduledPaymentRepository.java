@@ -0,0 +1,43 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.repository;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+import xyz.yawek.banking.model.ScheduledPayment;
+import xyz.yawek.banking.model.projection.ScheduledPaymentView;
+
+import java.util.Optional;
+
+@Repository
+public interface ScheduledPaymentRepository extends CrudRepository<ScheduledPayment, Long> {
+
+    @Query(value = "select s.id as id, r.email as receiver, s.amount as amount,"
+            + " s.frequency as frequency, s.nextRunAt as nextRunAt, s.status as status,"
+            + " s.failures as failures, s.lastError as lastError"
+            + " from scheduled_payments s join s.receiver r where s.sender.id = :senderId",
+            countQuery = "select count(s) from scheduled_payments s where s.sender.id = :senderId")
+    Page<ScheduledPaymentView> findViewsBySender(long senderId, Pageable pageable);
+
+    Optional<ScheduledPayment> findByIdAndSenderId(long id, long senderId);
+
+}
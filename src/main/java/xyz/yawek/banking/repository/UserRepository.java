@@ -18,10 +18,16 @@
 
 package xyz.yawek.banking.repository;
 
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
+import xyz.yawek.banking.model.Money;
 import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.UserView;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -29,4 +35,32 @@ public interface UserRepository extends CrudRepository<User, Long> {
 
     Optional<User> findByEmail(String email);
 
+    List<UserView> findByEmailIn(Collection<String> emails);
+
+    List<User> findByIdInAndBalanceShardsGreaterThan(Collection<Long> ids, int balanceShards);
+
+    @Modifying
+    @Query("update users u set u.balance = u.balance - :amount, u.version = u.version + 1 " +
+            "where u.id = :id and u.balance >= :amount")
+    int takeBalanceIfSufficient(long id, Money amount);
+
+    @Modifying
+    @Query("update users u set u.balance = u.balance + :amount, u.version = u.version + 1 " +
+            "where u.id = :id")
+    int addBalance(long id, Money amount);
+
+    /**
+     * Adds to the user's outstanding loans if they do not exceed the given maximum before.
+     * @return 1 if they were added, 0 otherwise
+     */
+    @Modifying
+    @Query("update users u set u.outstandingLoans = u.outstandingLoans + :amount " +
+            "where u.id = :id and u.outstandingLoans <= :maxOutstanding")
+    int addOutstandingLoansIfWithin(long id, Money amount, Money maxOutstanding);
+
+    @Modifying
+    @Query("update users u set u.outstandingLoans = u.outstandingLoans - :amount " +
+            "where u.id = :id")
+    int releaseOutstandingLoans(long id, Money amount);
+
 }
@@ -0,0 +1,58 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.security;
+
+import lombok.Value;
+
+/**
+ * Rate of requests allowed to paths matching an Ant-style pattern.
+ */
+@Value
+public class RateLimit {
+
+    String pattern;
+    double permitsPerSecond;
+    int burst;
+
+    /**
+     * @param spec limit in the {@code pattern:permitsPerSecond:burst} format
+     * @throws IllegalArgumentException if the limit is malformed
+     */
+    public static RateLimit parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        if (parts.length != 3) throw new IllegalArgumentException("Invalid rate limit " + spec);
+        RateLimit limit;
+        try {
+            limit = new RateLimit(parts[0], Double.parseDouble(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid rate limit " + spec, e);
+        }
+        if (!(limit.permitsPerSecond > 0) || limit.burst < 1)
+            throw new IllegalArgumentException("Rate and burst of limit " + spec + " must be positive");
+        return limit;
+    }
+
+    /**
+     * @return nanoseconds between two permits
+     */
+    public long getIntervalNanos() {
+        return Math.max(1, Math.round(1_000_000_000 / permitsPerSecond));
+    }
+
+}
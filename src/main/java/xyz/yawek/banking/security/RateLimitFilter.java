@@ -0,0 +1,111 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.security;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits rate of requests of each user, or of each client address for
+ * unauthenticated requests and {@code /auth/**}, to the first limit matching the path.
+ * Runs after {@link JWTAuthenticationFilter}, so the user is already known.
+ */
+@Slf4j
+@Component
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private static final String CLIENT_ADDRESS_PATHS = "/auth/";
+
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+    private final RateLimiter rateLimiter;
+
+    /**
+     * @param limits limits in the {@code pattern:permitsPerSecond:burst} format
+     */
+    public RateLimitFilter(@Value("${app.rate-limit.limits}") String[] limits) {
+        this.rateLimiter = new RateLimiter(Arrays.stream(limits)
+                .map(RateLimit::parse)
+                .toList());
+    }
+
+    @Override
+    protected void doFilterInternal(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            FilterChain filterChain) throws ServletException, IOException {
+        String path = urlPathHelper.getPathWithinApplication(request);
+        int limit = rateLimiter.match(path);
+        if (limit < 0) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        long wait = rateLimiter.acquire(limit, key(request, path), System.nanoTime());
+        if (wait == 0) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999));
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(seconds));
+        response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests");
+    }
+
+    /**
+     * Removes buckets of clients which have not sent requests recently.
+     */
+    @Scheduled(fixedDelayString = "${app.rate-limit.eviction-interval}",
+            initialDelayString = "${app.rate-limit.eviction-interval}")
+    public void evict() {
+        int evicted = rateLimiter.evict(System.nanoTime());
+        if (evicted > 0) log.debug("Evicted {} rate limit buckets", evicted);
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    private String key(HttpServletRequest request, String path) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null
+                || !authentication.isAuthenticated()
+                || authentication instanceof AnonymousAuthenticationToken
+                || path.startsWith(CLIENT_ADDRESS_PATHS)) {
+            return request.getRemoteAddr();
+        }
+        return authentication.getName();
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.security;
+
+import org.springframework.util.AntPathMatcher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets of request keys, one set per {@link RateLimit}.
+ * <p>
+ * A bucket is a single {@link AtomicLong} holding the time at which it would be full again
+ * (the generic cell rate algorithm). A permit moves that time forward by the limit's interval
+ * with one compare-and-set, and is refused if the time would be more than
+ * {@code burst} intervals ahead, so buckets are neither locked nor refilled by a timer.
+ */
+public class RateLimiter {
+
+    private static final int MAX_CACHED_PATHS = 1024;
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final List<RateLimit> limits;
+    private final long[] intervals;
+    private final long[] tolerances;
+    private final List<Map<String, AtomicLong>> buckets;
+    private final Map<String, Integer> matchedPaths = new ConcurrentHashMap<>();
+
+    public RateLimiter(List<RateLimit> limits) {
+        this.limits = List.copyOf(limits);
+        intervals = new long[limits.size()];
+        tolerances = new long[limits.size()];
+        for (int i = 0; i < limits.size(); i++) {
+            intervals[i] = limits.get(i).getIntervalNanos();
+            tolerances[i] = intervals[i] * (limits.get(i).getBurst() - 1);
+        }
+        buckets = limits.stream()
+                .<Map<String, AtomicLong>>map(limit -> new ConcurrentHashMap<>())
+                .toList();
+    }
+
+    /**
+     * @return index of the first limit matching the path, or -1 if none matches
+     */
+    public int match(String path) {
+        Integer cached = matchedPaths.get(path);
+        if (cached != null) return cached;
+        int limit = -1;
+        for (int i = 0; i < limits.size() && limit < 0; i++) {
+            if (pathMatcher.match(limits.get(i).getPattern(), path)) limit = i;
+        }
+        // Paths are only remembered up to a bound, requests may contain arbitrary ones
+        if (matchedPaths.size() < MAX_CACHED_PATHS) matchedPaths.put(path, limit);
+        return limit;
+    }
+
+    public RateLimit getLimit(int limit) {
+        return limits.get(limit);
+    }
+
+    /**
+     * Takes a permit from the key's bucket.
+     * @param limit index of the limit
+     * @param now current value of {@link System#nanoTime()}
+     * @return 0 if the permit was taken, otherwise nanoseconds until it is available
+     */
+    public long acquire(int limit, String key, long now) {
+        Map<String, AtomicLong> limitBuckets = buckets.get(limit);
+        AtomicLong bucket = limitBuckets.get(key);
+        if (bucket == null) bucket = limitBuckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        long interval = intervals[limit];
+        long tolerance = tolerances[limit];
+        while (true) {
+            long full = bucket.get();
+            long start = full - now > 0 ? full : now;
+            long wait = start - now - tolerance;
+            if (wait > 0) return wait;
+            if (bucket.compareAndSet(full, start + interval)) return 0;
+        }
+    }
+
+    /**
+     * Removes buckets which are full, they are the same as new ones.
+     * A permit taken concurrently from a removed bucket is forgotten.
+     * @return number of removed buckets
+     */
+    public int evict(long now) {
+        int evicted = 0;
+        for (Map<String, AtomicLong> limitBuckets : buckets) {
+            int before = limitBuckets.size();
+            limitBuckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+            evicted += before - limitBuckets.size();
+        }
+        return evicted;
+    }
+
+    public int getBuckets() {
+        return buckets.stream().mapToInt(Map::size).sum();
+    }
+
+}
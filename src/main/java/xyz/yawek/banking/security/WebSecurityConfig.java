@@ -42,10 +42,13 @@ import javax.servlet.http.HttpServletResponse;
 public class WebSecurityConfig {
 
     private final JWTAuthenticationFilter authenticationFilter;
+    private final RateLimitFilter rateLimitFilter;
 
     @Autowired
-    public WebSecurityConfig(JWTAuthenticationFilter authenticationFilter) {
+    public WebSecurityConfig(JWTAuthenticationFilter authenticationFilter,
+                             RateLimitFilter rateLimitFilter) {
         this.authenticationFilter = authenticationFilter;
+        this.rateLimitFilter = rateLimitFilter;
     }
 
     @Bean
@@ -95,6 +98,9 @@ public class WebSecurityConfig {
                 .addFilterBefore(
                         authenticationFilter,
                         UsernamePasswordAuthenticationFilter.class)
+                .addFilterAfter(
+                        rateLimitFilter,
+                        JWTAuthenticationFilter.class)
                 .build();
     }
 
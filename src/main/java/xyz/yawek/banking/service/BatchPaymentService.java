@@ -0,0 +1,196 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.exception.UnsupportedCurrencyException;
+import xyz.yawek.banking.model.LedgerEntry;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.UserView;
+import xyz.yawek.banking.model.rest.PaymentLegResult;
+import xyz.yawek.banking.model.rest.PaymentRequest;
+import xyz.yawek.banking.repository.UserRepository;
+import xyz.yawek.banking.service.balance.BalanceShardService;
+import xyz.yawek.banking.service.cache.RecentPaymentsCache;
+import xyz.yawek.banking.service.fx.FxRateService;
+import xyz.yawek.banking.service.ledger.LedgerPosting;
+import xyz.yawek.banking.service.ledger.LedgerService;
+import xyz.yawek.banking.service.outbox.OutboxMessage;
+import xyz.yawek.banking.service.outbox.OutboxService;
+import xyz.yawek.banking.service.pipeline.PaymentPipeline;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Executes many payments of one sender in a single transaction. Receivers are
+ * loaded with one query, sender's balance is checked and debited once and
+ * all other statements are sent in JDBC batches.
+ */
+@Service
+@Transactional
+@RequiredArgsConstructor
+public class BatchPaymentService {
+
+    private static final String INSERT_PAYMENT =
+            "insert into payments (sender_id, receiver_id, amount, timestamp) values (?, ?, ?, ?)";
+    private static final String ADD_BALANCE =
+            "update users set balance = balance + ?, version = version + 1 where id = ?";
+
+    private final UserRepository userRepository;
+    private final BalanceShardService shardService;
+    private final JdbcTemplate jdbcTemplate;
+    private final LedgerService ledgerService;
+    private final OutboxService outboxService;
+    private final RecentPaymentsCache recentPaymentsCache;
+    private final FxRateService fxRateService;
+    private final ObjectProvider<PaymentPipeline> paymentPipeline;
+
+    /**
+     * Sends all payments whose receivers exist, or none of them
+     * if sender's balance is not enough to cover all.
+     * @param sender user sending the money
+     * @param payments requested payments
+     * @return outcome of every requested payment, in request order
+     * @throws NotEnoughBalanceException if sender's balance is lower than sum of payments
+     * @throws UnsupportedCurrencyException if any payment is not in the base currency
+     */
+    public List<PaymentLegResult> makePayments(User sender, List<PaymentRequest> payments) {
+        for (PaymentRequest payment : payments) {
+            if (!isBaseCurrency(payment.getCurrency()) || !isBaseCurrency(payment.getTargetCurrency()))
+                throw new UnsupportedCurrencyException("Batch payments can only be made in the base currency");
+        }
+        Set<String> emails = payments.stream()
+                .map(PaymentRequest::getReceiverEmail)
+                .collect(Collectors.toSet());
+        Map<String, UserView> receivers = userRepository.findByEmailIn(emails).stream()
+                .collect(Collectors.toMap(UserView::getEmail, Function.identity()));
+
+        List<PaymentLegResult> results = new ArrayList<>(payments.size());
+        List<Transfer> transfers = new ArrayList<>(payments.size());
+        for (int i = 0; i < payments.size(); i++) {
+            PaymentRequest payment = payments.get(i);
+            UserView receiver = receivers.get(payment.getReceiverEmail());
+            if (receiver == null) {
+                results.add(new PaymentLegResult(i, payment.getReceiverEmail(),
+                        payment.getAmount(), PaymentLegResult.Status.RECEIVER_NOT_FOUND));
+                continue;
+            }
+            results.add(new PaymentLegResult(i, payment.getReceiverEmail(),
+                    payment.getAmount(), PaymentLegResult.Status.COMPLETED));
+            transfers.add(new Transfer(receiver.getId(), Money.valueOf(payment.getAmount())));
+        }
+        transfer(sender, transfers);
+        return results;
+    }
+
+    /**
+     * Sends all transfers, or none of them if sender's balance is not enough to cover all.
+     * @param sender user sending the money
+     * @param transfers transfers to existing receivers
+     * @throws NotEnoughBalanceException if sender's balance is lower than sum of transfers
+     */
+    public void transfer(User sender, List<Transfer> transfers) {
+        if (transfers.isEmpty()) return;
+        List<Object[]> paymentRows = new ArrayList<>(transfers.size());
+        List<LedgerPosting> postings = new ArrayList<>(transfers.size());
+        List<OutboxMessage> events = new ArrayList<>(transfers.size());
+        NavigableMap<Long, Money> credits = new TreeMap<>();
+        Money total = Money.ZERO;
+        Timestamp timestamp = Timestamp.valueOf(LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+        for (Transfer transfer : transfers) {
+            paymentRows.add(new Object[] {
+                    sender.getId(), transfer.getReceiverId(), transfer.getAmount().toBigDecimal(), timestamp });
+            postings.add(new LedgerPosting(sender.getId(), transfer.getReceiverId(),
+                    transfer.getAmount(), LedgerEntry.Kind.PAYMENT, null));
+            events.add(OutboxMessage.paymentSent(null,
+                    sender.getId(), transfer.getReceiverId(), transfer.getAmount()));
+            credits.merge(transfer.getReceiverId(), transfer.getAmount(), Money::add);
+            total = total.add(transfer.getAmount());
+        }
+        // Payments in the pipeline must not spend the same balance and see the credits
+        PaymentPipeline pipeline = paymentPipeline.getIfAvailable();
+        if (pipeline != null) {
+            pipeline.hold(sender.getId(), total);
+            credits.forEach(pipeline::credit);
+        }
+
+        // Rows of sharded users are locked first, then other user rows and shard rows last
+        List<User> shardedReceivers = userRepository.findByIdInAndBalanceShardsGreaterThan(credits.keySet(), 0);
+        shardService.lockSharded(sender, shardedReceivers);
+        // Receivers whose sharding was disabled meanwhile are credited like other users
+        shardedReceivers = shardedReceivers.stream().filter(shardService::isSharded).toList();
+        NavigableMap<Long, Money> userCredits = new TreeMap<>(credits);
+        shardedReceivers.forEach(receiver -> userCredits.remove(receiver.getId()));
+        if (shardService.isSharded(sender)) {
+            addBalances(userCredits);
+            Money swept = shardService.sweep(sender);
+            if (swept.signum() != 0) userRepository.addBalance(sender.getId(), swept);
+            takeBalance(sender, total);
+        } else {
+            // Keep ascending id order of locked user rows
+            addBalances(userCredits.headMap(sender.getId(), false));
+            takeBalance(sender, total);
+            addBalances(userCredits.tailMap(sender.getId(), true));
+        }
+        shardedReceivers.stream()
+                .sorted(Comparator.comparingLong(User::getId))
+                .forEach(receiver -> shardService.credit(receiver, sender, credits.get(receiver.getId())));
+        jdbcTemplate.batchUpdate(INSERT_PAYMENT, paymentRows);
+        ledgerService.record(postings);
+        outboxService.append(events);
+        List<Long> userIds = new ArrayList<>(credits.keySet());
+        userIds.add(sender.getId());
+        recentPaymentsCache.invalidateAfterCommit(userIds);
+    }
+
+    private boolean isBaseCurrency(String currency) {
+        return currency == null || currency.equals(fxRateService.getBaseCurrency());
+    }
+
+    private void takeBalance(User sender, Money amount) {
+        if (userRepository.takeBalanceIfSufficient(sender.getId(), amount) == 0)
+            throw new NotEnoughBalanceException("Not enough balance");
+    }
+
+    private void addBalances(Map<Long, Money> credits) {
+        if (credits.isEmpty()) return;
+        jdbcTemplate.batchUpdate(ADD_BALANCE, credits.entrySet().stream()
+                .map(credit -> new Object[] { credit.getValue().toBigDecimal(), credit.getKey() })
+                .toList());
+    }
+
+}
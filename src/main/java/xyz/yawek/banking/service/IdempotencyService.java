@@ -0,0 +1,308 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.server.ResponseStatusException;
+import xyz.yawek.banking.exception.IdempotencyKeyInProgressException;
+import xyz.yawek.banking.exception.IdempotencyKeyMismatchException;
+import xyz.yawek.banking.exception.InvalidIdempotencyKeyException;
+import xyz.yawek.banking.exception.VelocityLimitException;
+import xyz.yawek.banking.model.IdempotencyRecord;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.repository.IdempotencyRecordRepository;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Makes requests sent with an idempotency key execute only once.
+ * Outcomes of recent keys are cached in memory and stored in the database,
+ * so a retried request returns the stored outcome without executing again.
+ * Retries sent while the first request is still executing wait for its outcome.
+ * <p>
+ * Before executing, the key is claimed by a row inserted in its own transaction,
+ * so a request is executed at most once also when retried on another instance,
+ * which gets 409 until the outcome is stored. If the instance stops after executing
+ * the request but before storing its outcome, the key stays claimed until it expires.
+ * <p>
+ * Requests are compared by SHA-256 of their canonical JSON, with properties sorted
+ * and decimals without trailing zeros, so {@code 1.0} and {@code 1.00} are the same amount.
+ */
+@Slf4j
+@Service
+public class IdempotencyService {
+
+    private static final int MAX_KEY_LENGTH = 64;
+    private static final String DELETE_EXPIRED = "delete from idempotency_keys"
+            + " where user_id = ? and scope = ? and idempotency_key = ? and created_at < ?";
+    private static final String CLAIM = "insert ignore into idempotency_keys"
+            + " (user_id, scope, idempotency_key, request_hash, status, created_at) values (?, ?, ?, ?, ?, ?)";
+    private static final String SELECT = "select id, user_id, scope, idempotency_key, request_hash, status,"
+            + " reason, created_at from idempotency_keys where user_id = ? and scope = ? and idempotency_key = ?";
+    private static final String COMPLETE = "update idempotency_keys set status = ?, reason = ?"
+            + " where user_id = ? and scope = ? and idempotency_key = ? and status = ?";
+    private static final String RELEASE = "delete from idempotency_keys"
+            + " where user_id = ? and scope = ? and idempotency_key = ? and status = ?";
+
+    private final IdempotencyRecordRepository repository;
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper canonicalMapper;
+    private final long ttl;
+    private final Map<String, CachedOutcome> cache;
+
+    public IdempotencyService(IdempotencyRecordRepository repository,
+                              JdbcTemplate jdbcTemplate,
+                              @Value("${app.idempotency.cache-size}") int cacheSize,
+                              @Value("${app.idempotency.ttl}") long ttl) {
+        this.repository = repository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.canonicalMapper = JsonMapper.builder()
+                .findAndAddModules()
+                .enable(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY)
+                .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+                .addModule(new SimpleModule().addSerializer(new CanonicalDecimalSerializer()))
+                .build();
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedOutcome> eldest) {
+                return size() > cacheSize && eldest.getValue().future.isDone();
+            }
+        };
+    }
+
+    /**
+     * Executes the action unless a request with the same key was already executed.
+     * @param user user sending the request
+     * @param scope endpoint the key belongs to
+     * @param key idempotency key sent by the client, action is always executed if null
+     * @param request body of the request, used to detect reusing a key for another request
+     * @param action action executing the request
+     * @return response of the action or a replay of the stored one
+     * @throws IdempotencyKeyMismatchException if the key was used for a different request
+     * @throws IdempotencyKeyInProgressException if the key is claimed by a request still executing
+     */
+    public ResponseEntity<?> execute(User user, String scope, String key,
+                                     Object request, Supplier<ResponseEntity<?>> action) {
+        if (key == null) return action.get();
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH)
+            throw new InvalidIdempotencyKeyException();
+
+        String cacheKey = user.getId() + ":" + scope + ":" + key;
+        String requestHash = fingerprint(request);
+        CachedOutcome outcome;
+        boolean owner = false;
+        synchronized (cache) {
+            outcome = cache.get(cacheKey);
+            if (outcome == null || outcome.isExpired()) {
+                outcome = new CachedOutcome();
+                cache.put(cacheKey, outcome);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            IdempotencyRecord record;
+            try {
+                record = outcome.future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+            // Outcome may be of a stored request other than the one which started it
+            if (!record.getRequestHash().equals(requestHash))
+                throw new IdempotencyKeyMismatchException();
+            return replay(record);
+        }
+
+        try {
+            Optional<IdempotencyRecord> stored = claim(user.getId(), scope, key, requestHash);
+            if (stored.isPresent()) {
+                if (stored.get().isInProgress()) throw new IdempotencyKeyInProgressException();
+                outcome.future.complete(stored.get());
+                if (!stored.get().getRequestHash().equals(requestHash))
+                    throw new IdempotencyKeyMismatchException();
+                return replay(stored.get());
+            }
+
+            IdempotencyRecord record;
+            ResponseEntity<?> response;
+            try {
+                response = action.get();
+                record = new IdempotencyRecord(user.getId(), scope, key, requestHash,
+                        response.getStatusCodeValue(), null);
+            } catch (RuntimeException e) {
+                ResponseStatus status = AnnotatedElementUtils
+                        .findMergedAnnotation(e.getClass(), ResponseStatus.class);
+                // Only outcomes which would be the same on retry are stored
+                if (!isFinal(e, status)) {
+                    release(user.getId(), scope, key);
+                    throw e;
+                }
+                record = new IdempotencyRecord(user.getId(), scope, key, requestHash,
+                        status.code().value(), status.reason());
+                complete(record);
+                outcome.future.complete(record);
+                throw e;
+            }
+            complete(record);
+            outcome.future.complete(record);
+            return response;
+        } catch (RuntimeException e) {
+            if (!outcome.future.isDone()) {
+                synchronized (cache) {
+                    cache.remove(cacheKey, outcome);
+                }
+                outcome.future.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes stored outcomes of expired keys.
+     */
+    @Scheduled(fixedDelayString = "${app.idempotency.purge-interval}",
+            initialDelayString = "${app.idempotency.purge-interval}")
+    @Transactional
+    public void purgeExpired() {
+        int purged = repository.deleteCreatedBefore(Instant.now().minusMillis(ttl));
+        if (purged > 0) log.debug("Purged {} expired idempotency keys", purged);
+    }
+
+    private String fingerprint(Object request) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(canonicalMapper.writeValueAsBytes(request)));
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Could not fingerprint request", e);
+        }
+    }
+
+    /**
+     * Claims the key unless it is already claimed, replacing an expired claim or outcome.
+     * @return claim or outcome of the key if it was claimed before
+     */
+    private Optional<IdempotencyRecord> claim(long userId, String scope, String key, String requestHash) {
+        Instant now = Instant.now();
+        jdbcTemplate.update(DELETE_EXPIRED, userId, scope, key, Timestamp.from(now.minusMillis(ttl)));
+        if (jdbcTemplate.update(CLAIM, userId, scope, key, requestHash,
+                IdempotencyRecord.IN_PROGRESS, Timestamp.from(now)) > 0) return Optional.empty();
+        Optional<IdempotencyRecord> stored = jdbcTemplate.query(SELECT, IdempotencyService::toRecord,
+                userId, scope, key).stream().findFirst();
+        // Deleted as expired in the meantime
+        if (stored.isEmpty()) throw new IdempotencyKeyInProgressException();
+        return stored;
+    }
+
+    private void complete(IdempotencyRecord record) {
+        jdbcTemplate.update(COMPLETE, record.getStatus(), record.getReason(), record.getUserId(),
+                record.getScope(), record.getKey(), IdempotencyRecord.IN_PROGRESS);
+    }
+
+    private void release(long userId, String scope, String key) {
+        jdbcTemplate.update(RELEASE, userId, scope, key, IdempotencyRecord.IN_PROGRESS);
+    }
+
+    /**
+     * Conflicts and velocity limits, which pass with time, are not final outcomes.
+     */
+    private boolean isFinal(RuntimeException e, ResponseStatus status) {
+        return status != null && !status.code().is5xxServerError()
+                && status.code() != HttpStatus.CONFLICT && !(e instanceof VelocityLimitException);
+    }
+
+    private static IdempotencyRecord toRecord(ResultSet rs, int row) throws SQLException {
+        IdempotencyRecord record = new IdempotencyRecord(rs.getLong("user_id"), rs.getString("scope"),
+                rs.getString("idempotency_key"), rs.getString("request_hash"),
+                rs.getInt("status"), rs.getString("reason"));
+        record.setId(rs.getLong("id"));
+        record.setCreatedAt(rs.getTimestamp("created_at").toInstant());
+        return record;
+    }
+
+    private ResponseEntity<?> replay(IdempotencyRecord record) {
+        HttpStatus status = HttpStatus.valueOf(record.getStatus());
+        if (status.isError()) throw new ResponseStatusException(status, record.getReason());
+        return ResponseEntity.status(status).build();
+    }
+
+    private boolean isExpired(Instant createdAt) {
+        return createdAt.plusMillis(ttl).isBefore(Instant.now());
+    }
+
+    private class CachedOutcome {
+
+        private final CompletableFuture<IdempotencyRecord> future = new CompletableFuture<>();
+        private final Instant createdAt = Instant.now();
+
+        private boolean isExpired() {
+            return future.isDone() && IdempotencyService.this.isExpired(createdAt);
+        }
+
+    }
+
+    private static class CanonicalDecimalSerializer extends StdSerializer<BigDecimal> {
+
+        private CanonicalDecimalSerializer() {
+            super(BigDecimal.class);
+        }
+
+        @Override
+        public void serialize(BigDecimal value, JsonGenerator generator,
+                              SerializerProvider provider) throws IOException {
+            generator.writeNumber(value.stripTrailingZeros().toPlainString());
+        }
+
+    }
+
+}
@@ -19,61 +19,161 @@
 package xyz.yawek.banking.service;
 
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import xyz.yawek.banking.exception.LoanLimitException;
+import xyz.yawek.banking.model.LedgerEntry;
 import xyz.yawek.banking.model.Loan;
+import xyz.yawek.banking.model.Money;
 import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.LoanView;
+import xyz.yawek.banking.model.rest.CursorPage;
+import xyz.yawek.banking.model.rest.KeysetCursor;
+import xyz.yawek.banking.model.rest.LoanQuotes;
 import xyz.yawek.banking.model.rest.LoanRequest;
 import xyz.yawek.banking.repository.LoanRepository;
+import xyz.yawek.banking.repository.UserRepository;
+import xyz.yawek.banking.service.balance.CurrencyBalanceService;
+import xyz.yawek.banking.service.fx.FxRateService;
+import xyz.yawek.banking.service.ledger.LedgerPosting;
+import xyz.yawek.banking.service.ledger.LedgerService;
+import xyz.yawek.banking.service.outbox.OutboxMessage;
+import xyz.yawek.banking.service.outbox.OutboxService;
+import xyz.yawek.banking.service.pipeline.PaymentPipeline;
+import xyz.yawek.banking.service.quote.LoanOfferTable;
+import xyz.yawek.banking.service.repayment.InstallmentService;
+import xyz.yawek.banking.service.report.LoanReportService;
 
-import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import java.util.List;
 
 @Service
 @RequiredArgsConstructor
 @Transactional
 public class LoanService {
 
-    private final LoanRepository repository;
+    // Earliest value of MySQL datetime columns
+    private static final LocalDateTime EARLIEST = LocalDateTime.of(1000, 1, 1, 0, 0);
 
-    @Value("${app.loan-repayment-amount-multiplier}")
-    private BigDecimal repaymentAmountMultiplier;
+    private final LoanRepository repository;
+    private final UserRepository userRepository;
+    private final LedgerService ledgerService;
+    private final OutboxService outboxService;
+    private final FxRateService fxRateService;
+    private final CurrencyBalanceService currencyBalanceService;
+    private final InstallmentService installmentService;
+    private final LoanReportService loanReportService;
+    private final LoanOfferTable loanOfferTable;
+    private final ObjectProvider<PaymentPipeline> paymentPipeline;
 
-    @Value("${app.loan-repayment-amount-limit}")
-    private BigDecimal repaymentAmountLimit;
+    @Value("${spring.data.rest.max-page-size}")
+    private int maxPageSize;
 
+    /**
+     * Credits the loan to the user's balance in its currency. Loans in other
+     * currencies count towards the limit with their value in the base currency.
+     * The limit is checked against the user's outstanding loans with a conditional
+     * update, so concurrent loans cannot exceed it together. Its monthly installments
+     * are collected by {@link xyz.yawek.banking.service.repayment.RepaymentBatch}.
+     */
     public void createLoan(Loan loan) {
-        if (loan.getUser().getLoans().stream()
-                .map(Loan::getRepaymentAmount)
-                .reduce(BigDecimal.ZERO, BigDecimal::add)
-                .add(loan.getAmount())
-                .compareTo(repaymentAmountLimit) > 0)
+        loan.setLimitAmount(toBaseCurrency(loan.getRepaymentAmount(), loan.getCurrency()));
+        Money maxOutstanding = loanOfferTable.getLimit().subtract(toBaseCurrency(loan.getAmount(), loan.getCurrency()));
+        if (userRepository.addOutstandingLoansIfWithin(
+                loan.getUser().getId(), loan.getLimitAmount(), maxOutstanding) == 0)
             throw new LoanLimitException();
-        loan.getUser().addBalance(loan.getAmount());
-        repository.save(loan);
+        if (loan.getCurrency() == null) {
+            loan.getUser().addBalance(loan.getAmount());
+            PaymentPipeline pipeline = paymentPipeline.getIfAvailable();
+            if (pipeline != null) pipeline.credit(loan.getUser().getId(), loan.getAmount());
+            repository.save(loan);
+            ledgerService.record(new LedgerPosting(LedgerService.BANK_ACCOUNT_ID,
+                    loan.getUser().getId(), loan.getAmount(), LedgerEntry.Kind.LOAN, loan.getId()));
+        } else {
+            currencyBalanceService.credit(loan.getUser(), loan.getCurrency(), loan.getAmount());
+            repository.save(loan);
+        }
+        installmentService.createSchedule(loan);
+        outboxService.append(OutboxMessage.loanTaken(loan.getId(), loan.getUser().getId(), loan.getAmount(),
+                loan.getRepaymentAmount(), loan.getCurrency(), loan.getRepaymentDate()));
+        loanReportService.invalidateAfterCommit();
+    }
+
+    /**
+     * Marks the loan as repaid and removes it from the user's outstanding loans.
+     * @return false if the loan was already repaid
+     */
+    public boolean markRepaid(Loan loan) {
+        if (repository.markRepaid(loan.getId()) == 0) return false;
+        loan.setRepaid(true);
+        userRepository.releaseOutstandingLoans(loan.getUser().getId(), loan.getLimitAmount() != null
+                ? loan.getLimitAmount()
+                : toBaseCurrency(loan.getRepaymentAmount(), loan.getCurrency()));
+        loanReportService.invalidateAfterCommit();
+        return true;
     }
 
-    public Page<Loan> getLoansByUser(User user, Pageable pageable) {
-        return repository.findByUser(user, pageable);
+    public Page<LoanView> getLoansByUser(User user, Pageable pageable) {
+        return repository.findByUserId(user.getId(), pageable);
+    }
+
+    /**
+     * Gets user's loans after the cursor, latest repayment date first.
+     * Unlike {@link #getLoansByUser(User, Pageable)}, cost does not grow with the number
+     * of user's loans and no count query is sent.
+     * @param repaid true for repaid loans only, false for outstanding ones, null for all
+     * @param from first repayment date, unbounded if null
+     * @param to last repayment date, unbounded if null
+     * @param cursor cursor of the previous page, empty for the first page
+     * @param size maximum number of loans, limited to the max page size
+     */
+    public CursorPage<LoanView> getPageByUser(User user, Boolean repaid, LocalDate from, LocalDate to,
+                                              String cursor, int size) {
+        KeysetCursor position = KeysetCursor.decode(cursor);
+        int limit = Math.max(1, Math.min(size, maxPageSize));
+        if (to != null && !to.plusDays(1).atStartOfDay().isAfter(position.getTimestamp())) {
+            // Position before every loan due on the next day
+            position = new KeysetCursor(to.plusDays(1).atStartOfDay(), Long.MIN_VALUE);
+        }
+        List<LoanView> loans = repository.findViewsByUserBefore(user.getId(),
+                !Boolean.TRUE.equals(repaid), !Boolean.FALSE.equals(repaid),
+                from == null ? EARLIEST : from.atStartOfDay(),
+                position.getTimestamp(), position.getId(), limit + 1);
+
+        if (loans.size() <= limit) return new CursorPage<>(loans, null);
+        loans = loans.subList(0, limit);
+        LoanView last = loans.get(limit - 1);
+        return new CursorPage<>(loans, new KeysetCursor(last.getRepaymentDate(), last.getId()).encode());
+    }
+
+    public LoanQuotes getQuotes(User user) {
+        return loanOfferTable.quote(user.getOutstandingLoans());
     }
 
     public Loan buildFromUserRequest(User user, LoanRequest loanRequest) {
+        String currency = fxRateService.resolve(loanRequest.getCurrency());
         Loan loan = new Loan();
-        loan.setAmount(new BigDecimal(loanRequest.getAmount()));
-        loan.setRepaymentAmount(
-                loan.getAmount().multiply(repaymentAmountMultiplier));
-        loan.setRepaymentDate(
-                LocalDateTime.ofInstant(ZonedDateTime.now().plusYears(
-                        (long) (loan.getAmount().doubleValue() / 500)).toInstant(),
-                ZoneId.systemDefault()));
+        loan.setAmount(Money.ofMajorUnits(loanRequest.getAmount()));
+        loan.setCurrency(currency.equals(fxRateService.getBaseCurrency()) ? null : currency);
+        loan.setRepaymentAmount(loanOfferTable.getRepaymentAmount(loanRequest.getAmount()));
+        // Terms of loans in other currencies depend on the exchange rate
+        loan.setRepaymentDate(LocalDateTime.now().plusYears(loan.getCurrency() == null
+                ? loanOfferTable.getTermYears(loanRequest.getAmount())
+                : LoanOfferTable.termYears(toBaseCurrency(loan.getAmount(), loan.getCurrency()))));
+        // Interest accrues from the next day
+        loan.setAccruedThrough(LocalDate.now());
         loan.setUser(user);
         return loan;
     }
 
+    private Money toBaseCurrency(Money amount, String currency) {
+        if (currency == null) return amount;
+        return fxRateService.convert(amount, currency, fxRateService.getBaseCurrency());
+    }
+
 }
@@ -0,0 +1,98 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.service.fx.FxRateService;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps users' outstanding loans consistent with their loans. Limit amounts of loans taken
+ * before outstanding loans were maintained are filled in on startup, and the totals
+ * are periodically recomputed from {@code loans}, correcting any that differ.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class OutstandingLoansVerifier {
+
+    private static final int CHUNK_SIZE = 500;
+    private static final String OUTSTANDING = "(select coalesce(sum(l.limit_amount), 0) from loans l"
+            + " where l.user_id = u.id and l.repaid = false)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final FxRateService fxRateService;
+
+    /**
+     * Fills in limit amounts of loans which have none, then corrects the totals.
+     * Loans in other currencies are converted with the current rates.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void backfill() {
+        int filled = jdbcTemplate.update("update loans set limit_amount = repayment_amount"
+                + " where limit_amount is null and currency is null");
+        List<Object[]> converted = jdbcTemplate.query(
+                "select id, repayment_amount, currency from loans"
+                + " where limit_amount is null and currency is not null",
+                (rs, i) -> new Object[] {
+                        fxRateService.convert(Money.valueOf(rs.getBigDecimal(2)), rs.getString(3),
+                                fxRateService.getBaseCurrency()).toBigDecimal(),
+                        rs.getLong(1) });
+        jdbcTemplate.batchUpdate("update loans set limit_amount = ? where id = ?", converted);
+        filled += converted.size();
+        if (filled > 0) log.info("Filled in limit amounts of {} loans", filled);
+        verify();
+    }
+
+    /**
+     * Recomputes outstanding loans of users whose total differs from their loans.
+     * Each total is recomputed by a single update, which waits for loans being taken
+     * by the user, so concurrent loans are not lost.
+     * @return number of corrected users
+     */
+    @Scheduled(fixedDelayString = "${app.loan.verification-interval}",
+            initialDelayString = "${app.loan.verification-interval}")
+    @Transactional
+    public int verify() {
+        List<Long> mismatched = jdbcTemplate.queryForList(
+                "select u.id from users u where u.outstanding_loans <> " + OUTSTANDING, Long.class);
+        for (int from = 0; from < mismatched.size(); from += CHUNK_SIZE) {
+            namedJdbcTemplate.update("update users u set u.outstanding_loans = " + OUTSTANDING
+                    + " where u.id in (:ids)",
+                    Map.of("ids", mismatched.subList(from, Math.min(from + CHUNK_SIZE, mismatched.size()))));
+        }
+        if (!mismatched.isEmpty())
+            log.warn("Corrected outstanding loans of {} users", mismatched.size());
+        return mismatched.size();
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.PaymentView;
+import xyz.yawek.banking.model.rest.FileFormat;
+import xyz.yawek.banking.service.archive.PaymentArchive;
+import xyz.yawek.banking.service.fx.FxRateService;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Objects;
+
+/**
+ * Writes user's whole payment history. Rows are read with a forward-only
+ * result set and written as they are read, so memory use does not depend on the
+ * length of the history. Archived payments are read from their segments first.
+ */
+@Service
+@RequiredArgsConstructor
+public class PaymentExportService {
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String SENT_QUERY =
+            "select p.timestamp, p.amount, r.email, p.currency from payments p"
+            + " join users r on r.id = p.receiver_id"
+            + " where p.sender_id = ? order by p.timestamp, p.id";
+    private static final String RECEIVED_QUERY =
+            "select p.timestamp, coalesce(p.received_amount, p.amount), s.email,"
+            + " case when p.received_amount is null then p.currency else p.received_currency end"
+            + " from payments p"
+            + " join users s on s.id = p.sender_id"
+            + " where p.receiver_id = ? and p.sender_id <> p.receiver_id order by p.timestamp, p.id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final PaymentArchive paymentArchive;
+    private final FxRateService fxRateService;
+
+    @Value("${app.payment.export.fetch-size}")
+    private int fetchSize;
+
+    /**
+     * Writes sent payments followed by received ones, both oldest first.
+     * @param user owner of the payments
+     * @param format format of the output
+     * @param output stream the payments are written to
+     */
+    public void export(User user, FileFormat format, OutputStream output) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(writer);
+        // Lines are separated by the row writer, not by the default space between root values
+        generator.setRootValueSeparator(null);
+        if (format == FileFormat.CSV) writer.write("direction,counterparty,amount,currency,timestamp\n");
+        String baseCurrency = fxRateService.getBaseCurrency();
+
+        try {
+            for (PaymentView.Direction direction : PaymentView.Direction.values()) {
+                paymentArchive.forEachByUser(user.getId(), direction, payment -> {
+                    try {
+                        writeRow(format, writer, generator, direction, payment.getTimestamp(),
+                                payment.getAmount(), baseCurrency, payment.getCounterparty());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                export(direction == PaymentView.Direction.SENT ? SENT_QUERY : RECEIVED_QUERY, user,
+                        rs -> writeRow(format, writer, generator, direction,
+                                rs.getTimestamp(1).toLocalDateTime(), rs.getBigDecimal(2),
+                                Objects.requireNonNullElse(rs.getString(4), baseCurrency), rs.getString(3)));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.flush();
+        writer.flush();
+    }
+
+    private void export(String query, User user, RowWriter rowWriter) {
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(
+                    query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            statement.setLong(1, user.getId());
+            return statement;
+        }, rs -> {
+            try {
+                rowWriter.write(rs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void writeRow(FileFormat format, Writer writer, JsonGenerator generator,
+                          PaymentView.Direction direction, LocalDateTime time, BigDecimal value,
+                          String currency, String counterparty) throws IOException {
+        String timestamp = time.format(TIMESTAMP_FORMAT);
+        String amount = value.toPlainString();
+        if (format == FileFormat.CSV) {
+            writer.write(direction.name());
+            writer.write(',');
+            writer.write(escapeCsv(counterparty));
+            writer.write(',');
+            writer.write(amount);
+            writer.write(',');
+            writer.write(currency);
+            writer.write(',');
+            writer.write(timestamp);
+            writer.write('\n');
+        } else {
+            generator.writeStartObject();
+            generator.writeStringField("direction", direction.name());
+            generator.writeStringField("counterparty", counterparty);
+            generator.writeFieldName("amount");
+            generator.writeNumber(amount);
+            generator.writeStringField("currency", currency);
+            generator.writeStringField("timestamp", timestamp);
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+    }
+
+    private String escapeCsv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    @FunctionalInterface
+    private interface RowWriter {
+
+        void write(ResultSet rs) throws SQLException, IOException;
+
+    }
+
+}
@@ -18,39 +18,254 @@
 
 package xyz.yawek.banking.service;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
-import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.exception.UnsupportedCurrencyException;
+import xyz.yawek.banking.exception.UserNotFoundException;
+import xyz.yawek.banking.model.LedgerEntry;
+import xyz.yawek.banking.model.Money;
 import xyz.yawek.banking.model.Payment;
 import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.PaymentView;
+import xyz.yawek.banking.model.rest.CursorPage;
+import xyz.yawek.banking.model.rest.KeysetCursor;
 import xyz.yawek.banking.repository.PaymentRepository;
+import xyz.yawek.banking.repository.UserRepository;
+import xyz.yawek.banking.service.archive.PaymentArchive;
+import xyz.yawek.banking.service.balance.BalanceUpdateStrategy;
+import xyz.yawek.banking.service.balance.CurrencyBalanceService;
+import xyz.yawek.banking.service.cache.RecentPayments;
+import xyz.yawek.banking.service.cache.RecentPaymentsCache;
+import xyz.yawek.banking.service.fx.FxRateService;
+import xyz.yawek.banking.service.ledger.LedgerPosting;
+import xyz.yawek.banking.service.ledger.LedgerService;
+import xyz.yawek.banking.service.outbox.OutboxMessage;
+import xyz.yawek.banking.service.outbox.OutboxService;
+import xyz.yawek.banking.service.pipeline.PaymentPipeline;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
 
 @Service
 @Transactional
 public class PaymentService {
 
+    private static final Sort NEWEST_FIRST = Sort.by(Sort.Direction.DESC, "timestamp", "id");
+
     private final PaymentRepository repository;
+    private final UserRepository userRepository;
+    private final BalanceUpdateStrategy balanceUpdateStrategy;
+    private final TransactionTemplate transactionTemplate;
+    private final LedgerService ledgerService;
+    private final OutboxService outboxService;
+    private final RecentPaymentsCache recentPaymentsCache;
+    private final PaymentArchive paymentArchive;
+    private final FxRateService fxRateService;
+    private final CurrencyBalanceService currencyBalanceService;
+    private final ObjectProvider<PaymentPipeline> paymentPipeline;
+
+    @Value("${spring.data.rest.max-page-size}")
+    private int maxPageSize;
 
     @Autowired
-    public PaymentService(PaymentRepository repository) {
+    public PaymentService(
+            PaymentRepository repository,
+            UserRepository userRepository,
+            BalanceUpdateStrategy balanceUpdateStrategy,
+            TransactionTemplate transactionTemplate,
+            LedgerService ledgerService,
+            OutboxService outboxService,
+            RecentPaymentsCache recentPaymentsCache,
+            PaymentArchive paymentArchive,
+            FxRateService fxRateService,
+            CurrencyBalanceService currencyBalanceService,
+            ObjectProvider<PaymentPipeline> paymentPipeline) {
         this.repository = repository;
+        this.userRepository = userRepository;
+        this.balanceUpdateStrategy = balanceUpdateStrategy;
+        this.transactionTemplate = transactionTemplate;
+        this.ledgerService = ledgerService;
+        this.outboxService = outboxService;
+        this.recentPaymentsCache = recentPaymentsCache;
+        this.paymentArchive = paymentArchive;
+        this.fxRateService = fxRateService;
+        this.currencyBalanceService = currencyBalanceService;
+        this.paymentPipeline = paymentPipeline;
+    }
+
+    /**
+     * Transfers money between users using configured {@link BalanceUpdateStrategy}.
+     * Transaction is started by the strategy, so it can be retried if needed.
+     * @param sender user sending the money
+     * @param receiver user receiving the money
+     * @param amount amount to transfer
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public void makePayment(User sender, User receiver, Money amount) {
+        balanceUpdateStrategy.execute(() -> transactionTemplate.executeWithoutResult(status -> {
+            User currentSender = loadById(sender.getId());
+            User currentReceiver = loadById(receiver.getId());
+            balanceUpdateStrategy.transfer(currentSender, currentReceiver, amount);
+            Payment payment = repository.save(new Payment(currentSender, currentReceiver, amount));
+            ledgerService.record(new LedgerPosting(currentSender.getId(), currentReceiver.getId(),
+                    amount, LedgerEntry.Kind.PAYMENT, payment.getId()));
+            outboxService.append(OutboxMessage.paymentSent(payment.getId(),
+                    currentSender.getId(), currentReceiver.getId(), amount));
+            recentPaymentsCache.addAfterCommit(payment);
+        }));
+    }
+
+    /**
+     * Transfers money between balances of users in the given currencies, converted with
+     * the current exchange rates if they differ. Payments only in the base currency are
+     * made by the payment pipeline if enabled, otherwise by {@link #makePayment(User, User, Money)}.
+     * Only amounts in the base currency are recorded in the ledger, converted ones as
+     * exchanged with the bank's account.
+     * @param currency currency of the amount taken from the sender, {@code null} for the base currency
+     * @param targetCurrency currency the receiver gets the amount in, {@code null} for the same currency
+     * @throws UnsupportedCurrencyException if there is no exchange rate of any of the currencies
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public void makePayment(User sender, User receiver, Money amount, String currency, String targetCurrency) {
+        String baseCurrency = fxRateService.getBaseCurrency();
+        String from = fxRateService.resolve(currency);
+        String to = targetCurrency == null ? from : fxRateService.resolve(targetCurrency);
+        if (from.equals(baseCurrency) && to.equals(baseCurrency)) {
+            PaymentPipeline pipeline = paymentPipeline.getIfAvailable();
+            if (pipeline != null) pipeline.transfer(sender, receiver, amount);
+            else makePayment(sender, receiver, amount);
+            return;
+        }
+
+        Money received = fxRateService.convert(amount, from, to);
+        transactionTemplate.executeWithoutResult(status -> {
+            User currentSender = loadById(sender.getId());
+            User currentReceiver = loadById(receiver.getId());
+            currencyBalanceService.transfer(currentSender, from, amount, currentReceiver, to, received);
+            Payment payment = new Payment(currentSender, currentReceiver, amount);
+            payment.setCurrency(from.equals(baseCurrency) ? null : from);
+            if (!from.equals(to)) {
+                payment.setReceivedAmount(received);
+                payment.setReceivedCurrency(to.equals(baseCurrency) ? null : to);
+            }
+            repository.save(payment);
+            if (from.equals(baseCurrency)) {
+                ledgerService.record(new LedgerPosting(currentSender.getId(), LedgerService.BANK_ACCOUNT_ID,
+                        amount, LedgerEntry.Kind.PAYMENT, payment.getId()));
+            } else if (to.equals(baseCurrency)) {
+                ledgerService.record(new LedgerPosting(LedgerService.BANK_ACCOUNT_ID, currentReceiver.getId(),
+                        received, LedgerEntry.Kind.PAYMENT, payment.getId()));
+            }
+            outboxService.append(OutboxMessage.paymentSent(payment.getId(), currentSender.getId(),
+                    currentReceiver.getId(), amount, payment.getCurrency(),
+                    payment.getReceivedAmount(), payment.getReceivedCurrency()));
+            recentPaymentsCache.addAfterCommit(payment);
+        });
+    }
+
+    /**
+     * Gets page of user's payments, newest first unless sorted otherwise.
+     * First page is served from {@link RecentPaymentsCache} if it fits in it.
+     * Archived payments of the user are merged with the ones in the database,
+     * so the cost of a page then grows with its number.
+     */
+    public Page<PaymentView> getPageableByUser(Pageable pageable, User user) {
+        if (pageable.getSort().isUnsorted())
+            pageable = PageRequest.of(pageable.getPageNumber(), pageable.getPageSize(), NEWEST_FIRST);
+        if (pageable.getPageNumber() == 0 && pageable.getSort().equals(NEWEST_FIRST)
+                && pageable.getPageSize() <= recentPaymentsCache.getCapacity()) {
+            Optional<RecentPayments> recent = recentPaymentsCache.get(user.getId());
+            if (recent.isPresent()) {
+                List<PaymentView> payments = recent.get().getPayments();
+                return new PageImpl<>(payments.subList(0, Math.min(pageable.getPageSize(), payments.size())),
+                        pageable, recent.get().getTotal());
+            }
+        }
+        long archived = paymentArchive.countByUser(user.getId());
+        if (archived == 0) return repository.findViewsByUser(user.getId(), pageable);
+
+        int offset = (int) Math.min(pageable.getOffset(), Integer.MAX_VALUE - pageable.getPageSize());
+        int end = offset + pageable.getPageSize();
+        Page<PaymentView> live = repository.findViewsByUser(user.getId(),
+                PageRequest.of(0, end, pageable.getSort()));
+        List<PaymentView> archivedPayments = pageable.getSort().equals(NEWEST_FIRST)
+                ? paymentArchive.findByUserBefore(user.getId(), KeysetCursor.FIRST.getTimestamp(),
+                        KeysetCursor.FIRST.getId(), end)
+                : paymentArchive.findByUser(user.getId(), pageable.getSort(), end);
+        List<PaymentView> payments = merge(live.getContent(), archivedPayments,
+                PaymentArchive.comparator(pageable.getSort()), end);
+        return new PageImpl<>(payments.subList(Math.min(offset, payments.size()), payments.size()),
+                pageable, live.getTotalElements() + archived);
+    }
+
+    /**
+     * Gets user's payments older than the cursor, newest first.
+     * Unlike {@link #getPageableByUser(Pageable, User)}, cost does not grow with the position
+     * in the history and no count query is sent.
+     * @param cursor cursor of the previous page, empty for the first page
+     * @param size maximum number of payments, limited to the max page size
+     */
+    public CursorPage<PaymentView> getPageByUser(User user, String cursor, int size) {
+        KeysetCursor position = KeysetCursor.decode(cursor);
+        int limit = Math.max(1, Math.min(size, maxPageSize));
+        if (position == KeysetCursor.FIRST && limit <= recentPaymentsCache.getCapacity()) {
+            Optional<RecentPayments> recent = recentPaymentsCache.get(user.getId());
+            if (recent.isPresent()) {
+                List<PaymentView> payments = recent.get().getPayments();
+                if (recent.get().getTotal() <= limit) return new CursorPage<>(payments, null);
+                payments = payments.subList(0, limit);
+                PaymentView last = payments.get(limit - 1);
+                return new CursorPage<>(payments,
+                        new KeysetCursor(last.getTimestamp(), last.getId()).encode());
+            }
+        }
+        List<PaymentView> payments = merge(
+                repository.findViewsByUserBefore(
+                        user.getId(), position.getTimestamp(), position.getId(), limit + 1),
+                paymentArchive.findByUserBefore(
+                        user.getId(), position.getTimestamp(), position.getId(), limit + 1),
+                PaymentArchive.NEWEST_FIRST, limit + 1);
+
+        if (payments.size() <= limit) return new CursorPage<>(payments, null);
+        payments = payments.subList(0, limit);
+        PaymentView last = payments.get(limit - 1);
+        return new CursorPage<>(payments,
+                new KeysetCursor(last.getTimestamp(), last.getId()).encode());
     }
 
-    public void makePayment(User sender, User receiver, BigDecimal amount) {
-        if (sender.getBalance().compareTo(amount) < 0)
-            throw new NotEnoughBalanceException("Not enough balance");
-        sender.takeBalance(amount);
-        receiver.addBalance(amount);
-        repository.save(new Payment(sender, receiver, amount));
+    /**
+     * Merges two lists sorted in the given order, keeping at most the limit of first payments.
+     */
+    private List<PaymentView> merge(List<PaymentView> first, List<PaymentView> second,
+                                    Comparator<PaymentView> order, int limit) {
+        if (second.isEmpty()) return first.size() > limit ? first.subList(0, limit) : first;
+        List<PaymentView> merged = new ArrayList<>(Math.min(first.size() + second.size(), limit));
+        int i = 0;
+        int j = 0;
+        while (merged.size() < limit && (i < first.size() || j < second.size())) {
+            if (j == second.size() || i < first.size() && order.compare(first.get(i), second.get(j)) <= 0)
+                merged.add(first.get(i++));
+            else
+                merged.add(second.get(j++));
+        }
+        return merged;
     }
 
-    public Page<Payment> getPageableByUser(Pageable pageable, User user) {
-        return repository.findBySenderOrReceiver(user, user, pageable);
+    private User loadById(long id) {
+        return userRepository.findById(id)
+                .orElseThrow(() -> new UserNotFoundException("User not found"));
     }
 
 }
@@ -0,0 +1,191 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.rest.FileFormat;
+import xyz.yawek.banking.model.rest.PaymentLegResult;
+import xyz.yawek.banking.model.rest.PaymentRequest;
+import xyz.yawek.banking.model.rest.PayrollReport;
+import xyz.yawek.banking.service.fx.FxRateService;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Sends payments read from a payroll file. File is read line by line and sent
+ * in chunks through {@link BatchPaymentService}, so memory use does not depend
+ * on its size. Processing stops when sender's balance is not enough for a chunk.
+ */
+@Service
+@RequiredArgsConstructor
+public class PayrollService {
+
+    private static final int MAX_REPORTS = 100;
+    private static final String CSV_HEADER = "receiver,amount";
+
+    private final BatchPaymentService batchPaymentService;
+    private final Validator validator;
+    private final ObjectMapper objectMapper;
+    private final FxRateService fxRateService;
+    private final Map<String, PayrollReport> reports = Collections.synchronizedMap(
+            new LinkedHashMap<>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PayrollReport> eldest) {
+                    return size() > MAX_REPORTS;
+                }
+            });
+
+    @Value("${app.payment.payroll.chunk-size}")
+    private int chunkSize;
+
+    /**
+     * Reads payments from the input and sends them.
+     * @param sender user sending the money
+     * @param input payroll file, CSV with receiver and amount columns or NDJSON of payment requests
+     * @param format format of the file
+     * @return report of the finished payroll
+     */
+    public PayrollReport process(User sender, InputStream input, FileFormat format) throws IOException {
+        PayrollReport report = new PayrollReport(UUID.randomUUID().toString(), sender.getId());
+        reports.put(report.getId(), report);
+
+        List<PaymentRequest> chunk = new ArrayList<>(chunkSize);
+        long[] chunkLines = new long[chunkSize];
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                report.setLinesRead(lineNumber);
+                if (line.isBlank() || (format == FileFormat.CSV && lineNumber == 1
+                        && line.trim().equalsIgnoreCase(CSV_HEADER))) continue;
+
+                Optional<PaymentRequest> payment = parse(report, lineNumber, line, format);
+                if (payment.isEmpty()) continue;
+                chunkLines[chunk.size()] = lineNumber;
+                chunk.add(payment.get());
+                if (chunk.size() == chunkSize) send(sender, report, chunk, chunkLines);
+            }
+            if (!chunk.isEmpty()) send(sender, report, chunk, chunkLines);
+            report.setStatus(PayrollReport.Status.COMPLETED);
+        } catch (NotEnoughBalanceException e) {
+            report.setStatus(PayrollReport.Status.FAILED);
+            report.reject(chunkLines[0], "Not enough balance for payments starting at this line");
+        } catch (RuntimeException | IOException e) {
+            report.setStatus(PayrollReport.Status.FAILED);
+            throw e;
+        }
+        return report;
+    }
+
+    public List<PayrollReport> getReports(User sender) {
+        synchronized (reports) {
+            return reports.values().stream()
+                    .filter(report -> report.getSenderId() == sender.getId())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    public Optional<PayrollReport> getReport(User sender, String id) {
+        return Optional.ofNullable(reports.get(id))
+                .filter(report -> report.getSenderId() == sender.getId());
+    }
+
+    private Optional<PaymentRequest> parse(
+            PayrollReport report, long lineNumber, String line, FileFormat format) {
+        PaymentRequest payment;
+        try {
+            if (format == FileFormat.CSV) {
+                String[] columns = line.split(",", -1);
+                if (columns.length != 2) {
+                    report.reject(lineNumber, "Expected receiver and amount");
+                    return Optional.empty();
+                }
+                payment = new PaymentRequest();
+                payment.setReceiverEmail(columns[0].trim());
+                payment.setAmount(new BigDecimal(columns[1].trim()));
+            } else {
+                payment = objectMapper.readValue(line, PaymentRequest.class);
+            }
+        } catch (NumberFormatException | JsonProcessingException e) {
+            report.reject(lineNumber, "Malformed line");
+            return Optional.empty();
+        }
+
+        Set<ConstraintViolation<PaymentRequest>> violations = validator.validate(payment);
+        if (!violations.isEmpty()) {
+            report.reject(lineNumber, violations.stream()
+                    .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                    .collect(Collectors.joining(", ")));
+            return Optional.empty();
+        }
+        // Batch payments are only in the base currency, other lines would fail the whole chunk
+        if (!isBaseCurrency(payment.getCurrency()) || !isBaseCurrency(payment.getTargetCurrency())) {
+            report.reject(lineNumber, "Payments can only be made in the base currency");
+            return Optional.empty();
+        }
+        return Optional.of(payment);
+    }
+
+    private boolean isBaseCurrency(String currency) {
+        return currency == null || currency.equals(fxRateService.getBaseCurrency());
+    }
+
+    private void send(User sender, PayrollReport report,
+                      List<PaymentRequest> chunk, long[] chunkLines) {
+        List<PaymentLegResult> results = batchPaymentService.makePayments(sender, chunk);
+        BigDecimal sent = BigDecimal.ZERO;
+        long completed = 0;
+        for (PaymentLegResult result : results) {
+            if (result.getStatus() == PaymentLegResult.Status.COMPLETED) {
+                completed++;
+                sent = sent.add(result.getAmount());
+            } else {
+                report.reject(chunkLines[result.getIndex()], "Receiver not found");
+            }
+        }
+        report.setPaymentsCompleted(report.getPaymentsCompleted() + completed);
+        report.setAmountSent(report.getAmountSent().add(sent));
+        chunk.clear();
+    }
+
+}
@@ -24,10 +24,17 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import xyz.yawek.banking.exception.EmailConflictException;
 import xyz.yawek.banking.exception.UserNotFoundException;
+import xyz.yawek.banking.model.Money;
 import xyz.yawek.banking.model.User;
 import xyz.yawek.banking.model.rest.UserRequest;
 import xyz.yawek.banking.repository.UserRepository;
+import xyz.yawek.banking.service.balance.BalanceShardService;
+import xyz.yawek.banking.service.balance.CurrencyBalanceService;
+import xyz.yawek.banking.service.ledger.LedgerService;
 
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Map;
 import java.util.Optional;
 
 @Service
@@ -36,11 +43,22 @@ public class UserService {
 
     private final UserRepository userRepository;
     private final PasswordEncoder passwordEncoder;
+    private final BalanceShardService shardService;
+    private final LedgerService ledgerService;
+    private final CurrencyBalanceService currencyBalanceService;
 
     @Autowired
-    public UserService(UserRepository userRepository, PasswordEncoder passwordEncoder) {
+    public UserService(
+            UserRepository userRepository,
+            PasswordEncoder passwordEncoder,
+            BalanceShardService shardService,
+            LedgerService ledgerService,
+            CurrencyBalanceService currencyBalanceService) {
         this.userRepository = userRepository;
         this.passwordEncoder = passwordEncoder;
+        this.shardService = shardService;
+        this.ledgerService = ledgerService;
+        this.currencyBalanceService = currencyBalanceService;
     }
 
     public void registerUser(User user) {
@@ -55,6 +73,31 @@ public class UserService {
         return userOptional.get();
     }
 
+    /**
+     * @return user's balance, including its balance shards if enabled
+     */
+    public Money getBalance(User user) {
+        return shardService.getBalance(user);
+    }
+
+    /**
+     * @return user's balances by currency, the base currency first
+     */
+    public Map<String, Money> getBalances(User user) {
+        return currencyBalanceService.getBalances(user);
+    }
+
+    /**
+     * @return user's balance after all balance changes made up to the given time
+     */
+    public BigDecimal getBalanceAsOf(User user, LocalDateTime time) {
+        return ledgerService.getBalanceAsOf(user.getId(), time);
+    }
+
+    public void setBalanceShards(User user, int shards) {
+        shardService.setShards(user, shards);
+    }
+
     public User buildFromRequest(UserRequest userRequest) {
         return new User(userRequest.getEmail(),
                 passwordEncoder.encode(userRequest.getPassword()));
@@ -0,0 +1,217 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.archive;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import xyz.yawek.banking.model.projection.PaymentView;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Reads payments moved to segment files by {@link PaymentArchiver}.
+ * Segments with user's payments are found in the {@code payment_segment_users} table,
+ * recently read segments are kept decoded in memory.
+ */
+@Service
+public class PaymentArchive {
+
+    /**
+     * Newest first, the order of keyset pages.
+     */
+    public static final Comparator<PaymentView> NEWEST_FIRST = Comparator
+            .comparing(PaymentView::getTimestamp)
+            .thenComparingLong(PaymentView::getId)
+            .reversed();
+
+    private static final int EMAIL_CHUNK_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final Path directory;
+    private final Map<Long, PaymentSegment> segments;
+
+    public PaymentArchive(JdbcTemplate jdbcTemplate,
+                          NamedParameterJdbcTemplate namedJdbcTemplate,
+                          @Value("${app.payment.archive.path}") String directory,
+                          @Value("${app.payment.archive.cache-segments}") int cacheSegments) throws IOException {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.directory = Files.createDirectories(Path.of(directory));
+        this.segments = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PaymentSegment> eldest) {
+                return size() > cacheSegments;
+            }
+        };
+    }
+
+    /**
+     * @return comparator ordering payments like the database does for the sort
+     */
+    public static Comparator<PaymentView> comparator(Sort sort) {
+        Comparator<PaymentView> comparator = null;
+        for (Sort.Order order : sort) {
+            Comparator<PaymentView> property = switch (order.getProperty()) {
+                case "id" -> Comparator.comparingLong(PaymentView::getId);
+                case "timestamp" -> Comparator.comparing(PaymentView::getTimestamp);
+                case "amount" -> Comparator.comparing(PaymentView::getAmount);
+                case "counterparty" -> Comparator.comparing(PaymentView::getCounterparty,
+                        String.CASE_INSENSITIVE_ORDER);
+                case "direction" -> Comparator.comparing(view -> view.getDirection().name());
+                default -> null;
+            };
+            if (property == null) continue;
+            if (order.isDescending()) property = property.reversed();
+            comparator = comparator == null ? property : comparator.thenComparing(property);
+        }
+        return comparator == null ? NEWEST_FIRST : comparator;
+    }
+
+    public long countByUser(long userId) {
+        Long count = jdbcTemplate.queryForObject(
+                "select coalesce(sum(payments), 0) from payment_segment_users where user_id = ?",
+                Long.class, userId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Finds user's archived payments older than the given position, newest first.
+     * Segments are read newest first until no older segment can contain a closer payment.
+     */
+    public List<PaymentView> findByUserBefore(long userId, LocalDateTime timestamp, long id, int limit) {
+        List<ArchivedPayment> found = new ArrayList<>();
+        for (SegmentRef ref : findSegments(userId, "and s.min_timestamp <= ? order by s.max_timestamp desc",
+                Timestamp.valueOf(timestamp))) {
+            if (found.size() >= limit
+                    && ref.getMaxTimestamp().isBefore(found.get(limit - 1).getTimestamp())) break;
+            PaymentSegment segment = load(ref);
+            int[] rows = segment.rowsOf(userId);
+            int added = 0;
+            for (int i = rows.length - 1; i >= 0 && added < limit; i--) {
+                LocalDateTime rowTimestamp = segment.getTimestamp(rows[i]);
+                int order = rowTimestamp.compareTo(timestamp);
+                if (order > 0 || order == 0 && segment.getId(rows[i]) >= id) continue;
+                found.add(segment.view(rows[i], userId));
+                added++;
+            }
+            found.sort(NEWEST_FIRST);
+            if (found.size() > limit) found = new ArrayList<>(found.subList(0, limit));
+        }
+        return withCounterparties(found);
+    }
+
+    /**
+     * Finds user's first archived payments in the given order,
+     * reading all segments with user's payments.
+     */
+    public List<PaymentView> findByUser(long userId, Sort sort, int limit) {
+        List<ArchivedPayment> found = new ArrayList<>();
+        for (SegmentRef ref : findSegments(userId, "")) {
+            PaymentSegment segment = load(ref);
+            for (int row : segment.rowsOf(userId)) found.add(segment.view(row, userId));
+        }
+        List<PaymentView> views = new ArrayList<>(withCounterparties(found));
+        views.sort(comparator(sort));
+        return views.size() > limit ? views.subList(0, limit) : views;
+    }
+
+    /**
+     * Passes user's archived payments of the given direction to the consumer, oldest first.
+     */
+    public void forEachByUser(long userId, PaymentView.Direction direction, Consumer<PaymentView> consumer) {
+        for (SegmentRef ref : findSegments(userId, "order by s.min_timestamp, s.id")) {
+            PaymentSegment segment = load(ref);
+            List<ArchivedPayment> found = new ArrayList<>();
+            for (int row : segment.rowsOf(userId)) {
+                ArchivedPayment payment = segment.view(row, userId);
+                if (payment.getDirection() == direction) found.add(payment);
+            }
+            withCounterparties(found).forEach(consumer);
+        }
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    private List<SegmentRef> findSegments(long userId, String condition, Object... args) {
+        Object[] params = new Object[args.length + 1];
+        params[0] = userId;
+        System.arraycopy(args, 0, params, 1, args.length);
+        return jdbcTemplate.query(
+                "select s.id, s.file_name, s.max_timestamp from payment_segments s"
+                + " join payment_segment_users u on u.segment_id = s.id"
+                + " where u.user_id = ? " + condition,
+                (rs, i) -> new SegmentRef(rs.getLong(1), rs.getString(2),
+                        rs.getTimestamp(3).toLocalDateTime()),
+                params);
+    }
+
+    private PaymentSegment load(SegmentRef ref) {
+        synchronized (segments) {
+            PaymentSegment segment = segments.get(ref.getId());
+            if (segment != null) return segment;
+        }
+        PaymentSegment segment;
+        try {
+            segment = PaymentSegment.read(directory.resolve(ref.getFileName()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (segments) {
+            segments.put(ref.getId(), segment);
+        }
+        return segment;
+    }
+
+    private List<PaymentView> withCounterparties(List<ArchivedPayment> payments) {
+        Set<Long> ids = payments.stream().map(ArchivedPayment::getCounterpartyId).collect(Collectors.toSet());
+        Map<Long, String> emails = new HashMap<>(ids.size() * 2);
+        List<Long> idList = new ArrayList<>(ids);
+        for (int from = 0; from < idList.size(); from += EMAIL_CHUNK_SIZE) {
+            namedJdbcTemplate.query("select id, email from users where id in (:ids)",
+                    Map.of("ids", idList.subList(from, Math.min(from + EMAIL_CHUNK_SIZE, idList.size()))),
+                    rs -> {
+                        emails.put(rs.getLong(1), rs.getString(2));
+                    });
+        }
+        return payments.stream()
+                .map(payment -> (PaymentView) payment.withCounterparty(emails.get(payment.getCounterpartyId())))
+                .toList();
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.archive;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.service.rollup.PaymentRollupService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Moves payments older than the configured age from the {@code payments} table
+ * to compressed segment files, so the table and its indexes stay small.
+ * Only whole months are archived, and only payments already included in the rollups,
+ * which are not recomputed for archived months. Segments keep amounts in the base
+ * currency only, so payments in other currencies stay in the table.
+ */
+@Slf4j
+@Service
+public class PaymentArchiver {
+
+    private static final int DELETE_CHUNK_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final PaymentArchive archive;
+    private final PaymentRollupService rollupService;
+    private final int ageDays;
+    private final int segmentSize;
+
+    public PaymentArchiver(JdbcTemplate jdbcTemplate,
+                           NamedParameterJdbcTemplate namedJdbcTemplate,
+                           TransactionTemplate transactionTemplate,
+                           PaymentArchive archive,
+                           PaymentRollupService rollupService,
+                           @Value("${app.payment.archive.age-days}") int ageDays,
+                           @Value("${app.payment.archive.segment-size}") int segmentSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.archive = archive;
+        this.rollupService = rollupService;
+        this.ageDays = ageDays;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Writes segments of up to the configured size until no payment is old enough.
+     *
+     * @return number of archived payments
+     */
+    @Scheduled(fixedDelayString = "${app.payment.archive.interval}",
+            initialDelayString = "${app.payment.archive.interval}")
+    public int archive() {
+        LocalDateTime before = LocalDate.now().minusDays(ageDays).withDayOfMonth(1).atStartOfDay();
+        int archived = 0;
+        while (true) {
+            int written = archiveSegment(before);
+            archived += written;
+            if (written < segmentSize) break;
+        }
+        if (archived > 0) log.info("Archived {} payments from before {}", archived, before);
+        return archived;
+    }
+
+    private int archiveSegment(LocalDateTime before) {
+        List<Object[]> rows = jdbcTemplate.query(
+                "select id, sender_id, receiver_id, amount, timestamp from payments"
+                + " where timestamp < ? and id <= ? and currency is null and received_amount is null"
+                + " order by timestamp, id limit ?",
+                (rs, i) -> new Object[] { rs.getLong(1), rs.getLong(2), rs.getLong(3),
+                        rs.getBigDecimal(4).movePointRight(2).longValueExact(),
+                        rs.getTimestamp(5).toLocalDateTime() },
+                Timestamp.valueOf(before), rollupService.getFoldedPaymentId(), segmentSize);
+        if (rows.isEmpty()) return 0;
+
+        int size = rows.size();
+        long[] ids = new long[size];
+        long[] timestamps = new long[size];
+        long[] senders = new long[size];
+        long[] receivers = new long[size];
+        long[] amounts = new long[size];
+        for (int i = 0; i < size; i++) {
+            Object[] row = rows.get(i);
+            ids[i] = (long) row[0];
+            senders[i] = (long) row[1];
+            receivers[i] = (long) row[2];
+            amounts[i] = (long) row[3];
+            timestamps[i] = PaymentSegment.toMicros((LocalDateTime) row[4]);
+        }
+        PaymentSegment segment = new PaymentSegment(ids, timestamps, senders, receivers, amounts);
+        String fileName = "payments-" + ids[0] + "-" + ids[size - 1] + ".seg";
+        Path path = archive.getDirectory().resolve(fileName);
+        try {
+            segment.write(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                // Waits for a running rollup rebuild, which reads payments of unarchived months
+                rollupService.lockFoldedPaymentId();
+                long segmentId = insertSegment(fileName, size, (LocalDateTime) rows.get(0)[4],
+                        (LocalDateTime) rows.get(size - 1)[4], before);
+                List<Object[]> users = new ArrayList<>();
+                segment.countUsers().forEach((userId, count) ->
+                        users.add(new Object[] { userId, segmentId, count }));
+                jdbcTemplate.batchUpdate("insert into payment_segment_users (user_id, segment_id, payments)"
+                        + " values (?, ?, ?)", users);
+                int deleted = 0;
+                for (int from = 0; from < size; from += DELETE_CHUNK_SIZE) {
+                    List<Long> chunk = new ArrayList<>(DELETE_CHUNK_SIZE);
+                    for (int i = from; i < Math.min(from + DELETE_CHUNK_SIZE, size); i++) chunk.add(ids[i]);
+                    deleted += namedJdbcTemplate.update("delete from payments where id in (:ids)",
+                            Map.of("ids", chunk));
+                }
+                // Another instance archived some of the payments in the meantime
+                if (deleted != size) throw new IllegalStateException("Payments were archived concurrently");
+            });
+        } catch (RuntimeException e) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException deleteException) {
+                e.addSuppressed(deleteException);
+            }
+            throw e;
+        }
+        return size;
+    }
+
+    private long insertSegment(String fileName, int payments, LocalDateTime minTimestamp,
+                               LocalDateTime maxTimestamp, LocalDateTime archivedBefore) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(
+                    "insert into payment_segments (file_name, payments, min_timestamp, max_timestamp,"
+                    + " archived_before) values (?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            statement.setString(1, fileName);
+            statement.setInt(2, payments);
+            statement.setTimestamp(3, Timestamp.valueOf(minTimestamp));
+            statement.setTimestamp(4, Timestamp.valueOf(maxTimestamp));
+            statement.setTimestamp(5, Timestamp.valueOf(archivedBefore));
+            return statement;
+        }, keyHolder);
+        return Objects.requireNonNull(keyHolder.getKey()).longValue();
+    }
+
+}
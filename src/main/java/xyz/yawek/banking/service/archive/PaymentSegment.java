@@ -0,0 +1,231 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.archive;
+
+import xyz.yawek.banking.model.projection.PaymentView;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Archived payments ordered by timestamp and id, stored column by column.
+ * Every column is delta or varint encoded, so values of similar size and
+ * repeated users compress well, and the file is deflated as a whole.
+ * Segments are never modified once written.
+ */
+final class PaymentSegment {
+
+    private static final int MAGIC = 0x50534731;
+    private static final int BUFFER_SIZE = 65536;
+    private static final int[] NO_ROWS = new int[0];
+
+    private final long[] ids;
+    private final long[] timestamps;
+    private final long[] senders;
+    private final long[] receivers;
+    private final long[] amounts;
+    private final Map<Long, int[]> userRows;
+
+    /**
+     * @param timestamps microseconds since epoch, in ascending order
+     * @param amounts amounts in hundredths
+     */
+    PaymentSegment(long[] ids, long[] timestamps, long[] senders, long[] receivers, long[] amounts) {
+        this.ids = ids;
+        this.timestamps = timestamps;
+        this.senders = senders;
+        this.receivers = receivers;
+        this.amounts = amounts;
+        this.userRows = indexUsers();
+    }
+
+    static long toMicros(LocalDateTime timestamp) {
+        return timestamp.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + timestamp.getNano() / 1_000;
+    }
+
+    static PaymentSegment read(Path path) throws IOException {
+        Inflater inflater = new Inflater();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(Files.newInputStream(path), inflater, BUFFER_SIZE)))) {
+            if (input.readInt() != MAGIC) throw new IOException("Not a payment segment: " + path);
+            int size = input.readInt();
+            long[] ids = readDeltas(input, size);
+            long[] timestamps = readDeltas(input, size);
+            long[] senders = readValues(input, size);
+            long[] receivers = readValues(input, size);
+            long[] amounts = readValues(input, size);
+            return new PaymentSegment(ids, timestamps, senders, receivers, amounts);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes the segment to a temporary file synced to disk and moves it in place,
+     * so a segment file is either complete or missing.
+     */
+    void write(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(file, deflater, BUFFER_SIZE);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(deflated, BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeInt(size());
+            writeDeltas(output, ids);
+            writeDeltas(output, timestamps);
+            writeValues(output, senders);
+            writeValues(output, receivers);
+            writeValues(output, amounts);
+            output.flush();
+            deflated.finish();
+            file.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return rows of user's payments, oldest first
+     */
+    int[] rowsOf(long userId) {
+        return userRows.getOrDefault(userId, NO_ROWS);
+    }
+
+    Map<Long, Integer> countUsers() {
+        Map<Long, Integer> counts = new HashMap<>(userRows.size() * 2);
+        userRows.forEach((userId, rows) -> counts.put(userId, rows.length));
+        return counts;
+    }
+
+    long getId(int row) {
+        return ids[row];
+    }
+
+    LocalDateTime getTimestamp(int row) {
+        long micros = timestamps[row];
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+                Math.floorMod(micros, 1_000_000) * 1_000, ZoneOffset.UTC);
+    }
+
+    /**
+     * @return payment as seen by the user, without counterparty's email
+     */
+    ArchivedPayment view(int row, long userId) {
+        boolean sent = senders[row] == userId;
+        return new ArchivedPayment(ids[row],
+                sent ? PaymentView.Direction.SENT : PaymentView.Direction.RECEIVED,
+                sent ? receivers[row] : senders[row], null,
+                BigDecimal.valueOf(amounts[row], 2), getTimestamp(row));
+    }
+
+    private Map<Long, int[]> indexUsers() {
+        Map<Long, Integer> counts = new HashMap<>();
+        for (int row = 0; row < size(); row++) {
+            counts.merge(senders[row], 1, Integer::sum);
+            // Payment to self is listed once
+            if (receivers[row] != senders[row]) counts.merge(receivers[row], 1, Integer::sum);
+        }
+        Map<Long, int[]> rows = new HashMap<>(counts.size() * 2);
+        Map<Long, Integer> filled = new HashMap<>(counts.size() * 2);
+        counts.forEach((userId, count) -> rows.put(userId, new int[count]));
+        for (int row = 0; row < size(); row++) {
+            addRow(rows, filled, senders[row], row);
+            if (receivers[row] != senders[row]) addRow(rows, filled, receivers[row], row);
+        }
+        return rows;
+    }
+
+    private static void addRow(Map<Long, int[]> rows, Map<Long, Integer> filled, long userId, int row) {
+        int position = filled.merge(userId, 1, Integer::sum) - 1;
+        rows.get(userId)[position] = row;
+    }
+
+    private static void writeDeltas(DataOutputStream output, long[] values) throws IOException {
+        long previous = 0;
+        for (long value : values) {
+            long delta = value - previous;
+            writeVarLong(output, (delta << 1) ^ (delta >> 63));
+            previous = value;
+        }
+    }
+
+    private static void writeValues(DataOutputStream output, long[] values) throws IOException {
+        for (long value : values) writeVarLong(output, value);
+    }
+
+    private static long[] readDeltas(InputStream input, int size) throws IOException {
+        long[] values = new long[size];
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            long zigzag = readVarLong(input);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    private static long[] readValues(InputStream input, int size) throws IOException {
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++) values[i] = readVarLong(input);
+        return values;
+    }
+
+    private static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long readVarLong(InputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.read();
+            if (b < 0) throw new IOException("Payment segment is truncated");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Payment segment is corrupted");
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.balance;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.yawek.banking.model.BalanceShard;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.repository.BalanceShardRepository;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Splits balance of accounts receiving many payments into shard rows.
+ * Credits are added to one of the shards instead of the user's row,
+ * debits first move all shards back to the user's balance.
+ * <p>
+ * To avoid deadlocks, rows of sharded users are locked before any other
+ * user rows, which are locked before shard rows.
+ */
+@Service
+@Transactional
+@RequiredArgsConstructor
+public class BalanceShardService {
+
+    private final BalanceShardRepository repository;
+    private final EntityManager entityManager;
+
+    public boolean isSharded(User user) {
+        return user.getBalanceShards() > 0;
+    }
+
+    /**
+     * Locks rows of sharded users taking part in the transfer. Sender is locked
+     * exclusively since its shards will be swept, receiver is locked in share mode,
+     * so concurrent credits do not block each other. Receiver whose sharding was
+     * disabled meanwhile is locked exclusively, since its row will be credited.
+     */
+    public void lockSharded(User sender, User receiver) {
+        if (sender.getId() == receiver.getId()) {
+            lockSharded(sender, true);
+        } else if (sender.getId() < receiver.getId()) {
+            lockSharded(sender, true);
+            lockSharded(receiver, false);
+        } else {
+            lockSharded(receiver, false);
+            lockSharded(sender, true);
+        }
+    }
+
+    /**
+     * Locks rows of sharded users taking part in transfers of one sender to many
+     * receivers, in ascending id order. Lock modes are the same as in
+     * {@link #lockSharded(User, User)}.
+     */
+    public void lockSharded(User sender, Collection<User> receivers) {
+        NavigableMap<Long, User> users = new TreeMap<>();
+        receivers.forEach(receiver -> users.put(receiver.getId(), receiver));
+        users.put(sender.getId(), sender);
+        users.values().forEach(user -> lockSharded(user, user.getId() == sender.getId()));
+    }
+
+    /**
+     * Moves balance of all user's shards to the user's row.
+     * @return amount moved, to be added to the user's balance by the caller
+     */
+    public Money sweep(User user) {
+        if (!isSharded(user)) return Money.ZERO;
+        Money sum = Money.valueOf(repository.sumBalanceForUpdate(user.getId()));
+        if (sum.signum() != 0) repository.clearBalance(user.getId());
+        return sum;
+    }
+
+    /**
+     * Adds amount to one of the receiver's shards chosen by hashing the payment.
+     * @return false if the receiver has no shards and amount must be added to its balance
+     */
+    public boolean credit(User receiver, User sender, Money amount) {
+        if (!isSharded(receiver)) return false;
+        int slot = Math.floorMod(
+                Objects.hash(sender.getId(), amount, System.nanoTime()),
+                receiver.getBalanceShards());
+        return repository.addBalance(receiver.getId(), slot, amount) > 0;
+    }
+
+    /**
+     * @return user's balance including all of its shards
+     */
+    public Money getBalance(User user) {
+        if (!isSharded(user)) return user.getBalance();
+        return Money.valueOf(repository.getTotalBalance(user.getId()));
+    }
+
+    /**
+     * Changes number of user's balance shards, 0 disables sharding.
+     * Current shards are swept to the user's balance first.
+     */
+    public void setShards(User user, int shards) {
+        User current = entityManager.find(User.class, user.getId());
+        entityManager.refresh(current, LockModeType.PESSIMISTIC_WRITE);
+        current.addBalance(sweep(current));
+        repository.deleteByUserId(current.getId());
+        IntStream.range(0, shards)
+                .mapToObj(slot -> new BalanceShard(current, slot))
+                .forEach(repository::save);
+        current.setBalanceShards(shards);
+    }
+
+    private void lockSharded(User user, boolean exclusive) {
+        if (!isSharded(user)) return;
+        entityManager.refresh(user, exclusive
+                ? LockModeType.PESSIMISTIC_WRITE
+                : LockModeType.PESSIMISTIC_READ);
+        // Upgrade before any other row is locked, not once the credit falls back to the row
+        if (!exclusive && !isSharded(user))
+            entityManager.refresh(user, LockModeType.PESSIMISTIC_WRITE);
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.balance;
+
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+
+
+/**
+ * Moves money between two accounts. Implementation is selected
+ * by the {@code app.payment.balance-update-strategy} property.
+ */
+public interface BalanceUpdateStrategy {
+
+    /**
+     * Takes amount from the sender's balance and adds it to the receiver's balance.
+     * Must be called within a transaction with entities managed by it.
+     * @param sender user sending the money
+     * @param receiver user receiving the money
+     * @param amount amount to transfer
+     * @throws NotEnoughBalanceException if sender's balance is lower than amount
+     */
+    void transfer(User sender, User receiver, Money amount);
+
+    /**
+     * Runs the transaction performing the transfer. Strategies that
+     * may fail on commit can override it to retry the transaction.
+     * @param transaction transaction calling {@link #transfer(User, User, Money)}
+     */
+    default void execute(Runnable transaction) {
+        transaction.run();
+    }
+
+}
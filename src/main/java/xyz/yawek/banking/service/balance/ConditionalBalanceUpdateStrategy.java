@@ -0,0 +1,74 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.balance;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.repository.UserRepository;
+
+
+/**
+ * Changes balances with single {@code UPDATE} statements, the debit
+ * succeeds only if the sender's balance is high enough. Nothing is read
+ * beforehand, so balances of passed entities are not refreshed.
+ */
+@Component
+@ConditionalOnProperty(
+        name = "app.payment.balance-update-strategy",
+        havingValue = "conditional")
+@RequiredArgsConstructor
+public class ConditionalBalanceUpdateStrategy implements BalanceUpdateStrategy {
+
+    private final UserRepository userRepository;
+    private final BalanceShardService shardService;
+
+    @Override
+    public void transfer(User sender, User receiver, Money amount) {
+        shardService.lockSharded(sender, receiver);
+        // Keep lock order of BalanceShardService and ascending id order of user rows,
+        // debit failure rolls back the credit
+        boolean creditFirst = !shardService.isSharded(receiver)
+                && (shardService.isSharded(sender) || receiver.getId() < sender.getId());
+        if (creditFirst) {
+            addBalance(sender, receiver, amount);
+            takeBalance(sender, amount);
+        } else {
+            takeBalance(sender, amount);
+            addBalance(sender, receiver, amount);
+        }
+    }
+
+    private void addBalance(User sender, User receiver, Money amount) {
+        if (!shardService.credit(receiver, sender, amount))
+            userRepository.addBalance(receiver.getId(), amount);
+    }
+
+    private void takeBalance(User sender, Money amount) {
+        Money swept = shardService.sweep(sender);
+        if (swept.signum() != 0)
+            userRepository.addBalance(sender.getId(), swept);
+        if (userRepository.takeBalanceIfSufficient(sender.getId(), amount) == 0)
+            throw new NotEnoughBalanceException("Not enough balance");
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.balance;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.CurrencyBalance;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.repository.CurrencyBalanceRepository;
+import xyz.yawek.banking.repository.UserRepository;
+import xyz.yawek.banking.service.fx.FxRateService;
+import xyz.yawek.banking.service.pipeline.PaymentPipeline;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Changes balances in any currency. Balances in the base currency are kept
+ * in user rows and their shards, other ones in {@code currency_balances}.
+ * All changes are single conditional {@code UPDATE} statements, like in
+ * {@link ConditionalBalanceUpdateStrategy}.
+ * <p>
+ * To avoid deadlocks, rows are locked in the order used by {@link BalanceShardService}
+ * with currency balances locked after user rows and before shard rows.
+ */
+@Service
+@Transactional
+@RequiredArgsConstructor
+public class CurrencyBalanceService {
+
+    private final UserRepository userRepository;
+    private final CurrencyBalanceRepository repository;
+    private final BalanceShardService shardService;
+    private final FxRateService fxRateService;
+    private final ObjectProvider<PaymentPipeline> paymentPipeline;
+
+    /**
+     * Debits the sender in one currency and credits the receiver in another.
+     * @param debit amount taken from the sender's balance in the sender's currency
+     * @param credit amount added to the receiver's balance in the receiver's currency
+     * @throws NotEnoughBalanceException if sender's balance in its currency is too low
+     */
+    public void transfer(User sender, String senderCurrency, Money debit,
+                         User receiver, String receiverCurrency, Money credit) {
+        // Payments in the pipeline must not spend the same base balance
+        PaymentPipeline pipeline = paymentPipeline.getIfAvailable();
+        if (pipeline != null && isBase(senderCurrency)) pipeline.hold(sender.getId(), debit);
+        shardService.lockSharded(sender, receiver);
+        int debitOrder = lockOrder(sender, senderCurrency);
+        int creditOrder = lockOrder(receiver, receiverCurrency);
+        if (creditOrder < debitOrder || (creditOrder == debitOrder && receiver.getId() < sender.getId())) {
+            addBalance(receiver, receiverCurrency, sender, credit);
+            takeBalance(sender, senderCurrency, debit);
+        } else {
+            takeBalance(sender, senderCurrency, debit);
+            addBalance(receiver, receiverCurrency, sender, credit);
+        }
+    }
+
+    /**
+     * Adds amount to the user's balance in the currency.
+     */
+    public void credit(User user, String currency, Money amount) {
+        addBalance(user, currency, user, amount);
+    }
+
+    /**
+     * @return user's balances by currency, the base currency first
+     */
+    public Map<String, Money> getBalances(User user) {
+        Map<String, Money> balances = new LinkedHashMap<>();
+        balances.put(fxRateService.getBaseCurrency(), shardService.getBalance(user));
+        for (CurrencyBalance balance : repository.findByUserIdOrderByCurrency(user.getId()))
+            balances.put(balance.getCurrency(), balance.getBalance());
+        return balances;
+    }
+
+    private int lockOrder(User user, String currency) {
+        if (!isBase(currency)) return 1;
+        return shardService.isSharded(user) ? 2 : 0;
+    }
+
+    private void addBalance(User receiver, String currency, User sender, Money amount) {
+        if (!isBase(currency)) {
+            repository.addBalance(receiver.getId(), currency, amount.toBigDecimal());
+            return;
+        }
+        PaymentPipeline pipeline = paymentPipeline.getIfAvailable();
+        if (pipeline != null) pipeline.credit(receiver.getId(), amount);
+        if (!shardService.credit(receiver, sender, amount))
+            userRepository.addBalance(receiver.getId(), amount);
+    }
+
+    private void takeBalance(User sender, String currency, Money amount) {
+        int updated;
+        if (!isBase(currency)) {
+            updated = repository.takeBalanceIfSufficient(sender.getId(), currency, amount);
+        } else {
+            Money swept = shardService.sweep(sender);
+            if (swept.signum() != 0)
+                userRepository.addBalance(sender.getId(), swept);
+            updated = userRepository.takeBalanceIfSufficient(sender.getId(), amount);
+        }
+        if (updated == 0) throw new NotEnoughBalanceException("Not enough balance");
+    }
+
+    private boolean isBase(String currency) {
+        return currency.equals(fxRateService.getBaseCurrency());
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.balance;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import xyz.yawek.banking.exception.BalanceUpdateConflictException;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+
+import javax.persistence.EntityManager;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Changes balances without locking and relies on {@link User#getVersion()}
+ * to detect concurrent modification on commit. Conflicting transactions are
+ * retried with randomized exponential backoff.
+ */
+@Component
+@ConditionalOnProperty(
+        name = "app.payment.balance-update-strategy",
+        havingValue = "optimistic")
+public class OptimisticBalanceUpdateStrategy implements BalanceUpdateStrategy {
+
+    private final EntityManager entityManager;
+    private final BalanceShardService shardService;
+    private final int maxAttempts;
+    private final long backoff;
+
+    @Autowired
+    public OptimisticBalanceUpdateStrategy(
+            EntityManager entityManager,
+            BalanceShardService shardService,
+            @Value("${app.payment.optimistic.max-attempts}") int maxAttempts,
+            @Value("${app.payment.optimistic.backoff}") long backoff) {
+        this.entityManager = entityManager;
+        this.shardService = shardService;
+        this.maxAttempts = maxAttempts;
+        this.backoff = backoff;
+    }
+
+    @Override
+    public void transfer(User sender, User receiver, Money amount) {
+        shardService.lockSharded(sender, receiver);
+        refresh(sender);
+        refresh(receiver);
+
+        sender.addBalance(shardService.sweep(sender));
+        if (sender.getBalance().compareTo(amount) < 0)
+            throw new NotEnoughBalanceException("Not enough balance");
+        sender.takeBalance(amount);
+        if (!shardService.credit(receiver, sender, amount))
+            receiver.addBalance(amount);
+    }
+
+    @Override
+    public void execute(Runnable transaction) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transaction.run();
+                return;
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= maxAttempts)
+                    throw new BalanceUpdateConflictException(
+                            "Balance update failed after " + attempt + " attempts", e);
+                sleep(attempt);
+            }
+        }
+    }
+
+    private void refresh(User user) {
+        // Sharded users were already reloaded with a lock
+        if (!shardService.isSharded(user))
+            entityManager.refresh(user);
+    }
+
+    private void sleep(int attempt) {
+        long maxDelay = backoff << Math.min(attempt - 1, 10);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BalanceUpdateConflictException(e);
+        }
+    }
+
+}
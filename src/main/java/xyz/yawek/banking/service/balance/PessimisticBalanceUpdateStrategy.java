@@ -0,0 +1,74 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.balance;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+
+/**
+ * Locks both rows with {@code SELECT ... FOR UPDATE} before changing balances.
+ * Rows are always locked in ascending id order, so two opposite transfers
+ * cannot deadlock each other. Rows of sharded users are locked by
+ * {@link BalanceShardService} beforehand.
+ */
+@Component
+@ConditionalOnProperty(
+        name = "app.payment.balance-update-strategy",
+        havingValue = "pessimistic",
+        matchIfMissing = true)
+@RequiredArgsConstructor
+public class PessimisticBalanceUpdateStrategy implements BalanceUpdateStrategy {
+
+    private final EntityManager entityManager;
+    private final BalanceShardService shardService;
+
+    @Override
+    public void transfer(User sender, User receiver, Money amount) {
+        shardService.lockSharded(sender, receiver);
+        if (sender.getId() <= receiver.getId()) {
+            lock(sender);
+            lock(receiver);
+        } else {
+            lock(receiver);
+            lock(sender);
+        }
+
+        sender.addBalance(shardService.sweep(sender));
+        if (sender.getBalance().compareTo(amount) < 0)
+            throw new NotEnoughBalanceException("Not enough balance");
+        sender.takeBalance(amount);
+        if (!shardService.credit(receiver, sender, amount))
+            receiver.addBalance(amount);
+    }
+
+    private void lock(User user) {
+        if (shardService.isSharded(user)) return;
+        // Refresh instead of a locking query, so state of an entity
+        // already present in the persistence context is reloaded too
+        entityManager.refresh(user, LockModeType.PESSIMISTIC_WRITE);
+    }
+
+}
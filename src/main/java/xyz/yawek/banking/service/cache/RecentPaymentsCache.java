@@ -0,0 +1,298 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.cache;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.model.Payment;
+import xyz.yawek.banking.model.projection.PaymentView;
+import xyz.yawek.banking.model.rest.CacheStats;
+import xyz.yawek.banking.model.rest.KeysetCursor;
+import xyz.yawek.banking.repository.PaymentRepository;
+import xyz.yawek.banking.service.archive.PaymentArchive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the latest payments of recently active users in memory, in a ring buffer per user.
+ * Payments are added after their transaction commits. Least recently used users are
+ * evicted when the estimated size of the cache exceeds its memory budget.
+ */
+@Component
+public class RecentPaymentsCache {
+
+    private static final Comparator<PaymentView> NEWEST_FIRST =
+            Comparator.comparing(PaymentView::getTimestamp)
+                    .thenComparingLong(PaymentView::getId)
+                    .reversed();
+    // Rough size of a cached payment without its counterparty email
+    private static final int PAYMENT_BYTES = 120;
+    private static final int USER_BYTES = 128;
+
+    private final PaymentRepository repository;
+    private final PaymentArchive archive;
+    private final TransactionTemplate transactionTemplate;
+    private final int capacity;
+    private final long maxBytes;
+    private final Map<Long, UserPayments> users = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Autowired
+    public RecentPaymentsCache(
+            PaymentRepository repository,
+            PaymentArchive archive,
+            TransactionTemplate transactionTemplate,
+            @Value("${app.payment.recent-cache.capacity}") int capacity,
+            @Value("${app.payment.recent-cache.max-bytes}") long maxBytes) {
+        this.repository = repository;
+        this.archive = archive;
+        this.transactionTemplate = transactionTemplate;
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets user's latest payments, loading them if the user is not cached.
+     * @return empty if the user's payments are being loaded by another thread
+     */
+    public Optional<RecentPayments> get(long userId) {
+        UserPayments entry;
+        boolean load = false;
+        synchronized (users) {
+            entry = users.get(userId);
+            if (entry == null) {
+                entry = new UserPayments();
+                users.put(userId, entry);
+                bytes.addAndGet(USER_BYTES);
+                load = true;
+            }
+        }
+        if (!load) {
+            Optional<RecentPayments> recent = entry.snapshot();
+            (recent.isPresent() ? hits : misses).incrementAndGet();
+            return recent;
+        }
+
+        misses.incrementAndGet();
+        RecentPayments loaded;
+        try {
+            // All queries see the same snapshot, so the count matches the payments
+            loaded = transactionTemplate.execute(status -> load(userId));
+        } catch (RuntimeException e) {
+            invalidate(userId);
+            throw e;
+        }
+        synchronized (users) {
+            long added = entry.load(loaded.getPayments(), loaded.getTotal());
+            if (users.get(userId) == entry) bytes.addAndGet(added);
+        }
+        evictOverBudget();
+        return entry.snapshot();
+    }
+
+    private RecentPayments load(long userId) {
+        List<PaymentView> payments = repository.findViewsByUserBefore(userId,
+                KeysetCursor.FIRST.getTimestamp(), KeysetCursor.FIRST.getId(), capacity);
+        long archived = archive.countByUser(userId);
+        if (archived > 0) {
+            payments = new ArrayList<>(payments);
+            payments.addAll(archive.findByUserBefore(userId,
+                    KeysetCursor.FIRST.getTimestamp(), KeysetCursor.FIRST.getId(), capacity));
+            payments.sort(NEWEST_FIRST);
+            if (payments.size() > capacity) payments = payments.subList(0, capacity);
+        }
+        return new RecentPayments(payments, repository.countByUser(userId) + archived);
+    }
+
+    /**
+     * Adds the payment to its users once the current transaction commits.
+     */
+    public void addAfterCommit(Payment payment) {
+        PaymentView sent = new CachedPayment(payment.getId(), PaymentView.Direction.SENT,
+                payment.getReceiver().getEmail(), payment.getAmount().toBigDecimal(),
+                payment.getCurrency(), payment.getTimestamp());
+        PaymentView received = payment.getReceivedAmount() == null
+                ? new CachedPayment(payment.getId(), PaymentView.Direction.RECEIVED,
+                        payment.getSender().getEmail(), payment.getAmount().toBigDecimal(),
+                        payment.getCurrency(), payment.getTimestamp())
+                : new CachedPayment(payment.getId(), PaymentView.Direction.RECEIVED,
+                        payment.getSender().getEmail(), payment.getReceivedAmount().toBigDecimal(),
+                        payment.getReceivedCurrency(), payment.getTimestamp());
+        long senderId = payment.getSender().getId();
+        long receiverId = payment.getReceiver().getId();
+        afterCommit(() -> {
+            add(senderId, sent);
+            if (receiverId != senderId) add(receiverId, received);
+            evictOverBudget();
+        });
+    }
+
+    /**
+     * Removes the users once the current transaction commits,
+     * for payments made without {@link #addAfterCommit(Payment)}.
+     */
+    public void invalidateAfterCommit(Collection<Long> userIds) {
+        Set<Long> ids = new HashSet<>(userIds);
+        afterCommit(() -> ids.forEach(this::invalidate));
+    }
+
+    public void invalidate(long userId) {
+        synchronized (users) {
+            UserPayments removed = users.remove(userId);
+            if (removed != null) bytes.addAndGet(-removed.getBytes() - USER_BYTES);
+        }
+    }
+
+    public CacheStats getStats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long requests = hitCount + missCount;
+        int userCount;
+        synchronized (users) {
+            userCount = users.size();
+        }
+        return new CacheStats(hitCount, missCount,
+                requests == 0 ? 0 : (double) hitCount / requests,
+                evictions.get(), userCount, bytes.get());
+    }
+
+    private void add(long userId, PaymentView payment) {
+        synchronized (users) {
+            // Users not cached load the payment from the database when requested
+            UserPayments entry = users.get(userId);
+            if (entry != null) bytes.addAndGet(entry.add(payment));
+        }
+    }
+
+    private void evictOverBudget() {
+        if (bytes.get() <= maxBytes) return;
+        synchronized (users) {
+            Iterator<UserPayments> iterator = users.values().iterator();
+            while (bytes.get() > maxBytes && iterator.hasNext()) {
+                UserPayments entry = iterator.next();
+                iterator.remove();
+                bytes.addAndGet(-entry.getBytes() - USER_BYTES);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private class UserPayments {
+
+        private final PaymentView[] ring = new PaymentView[capacity];
+        private final List<PaymentView> pending = new ArrayList<>();
+        private int head;
+        private int size;
+        private long total;
+        private long bytes;
+        private boolean loaded;
+
+        private synchronized long load(List<PaymentView> payments, long count) {
+            long before = bytes;
+            Set<Long> loadedIds = new HashSet<>();
+            payments.forEach(payment -> loadedIds.add(payment.getId()));
+            List<PaymentView> merged = new ArrayList<>(payments);
+            total = count;
+            // Payments committed after the queries started
+            for (PaymentView payment : pending) {
+                if (loadedIds.add(payment.getId())) {
+                    merged.add(payment);
+                    total++;
+                }
+            }
+            pending.clear();
+            merged.sort(NEWEST_FIRST.reversed());
+            merged.forEach(this::push);
+            loaded = true;
+            return bytes - before;
+        }
+
+        private synchronized long add(PaymentView payment) {
+            long before = bytes;
+            if (!loaded) {
+                pending.add(payment);
+            } else {
+                push(payment);
+                total++;
+            }
+            return bytes - before;
+        }
+
+        private void push(PaymentView payment) {
+            PaymentView replaced = ring[head];
+            if (replaced != null) bytes -= sizeOf(replaced);
+            ring[head] = payment;
+            bytes += sizeOf(payment);
+            head = (head + 1) % capacity;
+            if (size < capacity) size++;
+        }
+
+        private synchronized Optional<RecentPayments> snapshot() {
+            if (!loaded) return Optional.empty();
+            List<PaymentView> payments = new ArrayList<>(size);
+            for (int i = 1; i <= size; i++)
+                payments.add(ring[Math.floorMod(head - i, capacity)]);
+            return Optional.of(new RecentPayments(payments, total));
+        }
+
+        private synchronized long getBytes() {
+            return bytes;
+        }
+
+        private long sizeOf(PaymentView payment) {
+            return PAYMENT_BYTES + 2L * payment.getCounterparty().length();
+        }
+
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.fx;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Reads rates from a properties file with lines like {@code EUR=0.92}.
+ * A missing file means that only the base currency is supported.
+ */
+@Component
+@ConditionalOnProperty(name = "app.fx.source", havingValue = "file", matchIfMissing = true)
+public class FileFxRateSource implements FxRateSource {
+
+    private final Path path;
+
+    public FileFxRateSource(@Value("${app.fx.file-path}") String path) {
+        this.path = Path.of(path);
+    }
+
+    @Override
+    public Map<String, BigDecimal> load() throws IOException {
+        if (!Files.exists(path)) return Map.of();
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, BigDecimal> rates = new HashMap<>();
+        for (String currency : properties.stringPropertyNames()) {
+            try {
+                rates.put(currency.trim(), new BigDecimal(properties.getProperty(currency).trim()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid rate of " + currency + " in " + path, e);
+            }
+        }
+        return rates;
+    }
+
+}
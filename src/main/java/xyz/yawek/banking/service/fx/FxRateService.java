@@ -0,0 +1,100 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.fx;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xyz.yawek.banking.exception.UnsupportedCurrencyException;
+import xyz.yawek.banking.model.Money;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+/**
+ * Holds the current {@link FxRateTable}. Refreshed rates are loaded into a new table
+ * which then replaces the previous one, so conversions never wait for a refresh
+ * and always see rates of a single load.
+ */
+@Service
+@Slf4j
+public class FxRateService {
+
+    private final FxRateSource source;
+    private final String baseCurrency;
+    private volatile FxRateTable table;
+
+    /**
+     * @throws IOException if the initial rates could not be loaded
+     */
+    public FxRateService(FxRateSource source,
+                         @Value("${app.fx.base-currency}") String baseCurrency) throws IOException {
+        this.source = source;
+        this.baseCurrency = baseCurrency;
+        this.table = load();
+    }
+
+    /**
+     * Replaces the table with rates loaded from the source,
+     * the previous table is kept if they could not be loaded.
+     * @return table in use after the refresh
+     */
+    @Scheduled(fixedDelayString = "${app.fx.refresh-interval}",
+            initialDelayString = "${app.fx.refresh-interval}")
+    public FxRateTable refresh() {
+        try {
+            table = load();
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Could not refresh exchange rates, keeping rates loaded at {}", table.getLoadedAt(), e);
+        }
+        return table;
+    }
+
+    public FxRateTable getTable() {
+        return table;
+    }
+
+    public String getBaseCurrency() {
+        return baseCurrency;
+    }
+
+    /**
+     * @param currency ISO 4217 code, or {@code null} for the base currency
+     * @return code of the currency
+     * @throws UnsupportedCurrencyException if there is no rate of the currency
+     */
+    public String resolve(String currency) {
+        if (currency == null || currency.equals(baseCurrency)) return baseCurrency;
+        if (!table.supports(currency)) throw new UnsupportedCurrencyException("Unsupported currency " + currency);
+        return currency;
+    }
+
+    /**
+     * @see FxRateTable#convert(Money, String, String)
+     */
+    public Money convert(Money amount, String from, String to) {
+        return table.convert(amount, from, to);
+    }
+
+    private FxRateTable load() throws IOException {
+        return new FxRateTable(baseCurrency, source.load(), LocalDateTime.now());
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.fx;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import xyz.yawek.banking.exception.UnsupportedCurrencyException;
+import xyz.yawek.banking.model.Money;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of exchange rates. Rates between every pair of currencies
+ * are computed when the table is built, so conversion is a lookup and a multiplication.
+ */
+@Getter
+public final class FxRateTable {
+
+    private static final Pattern CURRENCY_CODE = Pattern.compile("[A-Z]{3}");
+
+    private final String baseCurrency;
+    /**
+     * Units of each currency worth one unit of the base currency.
+     */
+    private final Map<String, BigDecimal> rates;
+    private final LocalDateTime loadedAt;
+    @Getter(AccessLevel.NONE)
+    private final Map<String, Map<String, BigDecimal>> crossRates;
+
+    /**
+     * @throws IllegalArgumentException if a currency code or rate is invalid
+     */
+    public FxRateTable(String baseCurrency, Map<String, BigDecimal> rates, LocalDateTime loadedAt) {
+        Map<String, BigDecimal> allRates = new HashMap<>(rates);
+        BigDecimal baseRate = allRates.putIfAbsent(baseCurrency, BigDecimal.ONE);
+        if (baseRate != null && baseRate.compareTo(BigDecimal.ONE) != 0)
+            throw new IllegalArgumentException("Rate of the base currency must be 1");
+        allRates.forEach((currency, rate) -> {
+            if (!CURRENCY_CODE.matcher(currency).matches())
+                throw new IllegalArgumentException("Invalid currency code " + currency);
+            if (rate.signum() <= 0)
+                throw new IllegalArgumentException("Rate of " + currency + " must be positive");
+        });
+
+        Map<String, Map<String, BigDecimal>> crossRates = new HashMap<>();
+        allRates.forEach((from, fromRate) -> {
+            Map<String, BigDecimal> fromRates = new HashMap<>();
+            allRates.forEach((to, toRate) -> fromRates.put(to, toRate.divide(fromRate, MathContext.DECIMAL64)));
+            crossRates.put(from, Map.copyOf(fromRates));
+        });
+        this.baseCurrency = baseCurrency;
+        this.rates = Map.copyOf(allRates);
+        this.loadedAt = loadedAt;
+        this.crossRates = Map.copyOf(crossRates);
+    }
+
+    public boolean supports(String currency) {
+        return rates.containsKey(currency);
+    }
+
+    /**
+     * @return units of the target currency worth one unit of the source currency
+     * @throws UnsupportedCurrencyException if any of the currencies has no rate
+     */
+    public BigDecimal getRate(String from, String to) {
+        Map<String, BigDecimal> fromRates = crossRates.get(from);
+        BigDecimal rate = fromRates != null ? fromRates.get(to) : null;
+        if (rate == null) throw new UnsupportedCurrencyException("No exchange rate from " + from + " to " + to);
+        return rate;
+    }
+
+    /**
+     * Converts the amount, rounding half up to hundredths of the target currency.
+     * @throws UnsupportedCurrencyException if any of the currencies has no rate
+     */
+    public Money convert(Money amount, String from, String to) {
+        if (from.equals(to)) {
+            if (!supports(from)) throw new UnsupportedCurrencyException("Unsupported currency " + from);
+            return amount;
+        }
+        return amount.multiply(getRate(from, to), RoundingMode.HALF_UP);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.interest;
+
+import xyz.yawek.banking.model.Money;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Simple interest on a principal for a number of days, with an actual/365 day count.
+ * Computed in hundredths with {@code long} arithmetic and rounded once, half to even,
+ * falling back to {@link BigDecimal} only if the intermediate product overflows.
+ */
+public class DailyInterest {
+
+    public static final long DAYS_IN_YEAR = 365;
+
+    private final BigDecimal annualRate;
+    private final long rateNumerator;
+    private final long rateDenominator;
+
+    /**
+     * @param annualRate yearly rate, e.g. {@code 0.05} for 5%
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    public DailyInterest(BigDecimal annualRate) {
+        if (annualRate.signum() < 0) throw new IllegalArgumentException("Interest rate cannot be negative");
+        BigDecimal rate = annualRate.stripTrailingZeros();
+        if (rate.scale() < 0) rate = rate.setScale(0);
+        this.annualRate = rate;
+        long numerator;
+        long denominator;
+        try {
+            numerator = rate.unscaledValue().longValueExact();
+            denominator = Math.multiplyExact(BigDecimal.TEN.pow(rate.scale()).longValueExact(), DAYS_IN_YEAR);
+        } catch (ArithmeticException e) {
+            numerator = -1;
+            denominator = -1;
+        }
+        this.rateNumerator = numerator;
+        this.rateDenominator = denominator;
+    }
+
+    public BigDecimal getAnnualRate() {
+        return annualRate;
+    }
+
+    /**
+     * @return interest on the principal for the given number of days
+     */
+    public Money forDays(Money principal, long days) {
+        if (rateNumerator >= 0 && principal.signum() >= 0 && days >= 0) {
+            try {
+                long numerator = Math.multiplyExact(
+                        Math.multiplyExact(principal.getMinorUnits(), rateNumerator), days);
+                return Money.ofMinorUnits(divideHalfEven(numerator, rateDenominator));
+            } catch (ArithmeticException ignored) {
+                // Product does not fit in a long
+            }
+        }
+        return Money.valueOf(principal.toBigDecimal()
+                .multiply(annualRate)
+                .multiply(BigDecimal.valueOf(days))
+                .divide(BigDecimal.valueOf(DAYS_IN_YEAR), Money.SCALE, RoundingMode.HALF_EVEN));
+    }
+
+    /**
+     * Part of the loan's amount not repaid yet, in proportion to the unpaid part of its
+     * repayment amount. Rounded down to hundredths.
+     */
+    public static Money outstandingPrincipal(Money amount, Money repaymentAmount, Money unpaid) {
+        if (repaymentAmount.signum() <= 0) return Money.ZERO;
+        if (unpaid.compareTo(repaymentAmount) >= 0) return amount;
+        try {
+            return Money.ofMinorUnits(Math.multiplyExact(amount.getMinorUnits(), unpaid.getMinorUnits())
+                    / repaymentAmount.getMinorUnits());
+        } catch (ArithmeticException e) {
+            return Money.valueOf(amount.toBigDecimal()
+                    .multiply(unpaid.toBigDecimal())
+                    .divide(repaymentAmount.toBigDecimal(), Money.SCALE, RoundingMode.DOWN));
+        }
+    }
+
+    private static long divideHalfEven(long numerator, long denominator) {
+        long quotient = numerator / denominator;
+        long twiceRemainder = (numerator % denominator) * 2;
+        if (twiceRemainder > denominator || (twiceRemainder == denominator && (quotient & 1) == 1))
+            quotient++;
+        return quotient;
+    }
+
+}
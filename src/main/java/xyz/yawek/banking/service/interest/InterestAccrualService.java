@@ -0,0 +1,161 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.interest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.model.Money;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accrues daily interest on outstanding principal of loans not repaid yet.
+ * Loans are read in chunks of primary keys, each chunk accrued in one transaction.
+ * Every loan keeps the last day its interest covers and is moved to the business
+ * date with a conditional update, so a run for a date already accrued changes nothing
+ * and days missed by earlier runs are accrued at once, by a single entry per loan.
+ */
+@Slf4j
+@Service
+public class InterestAccrualService {
+
+    private static final String SELECT_LOANS = "select id, amount, repayment_amount, accrued_through"
+            + " from loans where id > ? and repaid = false and (accrued_through is null or accrued_through < ?)"
+            + " order by id limit ?";
+    private static final String ADVANCE = "update loans set accrued_interest = accrued_interest + ?,"
+            + " accrued_through = ? where id = ? and repaid = false and accrued_through <=> ?";
+    private static final String INSERT = "insert into interest_accruals"
+            + " (loan_id, from_date, to_date, principal, interest) values (?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final DailyInterest dailyInterest;
+    private final int chunkSize;
+
+    public InterestAccrualService(JdbcTemplate jdbcTemplate,
+                                  NamedParameterJdbcTemplate namedJdbcTemplate,
+                                  TransactionTemplate transactionTemplate,
+                                  @Value("${app.loan.interest.annual-rate}") BigDecimal annualRate,
+                                  @Value("${app.loan.interest.chunk-size}") int chunkSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.dailyInterest = new DailyInterest(annualRate);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Accrues interest through the previous day.
+     */
+    @Scheduled(cron = "${app.loan.interest.cron}")
+    public void accrueDaily() {
+        accrue(LocalDate.now().minusDays(1));
+    }
+
+    /**
+     * Accrues interest of every loan through the given business date. Loans accrued
+     * before have it accrued from the day after their last accrual, loans without
+     * any accrual from the previous day.
+     * @return number of loans accrued
+     */
+    public int accrue(LocalDate businessDate) {
+        long start = System.nanoTime();
+        long lastId = 0;
+        int accrued = 0;
+        while (true) {
+            long afterId = lastId;
+            Chunk chunk = transactionTemplate.execute(status -> accrueChunk(afterId, businessDate));
+            if (chunk == null || chunk.read == 0) break;
+            accrued += chunk.accrued;
+            lastId = chunk.lastId;
+            if (chunk.read < chunkSize) break;
+        }
+        if (accrued > 0) log.info("Accrued interest of {} loans through {} in {} ms", accrued, businessDate,
+                (System.nanoTime() - start) / 1_000_000);
+        return accrued;
+    }
+
+    private Chunk accrueChunk(long afterId, LocalDate businessDate) {
+        Date through = Date.valueOf(businessDate);
+        List<Object[]> loans = jdbcTemplate.query(SELECT_LOANS, (rs, i) -> new Object[] {
+                rs.getLong(1), Money.valueOf(rs.getBigDecimal(2)), Money.valueOf(rs.getBigDecimal(3)),
+                rs.getDate(4) }, afterId, through, chunkSize);
+        if (loans.isEmpty()) return new Chunk(0, 0, afterId);
+
+        Map<Long, Money> unpaid = new HashMap<>();
+        namedJdbcTemplate.query("select loan_id, sum(amount) from loan_installments"
+                        + " where loan_id in (:ids) and paid = false group by loan_id",
+                Map.of("ids", loans.stream().map(loan -> loan[0]).toList()),
+                rs -> {
+                    unpaid.put(rs.getLong(1), Money.valueOf(rs.getBigDecimal(2)));
+                });
+
+        List<Object[]> advances = new ArrayList<>(loans.size());
+        List<Object[]> entries = new ArrayList<>(loans.size());
+        for (Object[] loan : loans) {
+            long id = (long) loan[0];
+            Money amount = (Money) loan[1];
+            Money repaymentAmount = (Money) loan[2];
+            Date accruedThrough = (Date) loan[3];
+            LocalDate from = accruedThrough != null ? accruedThrough.toLocalDate() : businessDate.minusDays(1);
+            long days = ChronoUnit.DAYS.between(from, businessDate);
+            Money principal = DailyInterest.outstandingPrincipal(
+                    amount, repaymentAmount, unpaid.getOrDefault(id, repaymentAmount));
+            Money interest = dailyInterest.forDays(principal, days);
+            advances.add(new Object[] { interest.toBigDecimal(), through, id, accruedThrough });
+            entries.add(new Object[] { id, Date.valueOf(from), through,
+                    principal.toBigDecimal(), interest.toBigDecimal() });
+        }
+        // Loans accrued or repaid meanwhile are skipped
+        int[] counts = jdbcTemplate.batchUpdate(ADVANCE, advances);
+        List<Object[]> accrued = new ArrayList<>(entries.size());
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] > 0) accrued.add(entries.get(i));
+        jdbcTemplate.batchUpdate(INSERT, accrued);
+        return new Chunk(loans.size(), accrued.size(), (long) loans.get(loans.size() - 1)[0]);
+    }
+
+    private static final class Chunk {
+
+        private final int read;
+        private final int accrued;
+        private final long lastId;
+
+        private Chunk(int read, int accrued, long lastId) {
+            this.read = read;
+            this.accrued = accrued;
+            this.lastId = lastId;
+        }
+
+    }
+
+}
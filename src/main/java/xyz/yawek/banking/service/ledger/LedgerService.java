@@ -0,0 +1,207 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.ledger;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.yawek.banking.model.LedgerEntry;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only double-entry ledger of balance changes.
+ * Balances of accounts are periodically saved as snapshots, so a balance at any
+ * time is computed from the nearest snapshot and the entries added after it.
+ */
+@Slf4j
+@Service
+@Transactional
+@RequiredArgsConstructor
+public class LedgerService {
+
+    /**
+     * Account of the bank, counterpart of loans and opening balances.
+     */
+    public static final long BANK_ACCOUNT_ID = 0;
+
+    private static final int SNAPSHOT_CHUNK_SIZE = 500;
+    private static final String INSERT_ENTRY = "insert into ledger_entries"
+            + " (account_id, amount, kind, reference_id, created_at) values (?, ?, ?, ?, ?)";
+    private static final String INSERT_SNAPSHOT = "insert into ledger_snapshots"
+            + " (account_id, last_entry_id, balance, covered_until) values (?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    @Value("${app.ledger.snapshot-lag}")
+    private long snapshotLag;
+
+    @Value("${app.ledger.snapshot-max-entries}")
+    private long snapshotMaxEntries;
+
+    /**
+     * Appends a debit and a credit entry for every posting, in one JDBC batch.
+     */
+    public void record(List<LedgerPosting> postings) {
+        if (postings.isEmpty()) return;
+        Timestamp now = Timestamp.valueOf(now());
+        List<Object[]> rows = new ArrayList<>(postings.size() * 2);
+        for (LedgerPosting posting : postings) {
+            String kind = posting.getKind().name();
+            rows.add(new Object[] { posting.getDebitAccountId(), posting.getAmount().negate().toBigDecimal(),
+                    kind, posting.getReferenceId(), now });
+            rows.add(new Object[] { posting.getCreditAccountId(), posting.getAmount().toBigDecimal(),
+                    kind, posting.getReferenceId(), now });
+        }
+        jdbcTemplate.batchUpdate(INSERT_ENTRY, rows);
+    }
+
+    public void record(LedgerPosting posting) {
+        record(List.of(posting));
+    }
+
+    /**
+     * @return balance of the account after all entries added up to the given time
+     */
+    @Transactional(readOnly = true)
+    public BigDecimal getBalanceAsOf(long accountId, LocalDateTime time) {
+        List<Object[]> snapshot = jdbcTemplate.query(
+                "select balance, last_entry_id from ledger_snapshots"
+                + " where account_id = ? and covered_until <= ?"
+                + " order by last_entry_id desc limit 1",
+                (rs, i) -> new Object[] { rs.getBigDecimal(1), rs.getLong(2) },
+                accountId, Timestamp.valueOf(time));
+        BigDecimal balance = snapshot.isEmpty() ? BigDecimal.ZERO : (BigDecimal) snapshot.get(0)[0];
+        long lastEntryId = snapshot.isEmpty() ? 0 : (long) snapshot.get(0)[1];
+        // Entries after a snapshot covering a later time are later too, allowing for the snapshot lag
+        Long nextEntryId = jdbcTemplate.queryForObject(
+                "select min(last_entry_id) from ledger_snapshots where account_id = ? and covered_until > ?",
+                Long.class, accountId, Timestamp.valueOf(time.plus(snapshotLag, ChronoUnit.MILLIS)));
+
+        BigDecimal tail = jdbcTemplate.queryForObject(
+                "select coalesce(sum(amount), 0) from ledger_entries"
+                + " where account_id = ? and id > ? and id <= ? and created_at <= ?",
+                BigDecimal.class, accountId, lastEntryId,
+                nextEntryId == null ? Long.MAX_VALUE : nextEntryId, Timestamp.valueOf(time));
+        return balance.add(tail);
+    }
+
+    /**
+     * Snapshots balances of accounts with entries added since the previous snapshots.
+     * Entries newer than the configured lag are left for the next run,
+     * so entries of transactions committing out of id order are not skipped.
+     */
+    @Scheduled(fixedDelayString = "${app.ledger.snapshot-interval}",
+            initialDelayString = "${app.ledger.snapshot-interval}")
+    public void takeSnapshots() {
+        long lower = jdbcTemplate.queryForObject(
+                "select coalesce(max(last_entry_id), 0) from ledger_snapshots", Long.class);
+        Long firstRecent = jdbcTemplate.queryForObject(
+                "select min(id) from ledger_entries where id > ? and created_at >= ?",
+                Long.class, lower, Timestamp.valueOf(now().minus(snapshotLag, ChronoUnit.MILLIS)));
+        long bound = lower + snapshotMaxEntries;
+        if (firstRecent != null) bound = Math.min(bound, firstRecent - 1);
+        Long upper = jdbcTemplate.queryForObject(
+                "select max(id) from ledger_entries where id > ? and id <= ?",
+                Long.class, lower, bound);
+        if (upper == null) return;
+
+        List<Object[]> deltas = jdbcTemplate.query(
+                "select account_id, sum(amount), max(created_at) from ledger_entries"
+                + " where id > ? and id <= ? group by account_id",
+                (rs, i) -> new Object[] {
+                        rs.getLong(1), rs.getBigDecimal(2), rs.getTimestamp(3) },
+                lower, upper);
+        for (int from = 0; from < deltas.size(); from += SNAPSHOT_CHUNK_SIZE) {
+            List<Object[]> chunk = deltas.subList(from, Math.min(from + SNAPSHOT_CHUNK_SIZE, deltas.size()));
+            Map<Long, BigDecimal> previous = new HashMap<>();
+            namedJdbcTemplate.query(
+                    "select s.account_id, s.balance from ledger_snapshots s"
+                    + " where s.account_id in (:ids) and s.last_entry_id = ("
+                    + "select max(t.last_entry_id) from ledger_snapshots t where t.account_id = s.account_id)",
+                    Map.of("ids", chunk.stream().map(delta -> delta[0]).toList()),
+                    rs -> {
+                        previous.put(rs.getLong(1), rs.getBigDecimal(2));
+                    });
+            jdbcTemplate.batchUpdate(INSERT_SNAPSHOT, chunk.stream()
+                    .map(delta -> new Object[] {
+                            delta[0], upper,
+                            previous.getOrDefault((Long) delta[0], BigDecimal.ZERO).add((BigDecimal) delta[1]),
+                            delta[2] })
+                    .toList());
+        }
+        log.debug("Took {} ledger snapshots up to entry {}", deltas.size(), upper);
+    }
+
+    /**
+     * Records current balances of users without ledger entries,
+     * so balances from before the ledger was introduced are included.
+     * Users are locked until the entries commit, so balances do not change meanwhile
+     * and another instance opening the same accounts waits and finds them opened.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void openAccounts() {
+        List<Long> candidates = jdbcTemplate.queryForList("select u.id from users u where not exists"
+                + " (select 1 from ledger_entries e where e.account_id = u.id) order by u.id for update", Long.class);
+        Timestamp now = Timestamp.valueOf(now());
+        int opened = 0;
+        for (int from = 0; from < candidates.size(); from += SNAPSHOT_CHUNK_SIZE) {
+            List<Long> chunk = candidates.subList(from, Math.min(from + SNAPSHOT_CHUNK_SIZE, candidates.size()));
+            // Locking read, sees entries committed while waiting for the locks
+            Set<Long> openedBefore = new HashSet<>(namedJdbcTemplate.queryForList(
+                    "select distinct account_id from ledger_entries where account_id in (:ids) lock in share mode",
+                    Map.of("ids", chunk), Long.class));
+            List<Long> unopened = chunk.stream().filter(id -> !openedBefore.contains(id)).toList();
+            if (unopened.isEmpty()) continue;
+
+            Map<String, Object> params = Map.of(
+                    "ids", unopened, "kind", LedgerEntry.Kind.OPENING.name(), "now", now);
+            String balance = "u.balance + coalesce((select sum(b.balance) from balance_shards b"
+                    + " where b.user_id = u.id), 0)";
+            namedJdbcTemplate.update("insert into ledger_entries (account_id, amount, kind, created_at)"
+                    + " select " + BANK_ACCOUNT_ID + ", -sum(" + balance + "), :kind, :now"
+                    + " from users u where u.id in (:ids)", params);
+            opened += namedJdbcTemplate.update("insert into ledger_entries (account_id, amount, kind, created_at)"
+                    + " select u.id, " + balance + ", :kind, :now from users u where u.id in (:ids)", params);
+        }
+        if (opened > 0) log.info("Opened {} ledger accounts", opened);
+    }
+
+    private LocalDateTime now() {
+        return LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+    }
+
+}
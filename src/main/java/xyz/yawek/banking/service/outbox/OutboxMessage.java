@@ -0,0 +1,119 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.outbox;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Value;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.OutboxEvent;
+
+import java.time.LocalDateTime;
+
+/**
+ * Event to be written to the outbox, its payload is stored as JSON.
+ */
+@Value
+public class OutboxMessage {
+
+    long aggregateId;
+
+    OutboxEvent.Type type;
+
+    Object payload;
+
+    /**
+     * @param paymentId id of the payment, {@code null} if written in a batch
+     */
+    public static OutboxMessage paymentSent(Long paymentId, long senderId, long receiverId, Money amount) {
+        return paymentSent(paymentId, senderId, receiverId, amount, null, null, null);
+    }
+
+    /**
+     * @param currency currency of the amount, {@code null} for the base currency
+     * @param receivedAmount amount the receiver got, {@code null} if it was not converted
+     */
+    public static OutboxMessage paymentSent(Long paymentId, long senderId, long receiverId, Money amount,
+                                            String currency, Money receivedAmount, String receivedCurrency) {
+        return new OutboxMessage(senderId, OutboxEvent.Type.PAYMENT_SENT, new PaymentSent(paymentId,
+                senderId, receiverId, amount, currency, receivedAmount, receivedCurrency));
+    }
+
+    /**
+     * @param currency currency of the amounts, {@code null} for the base currency
+     */
+    public static OutboxMessage loanTaken(long loanId, long userId, Money amount, Money repaymentAmount,
+                                          String currency, LocalDateTime repaymentDate) {
+        return new OutboxMessage(userId, OutboxEvent.Type.LOAN_TAKEN,
+                new LoanTaken(loanId, userId, amount, repaymentAmount, currency, repaymentDate));
+    }
+
+    public static OutboxMessage loanRepaid(long loanId, long userId) {
+        return new OutboxMessage(userId, OutboxEvent.Type.LOAN_REPAID, new LoanRepaid(loanId, userId));
+    }
+
+    @Value
+    public static class PaymentSent {
+
+        Long paymentId;
+
+        long senderId;
+
+        long receiverId;
+
+        Money amount;
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        String currency;
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        Money receivedAmount;
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        String receivedCurrency;
+
+    }
+
+    @Value
+    public static class LoanTaken {
+
+        long loanId;
+
+        long userId;
+
+        Money amount;
+
+        Money repaymentAmount;
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        String currency;
+
+        LocalDateTime repaymentDate;
+
+    }
+
+    @Value
+    public static class LoanRepaid {
+
+        long loanId;
+
+        long userId;
+
+    }
+
+}
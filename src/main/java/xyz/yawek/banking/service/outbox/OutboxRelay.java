@@ -0,0 +1,176 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.outbox;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.model.OutboxEvent;
+import xyz.yawek.banking.model.rest.OutboxStats;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers outbox events to the {@link OutboxSink} in batches ordered by id.
+ * Every batch is delivered and removed from the outbox in one transaction holding
+ * the relay's row lock, so events are delivered at least once, by one instance
+ * at a time, and events of an account in the order they were written.
+ * Events of an account are written in transactions updating its balance row,
+ * so their ids follow the order of their commits.
+ * Batch size is doubled while full batches are delivered quickly
+ * and halved when a batch takes longer than the target time.
+ */
+@Slf4j
+@Service
+public class OutboxRelay {
+
+    private static final String RELAY_NAME = "outbox";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final OutboxSink sink;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetBatchTime;
+
+    private final AtomicLong failures = new AtomicLong();
+    private volatile int batchSize;
+    private volatile long lastBatchMillis;
+
+    public OutboxRelay(JdbcTemplate jdbcTemplate,
+                       NamedParameterJdbcTemplate namedJdbcTemplate,
+                       TransactionTemplate transactionTemplate,
+                       OutboxSink sink,
+                       @Value("${app.outbox.min-batch-size}") int minBatchSize,
+                       @Value("${app.outbox.max-batch-size}") int maxBatchSize,
+                       @Value("${app.outbox.target-batch-time}") long targetBatchTime) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.sink = sink;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetBatchTime = targetBatchTime;
+        this.batchSize = minBatchSize;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initState() {
+        jdbcTemplate.update("insert ignore into outbox_relay (name, last_event_id, delivered) values (?, 0, 0)",
+                RELAY_NAME);
+    }
+
+    /**
+     * Delivers batches until the outbox is drained or a batch fails.
+     *
+     * @return number of delivered events
+     */
+    @Scheduled(fixedDelayString = "${app.outbox.poll-interval}",
+            initialDelayString = "${app.outbox.poll-interval}")
+    public int relay() {
+        int delivered = 0;
+        while (true) {
+            int size = batchSize;
+            long start = System.nanoTime();
+            int batch;
+            try {
+                Integer result = transactionTemplate.execute(status -> deliverBatch(size));
+                batch = result == null ? 0 : result;
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                batchSize = Math.max(minBatchSize, size / 2);
+                log.warn("Delivery of outbox events failed", e);
+                return delivered;
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (batch == 0) return delivered;
+            lastBatchMillis = elapsed;
+            delivered += batch;
+            if (elapsed > targetBatchTime) {
+                batchSize = Math.max(minBatchSize, size / 2);
+            } else if (batch == size && elapsed < targetBatchTime / 2) {
+                batchSize = Math.min(maxBatchSize, size * 2);
+            }
+            if (batch < size) return delivered;
+        }
+    }
+
+    public OutboxStats getStats() {
+        Map<String, Object> state = jdbcTemplate.queryForMap(
+                "select delivered, (select max(id) from outbox_events) max_id,"
+                + " (select min(id) from outbox_events) min_id"
+                + " from outbox_relay where name = ?", RELAY_NAME);
+        long delivered = ((Number) state.get("delivered")).longValue();
+        Number maxId = (Number) state.get("max_id");
+        Number minId = (Number) state.get("min_id");
+        if (minId == null || maxId == null)
+            return new OutboxStats(0, 0, delivered, failures.get(), batchSize, lastBatchMillis);
+
+        Timestamp oldest = jdbcTemplate.queryForObject(
+                "select created_at from outbox_events where id = ?", Timestamp.class, minId.longValue());
+        long age = oldest == null ? 0
+                : Math.max(0, Duration.between(oldest.toLocalDateTime(), LocalDateTime.now()).toMillis());
+        return new OutboxStats(maxId.longValue() - minId.longValue() + 1, age,
+                delivered, failures.get(), batchSize, lastBatchMillis);
+    }
+
+    private int deliverBatch(int size) {
+        jdbcTemplate.queryForObject("select last_event_id from outbox_relay where name = ? for update",
+                Long.class, RELAY_NAME);
+        List<OutboxEvent> events = jdbcTemplate.query(
+                "select id, aggregate_id, type, payload, created_at from outbox_events order by id limit ?",
+                (rs, i) -> {
+                    OutboxEvent event = new OutboxEvent();
+                    event.setId(rs.getLong(1));
+                    event.setAggregateId(rs.getLong(2));
+                    event.setType(OutboxEvent.Type.valueOf(rs.getString(3)));
+                    event.setPayload(rs.getString(4));
+                    event.setCreatedAt(rs.getTimestamp(5).toLocalDateTime());
+                    return event;
+                }, size);
+        if (events.isEmpty()) return 0;
+
+        try {
+            sink.deliver(events);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        namedJdbcTemplate.update("delete from outbox_events where id in (:ids)",
+                Map.of("ids", events.stream().map(OutboxEvent::getId).toList()));
+        jdbcTemplate.update("update outbox_relay set last_event_id = ?, delivered = delivered + ?"
+                + " where name = ?", events.get(events.size() - 1).getId(), events.size(), RELAY_NAME);
+        return events.size();
+    }
+
+}
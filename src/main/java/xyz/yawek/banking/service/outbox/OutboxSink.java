@@ -0,0 +1,39 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.outbox;
+
+import xyz.yawek.banking.model.OutboxEvent;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Downstream system receiving outbox events, selected by the {@code app.outbox.sink} property.
+ * Events are delivered at least once, a batch is redelivered whole if it fails or its
+ * removal from the outbox does not commit, so receivers should ignore ids they have seen.
+ */
+public interface OutboxSink {
+
+    /**
+     * @param events events ordered by id
+     * @throws IOException if events could not be delivered
+     */
+    void deliver(List<OutboxEvent> events) throws IOException;
+
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.pipeline;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Debit made outside the pipeline, taken from the user's in-memory balance until
+ * the transaction making it completes. Amount is returned to the balance if the
+ * transaction rolls back or the hold is cancelled, amount is in minor units.
+ * <p>
+ * A credit made outside the pipeline is held the other way round, its amount is
+ * added to the balance only once the transaction commits.
+ */
+public class BalanceHold {
+
+    private final PipelinePartition partition;
+    private final long userId;
+    private final long amount;
+    private final boolean credit;
+    private final CompletableFuture<Void> acquired = new CompletableFuture<>();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean committed;
+
+    BalanceHold(PipelinePartition partition, long userId, long amount, boolean credit) {
+        this.partition = partition;
+        this.userId = userId;
+        this.amount = amount;
+        this.credit = credit;
+    }
+
+    /**
+     * Releases the hold before the transaction completes, when the debit
+     * or credit was not made after all.
+     */
+    public void cancel() {
+        release(false);
+    }
+
+    void release(boolean committed) {
+        if (!released.compareAndSet(false, true)) return;
+        this.committed = committed;
+        partition.release(this);
+    }
+
+    long getUserId() {
+        return userId;
+    }
+
+    long getAmount() {
+        return amount;
+    }
+
+    boolean isCredit() {
+        return credit;
+    }
+
+    CompletableFuture<Void> getAcquired() {
+        return acquired;
+    }
+
+    boolean isCommitted() {
+        return committed;
+    }
+
+}
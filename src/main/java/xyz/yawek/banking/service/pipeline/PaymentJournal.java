@@ -0,0 +1,174 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal of transfers stored in a memory-mapped file of fixed size.
+ * Records are written to fixed-size slots claimed concurrently, so a crash may
+ * leave holes between them. Every slot is validated with a checksum on read.
+ * <p>
+ * Journal is cleared when all appended records were flushed to the database.
+ */
+public class PaymentJournal implements Closeable {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int MAGIC = 0x50594a4e;
+    private static final int DATA_SIZE = 5 * Long.BYTES;
+    static final int RECORD_SIZE = DATA_SIZE + 2 * Integer.BYTES;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final AtomicLong position = new AtomicLong(HEADER_SIZE);
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final ReadWriteLock resetLock = new ReentrantReadWriteLock();
+    private long dirtyLimit;
+
+    public PaymentJournal(Path path, int size) throws IOException {
+        this.capacity = HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.force(0, HEADER_SIZE);
+        }
+        // Content of the file is unknown until it is cleared for the first time
+        this.dirtyLimit = capacity;
+    }
+
+    /**
+     * Writes records and forces them to the storage device.
+     * @return false if there is not enough space left
+     * @throws IllegalArgumentException if there are more records than the journal can hold
+     */
+    public boolean append(List<JournalRecord> records) {
+        if (records.size() > getMaxRecords())
+            throw new IllegalArgumentException(
+                    records.size() + " records do not fit in the journal of " + getMaxRecords());
+        int length = records.size() * RECORD_SIZE;
+        resetLock.readLock().lock();
+        try {
+            long offset;
+            do {
+                offset = position.get();
+                if (offset + length > capacity) return false;
+            } while (!position.compareAndSet(offset, offset + length));
+
+            int recordOffset = (int) offset;
+            for (JournalRecord record : records) {
+                write(recordOffset, record);
+                recordOffset += RECORD_SIZE;
+            }
+            buffer.force((int) offset, length);
+            appended.addAndGet(records.size());
+            return true;
+        } finally {
+            resetLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return all valid records stored in the journal, in no particular order
+     */
+    public List<JournalRecord> readAll() {
+        List<JournalRecord> records = new ArrayList<>();
+        for (int offset = HEADER_SIZE; offset < capacity; offset += RECORD_SIZE) {
+            if (buffer.getLong(offset) == 0
+                    || buffer.getInt(offset + DATA_SIZE) != checksum(offset)) continue;
+            records.add(new JournalRecord(
+                    buffer.getLong(offset),
+                    buffer.getLong(offset + 8),
+                    buffer.getLong(offset + 16),
+                    buffer.getLong(offset + 24),
+                    buffer.getLong(offset + 32)));
+        }
+        return records;
+    }
+
+    /**
+     * @return number of records the empty journal can hold
+     */
+    public int getMaxRecords() {
+        return (capacity - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    public void markFlushed(int count) {
+        flushed.addAndGet(count);
+    }
+
+    public boolean isHalfFull() {
+        return position.get() > capacity / 2;
+    }
+
+    /**
+     * Clears the journal if every appended record was flushed.
+     * @return true if journal was cleared
+     */
+    public boolean clearIfFlushed() {
+        resetLock.writeLock().lock();
+        try {
+            if (appended.get() != flushed.get()) return false;
+            int limit = (int) Math.max(dirtyLimit, position.get());
+            for (int offset = HEADER_SIZE; offset < limit; offset += Long.BYTES)
+                buffer.putLong(offset, 0);
+            buffer.force(HEADER_SIZE, limit - HEADER_SIZE);
+            position.set(HEADER_SIZE);
+            dirtyLimit = HEADER_SIZE;
+            return true;
+        } finally {
+            resetLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void write(int offset, JournalRecord record) {
+        buffer.putLong(offset + 8, record.getSenderId());
+        buffer.putLong(offset + 16, record.getReceiverId());
+        buffer.putLong(offset + 24, record.getAmount());
+        buffer.putLong(offset + 32, record.getTimestamp());
+        buffer.putLong(offset, record.getSeq());
+        buffer.putInt(offset + DATA_SIZE, checksum(offset));
+    }
+
+    private int checksum(int offset) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset, DATA_SIZE));
+        return (int) crc.getValue();
+    }
+
+}
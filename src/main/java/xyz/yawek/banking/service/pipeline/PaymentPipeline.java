@@ -0,0 +1,384 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.pipeline;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.LedgerEntry;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.repository.BalanceShardRepository;
+import xyz.yawek.banking.service.cache.RecentPaymentsCache;
+import xyz.yawek.banking.service.ledger.LedgerPosting;
+import xyz.yawek.banking.service.ledger.LedgerService;
+import xyz.yawek.banking.service.outbox.OutboxMessage;
+import xyz.yawek.banking.service.outbox.OutboxService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Executes payments without a database transaction per payment. Transfers are
+ * partitioned by sender and processed by single writer threads holding balances
+ * in memory. A transfer is acknowledged once it is forced to {@link PaymentJournal},
+ * payments and balance deltas are then written to the database in batches.
+ * <p>
+ * Enabled with {@code app.payment.mode=pipeline}. Debits made outside the pipeline
+ * must be held on the in-memory balance with {@link #hold(long, Money)} and credits
+ * must be announced with {@link #credit(long, Money)}, so cached accounts see them.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.payment.mode", havingValue = "pipeline")
+@DependsOn("entityManagerFactory")
+public class PaymentPipeline {
+
+    private static final String INSERT_PAYMENT =
+            "insert into payments (sender_id, receiver_id, amount, timestamp, journal_seq) " +
+            "values (?, ?, ?, ?, ?)";
+    private static final String UPDATE_BALANCE =
+            "update users set balance = balance + ?, version = version + 1 where id = ?";
+    private static final long RETRY_DELAY = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BalanceShardRepository shardRepository;
+    private final LedgerService ledgerService;
+    private final OutboxService outboxService;
+    private final RecentPaymentsCache recentPaymentsCache;
+    private final PaymentJournal journal;
+    private final PipelinePartition[] partitions;
+    private final List<Thread> partitionThreads = new ArrayList<>();
+    private final Queue<JournalRecord> unflushed = new ConcurrentLinkedQueue<>();
+    private final AtomicLong seq = new AtomicLong();
+    private final int batchSize;
+    private final long flushInterval;
+    private final Thread flusher = new Thread(this::flushLoop, "payment-pipeline-flusher");
+    // Held while flushed payments are committed, so balances are not loaded in the meantime
+    private final ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+    private volatile boolean running;
+
+    @Autowired
+    public PaymentPipeline(
+            JdbcTemplate jdbcTemplate,
+            NamedParameterJdbcTemplate namedJdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            BalanceShardRepository shardRepository,
+            LedgerService ledgerService,
+            OutboxService outboxService,
+            RecentPaymentsCache recentPaymentsCache,
+            @Value("${app.payment.pipeline.partitions}") int partitionCount,
+            @Value("${app.payment.pipeline.buffer-size}") int bufferSize,
+            @Value("${app.payment.pipeline.batch-size}") int batchSize,
+            @Value("${app.payment.pipeline.flush-interval}") long flushInterval,
+            @Value("${app.payment.pipeline.idle-eviction}") long idleEviction,
+            @Value("${app.payment.pipeline.journal-path}") String journalPath,
+            @Value("${app.payment.pipeline.journal-size}") int journalSize) throws IOException {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.shardRepository = shardRepository;
+        this.ledgerService = ledgerService;
+        this.outboxService = outboxService;
+        this.recentPaymentsCache = recentPaymentsCache;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.journal = new PaymentJournal(Path.of(journalPath), journalSize);
+        if (batchSize > journal.getMaxRecords())
+            throw new IllegalArgumentException("Batch of " + batchSize + " payments does not fit in the journal");
+        this.partitions = new PipelinePartition[partitionCount];
+        for (int i = 0; i < partitionCount; i++)
+            partitions[i] = new PipelinePartition(this, bufferSize, batchSize, idleEviction);
+    }
+
+    @PostConstruct
+    public void start() {
+        replay();
+        running = true;
+        for (int i = 0; i < partitions.length; i++) {
+            Thread thread = new Thread(partitions[i], "payment-pipeline-" + i);
+            thread.start();
+            partitionThreads.add(thread);
+        }
+        flusher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        for (PipelinePartition partition : partitions) partition.stop();
+        for (Thread thread : partitionThreads) thread.join();
+        running = false;
+        flusher.join();
+        journal.close();
+    }
+
+    /**
+     * Hands the transfer to the partition of the sender and waits
+     * until it is written to the journal.
+     * @param sender user sending the money
+     * @param receiver user receiving the money
+     * @param amount amount to transfer
+     */
+    public void transfer(User sender, User receiver, Money amount) {
+        PaymentTask task = new PaymentTask(
+                sender.getId(), receiver.getId(), amount.getMinorUnits());
+        PipelinePartition partition = partitionOf(sender.getId());
+        while (!partition.submit(task)) {
+            if (!running) throw new IllegalStateException("Payment pipeline is stopped");
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        await(task.getResult());
+    }
+
+    /**
+     * Takes amount of a debit made outside the pipeline from the user's in-memory
+     * balance, so payments in the pipeline cannot spend it too. The hold lasts until
+     * the current transaction completes and is returned if it rolls back.
+     * @param userId user whose balance is debited
+     * @param amount amount to debit
+     * @throws NotEnoughBalanceException if the user's balance is lower than the amount
+     */
+    public BalanceHold hold(long userId, Money amount) {
+        return hold(userId, amount, false);
+    }
+
+    /**
+     * Adds amount of a credit made outside the pipeline to the user's in-memory
+     * balance once the current transaction commits. The user's account is loaded
+     * before that, so its balance does not include the credit yet.
+     * @param userId user whose balance is credited
+     * @param amount amount to credit
+     */
+    public void credit(long userId, Money amount) {
+        hold(userId, amount, true);
+    }
+
+    long nextSeq() {
+        return seq.incrementAndGet();
+    }
+
+    /**
+     * Loads the user's balance while no flush is committed.
+     * @param unflushedCredits called before the balance is read, returns credits of the user
+     *                         that are not flushed yet
+     */
+    long loadBalance(long userId, LongSupplier unflushedCredits) {
+        flushLock.readLock().lock();
+        try {
+            long credits = unflushedCredits.getAsLong();
+            return shardRepository.getTotalBalance(userId).movePointRight(2).longValueExact() + credits;
+        } finally {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    void append(List<JournalRecord> records) {
+        while (!journal.append(records)) {
+            // Journal is cleared by the flusher once all records are written
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    void credit(JournalRecord record) {
+        partitionOf(record.getReceiverId()).credit(record);
+    }
+
+    void flushLater(JournalRecord record) {
+        unflushed.offer(record);
+    }
+
+    private BalanceHold hold(long userId, Money amount, boolean credit) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+            throw new IllegalStateException("Balance can only be held in a transaction");
+        if (!running) throw new IllegalStateException("Payment pipeline is stopped");
+        PipelinePartition partition = partitionOf(userId);
+        BalanceHold hold = new BalanceHold(partition, userId, amount.getMinorUnits(), credit);
+        partition.hold(hold);
+        await(hold.getAcquired());
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                hold.release(status == STATUS_COMMITTED);
+            }
+        });
+        return hold;
+    }
+
+    private void await(CompletableFuture<Void> result) {
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private PipelinePartition partitionOf(long userId) {
+        return partitions[Math.floorMod(Long.hashCode(userId), partitions.length)];
+    }
+
+    private void flushLoop() {
+        List<JournalRecord> batch = new ArrayList<>(batchSize);
+        while (true) {
+            JournalRecord record;
+            while (batch.size() < batchSize && (record = unflushed.poll()) != null)
+                batch.add(record);
+            if (batch.isEmpty() && !running) return;
+
+            if (!batch.isEmpty()) {
+                if (!flush(batch)) return;
+                batch.clear();
+            }
+            if (unflushed.size() < batchSize)
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+        }
+    }
+
+    private boolean flush(List<JournalRecord> batch) {
+        while (true) {
+            try {
+                write(batch);
+                break;
+            } catch (RuntimeException e) {
+                log.error("Could not flush payments, retrying", e);
+                // Records stay in the journal and are replayed on next start
+                if (!running) return false;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY));
+            }
+        }
+        journal.markFlushed(batch.size());
+        for (JournalRecord record : batch)
+            partitionOf(record.getSenderId()).markFlushed(record.getSeq());
+        if (journal.isHalfFull()) journal.clearIfFlushed();
+        return true;
+    }
+
+    private void write(List<JournalRecord> records) {
+        // Lock user rows in ascending id order
+        Map<Long, Long> deltas = new TreeMap<>();
+        for (JournalRecord record : records) {
+            deltas.merge(record.getSenderId(), -record.getAmount(), Long::sum);
+            deltas.merge(record.getReceiverId(), record.getAmount(), Long::sum);
+        }
+        List<Map.Entry<Long, Long>> deltaList = new ArrayList<>(deltas.entrySet());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.batchUpdate(INSERT_PAYMENT, records, records.size(), (statement, record) -> {
+                statement.setLong(1, record.getSenderId());
+                statement.setLong(2, record.getReceiverId());
+                statement.setBigDecimal(3, Money.ofMinorUnits(record.getAmount()).toBigDecimal());
+                // Same precision as timestamps of payments saved by JPA
+                statement.setTimestamp(4, new Timestamp(record.getTimestamp() - Math.floorMod(
+                        record.getTimestamp(), TimeUnit.SECONDS.toMillis(1))));
+                statement.setLong(5, record.getSeq());
+            });
+            jdbcTemplate.batchUpdate(UPDATE_BALANCE, deltaList, deltaList.size(), (statement, delta) -> {
+                statement.setBigDecimal(1, Money.ofMinorUnits(delta.getValue()).toBigDecimal());
+                statement.setLong(2, delta.getKey());
+            });
+            ledgerService.record(records.stream()
+                    .map(record -> new LedgerPosting(record.getSenderId(), record.getReceiverId(),
+                            Money.ofMinorUnits(record.getAmount()), LedgerEntry.Kind.PAYMENT, null))
+                    .toList());
+            outboxService.append(records.stream()
+                    .map(record -> OutboxMessage.paymentSent(null, record.getSenderId(),
+                            record.getReceiverId(), Money.ofMinorUnits(record.getAmount())))
+                    .toList());
+            recentPaymentsCache.invalidateAfterCommit(deltas.keySet());
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    flushLock.writeLock().lock();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (!flushLock.isWriteLockedByCurrentThread()) return;
+                    // Receivers learn about the flush before their balances can be loaded again
+                    if (status == STATUS_COMMITTED && running) {
+                        for (JournalRecord record : records)
+                            partitionOf(record.getReceiverId()).creditFlushed(record);
+                    }
+                    flushLock.writeLock().unlock();
+                }
+            });
+        });
+    }
+
+    private void replay() {
+        List<JournalRecord> records = journal.readAll();
+        records.sort(Comparator.comparingLong(JournalRecord::getSeq));
+        Long lastSeq = jdbcTemplate.queryForObject(
+                "select coalesce(max(journal_seq), 0) from payments", Long.class);
+        seq.set(lastSeq == null ? 0 : lastSeq);
+
+        for (int from = 0; from < records.size(); from += batchSize) {
+            List<JournalRecord> chunk = records.subList(from, Math.min(from + batchSize, records.size()));
+            Set<Long> written = new HashSet<>(namedJdbcTemplate.queryForList(
+                    "select journal_seq from payments where journal_seq in (:seqs)",
+                    Map.of("seqs", chunk.stream().map(JournalRecord::getSeq).toList()),
+                    Long.class));
+            List<JournalRecord> missing = chunk.stream()
+                    .filter(record -> !written.contains(record.getSeq()))
+                    .toList();
+            if (!missing.isEmpty()) write(missing);
+            seq.accumulateAndGet(chunk.get(chunk.size() - 1).getSeq(), Math::max);
+        }
+        if (!records.isEmpty())
+            log.info("Replayed payment journal, {} records found", records.size());
+        if (!journal.clearIfFlushed())
+            throw new UncheckedIOException(new IOException("Could not clear payment journal"));
+    }
+
+}
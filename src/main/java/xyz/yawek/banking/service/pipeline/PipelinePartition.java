@@ -0,0 +1,248 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.pipeline;
+
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer owning balances of a subset of accounts. Debits are checked and
+ * applied only by the partition owning the sender, credits are forwarded to the
+ * partition owning the receiver.
+ * <p>
+ * Credits are enqueued before they are flushed to the database, and so is the notice
+ * of their flush. Sums of credits not flushed yet are kept per receiver and added to
+ * a loaded balance, so a credit is neither lost nor counted twice. Debits and credits
+ * made outside the pipeline are held on the in-memory balance, see {@link BalanceHold}.
+ * An account is evicted only when all its debits were flushed and it has no holds.
+ */
+class PipelinePartition implements Runnable {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long EVICTION_PERIOD = 1000;
+
+    private final PaymentPipeline pipeline;
+    private final RingBuffer<PaymentTask> tasks;
+    private final Queue<Credit> credits = new ConcurrentLinkedQueue<>();
+    private final Queue<BalanceHold> holds = new ConcurrentLinkedQueue<>();
+    private final Queue<BalanceHold> releasedHolds = new ConcurrentLinkedQueue<>();
+    private final Map<Long, Account> accounts = new HashMap<>();
+    private final Map<Long, Long> unflushedCredits = new HashMap<>();
+    private final int batchSize;
+    private final long idleEviction;
+    private volatile long flushedSeq;
+    private volatile boolean running = true;
+
+    PipelinePartition(PaymentPipeline pipeline, int bufferSize, int batchSize, long idleEviction) {
+        this.pipeline = pipeline;
+        this.tasks = new RingBuffer<>(bufferSize);
+        this.batchSize = batchSize;
+        this.idleEviction = idleEviction;
+    }
+
+    boolean submit(PaymentTask task) {
+        return tasks.offer(task);
+    }
+
+    void credit(JournalRecord record) {
+        credits.offer(new Credit(record, false));
+    }
+
+    void creditFlushed(JournalRecord record) {
+        credits.offer(new Credit(record, true));
+    }
+
+    void hold(BalanceHold hold) {
+        holds.offer(hold);
+    }
+
+    void release(BalanceHold hold) {
+        releasedHolds.offer(hold);
+    }
+
+    void markFlushed(long seq) {
+        if (seq > flushedSeq) flushedSeq = seq;
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        List<PaymentTask> batch = new ArrayList<>(batchSize);
+        long lastEviction = System.currentTimeMillis();
+        while (running || !tasks.isEmpty()) {
+            applyCredits();
+            applyHolds();
+            PaymentTask task;
+            while (batch.size() < batchSize && (task = tasks.poll()) != null)
+                batch.add(task);
+
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            } else {
+                process(batch);
+                batch.clear();
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastEviction > EVICTION_PERIOD) {
+                accounts.values().removeIf(account -> account.lastDebitSeq <= flushedSeq
+                        && account.holds == 0 && now - account.lastUsed > idleEviction);
+                lastEviction = now;
+            }
+        }
+    }
+
+    private void process(List<PaymentTask> batch) {
+        long now = System.currentTimeMillis();
+        List<PaymentTask> accepted = new ArrayList<>(batch.size());
+        List<JournalRecord> records = new ArrayList<>(batch.size());
+        for (PaymentTask task : batch) {
+            try {
+                Account account = account(task.getSenderId());
+                if (account.balance < task.getAmount()) {
+                    task.getResult().completeExceptionally(
+                            new NotEnoughBalanceException("Not enough balance"));
+                    continue;
+                }
+                account.balance -= task.getAmount();
+                JournalRecord record = new JournalRecord(pipeline.nextSeq(),
+                        task.getSenderId(), task.getReceiverId(), task.getAmount(), now);
+                account.lastDebitSeq = record.getSeq();
+                account.lastUsed = now;
+                accepted.add(task);
+                records.add(record);
+            } catch (RuntimeException e) {
+                task.getResult().completeExceptionally(e);
+            }
+        }
+        if (records.isEmpty()) return;
+
+        try {
+            pipeline.append(records);
+        } catch (RuntimeException e) {
+            // Nothing was acknowledged, so debits can be reverted
+            for (int i = 0; i < records.size(); i++) {
+                accounts.get(records.get(i).getSenderId()).balance += records.get(i).getAmount();
+                accepted.get(i).getResult().completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            pipeline.credit(records.get(i));
+            pipeline.flushLater(records.get(i));
+            accepted.get(i).getResult().complete(null);
+        }
+    }
+
+    private Account account(long userId) {
+        Account account = accounts.get(userId);
+        if (account == null) {
+            account = new Account(pipeline.loadBalance(userId, () -> {
+                // Flushes are blocked, so credits still pending are not in the loaded balance
+                applyCredits();
+                return unflushedCredits.getOrDefault(userId, 0L);
+            }));
+            accounts.put(userId, account);
+        }
+        return account;
+    }
+
+    private void applyCredits() {
+        Credit credit;
+        while ((credit = credits.poll()) != null) {
+            long receiverId = credit.record.getReceiverId();
+            long amount = credit.record.getAmount();
+            if (credit.flushed) {
+                unflushedCredits.computeIfPresent(receiverId, (id, sum) -> sum == amount ? null : sum - amount);
+                continue;
+            }
+            unflushedCredits.merge(receiverId, amount, Long::sum);
+            Account account = accounts.get(receiverId);
+            if (account != null) account.balance += amount;
+        }
+    }
+
+    private void applyHolds() {
+        BalanceHold hold;
+        while ((hold = holds.poll()) != null) {
+            try {
+                // Credited account is loaded before its credit commits, so it is added once
+                Account account = account(hold.getUserId());
+                if (!hold.isCredit()) {
+                    if (account.balance < hold.getAmount()) {
+                        hold.getAcquired().completeExceptionally(
+                                new NotEnoughBalanceException("Not enough balance"));
+                        continue;
+                    }
+                    account.balance -= hold.getAmount();
+                }
+                account.holds++;
+                account.lastUsed = System.currentTimeMillis();
+                hold.getAcquired().complete(null);
+            } catch (RuntimeException e) {
+                hold.getAcquired().completeExceptionally(e);
+            }
+        }
+        while ((hold = releasedHolds.poll()) != null) {
+            // Accounts with holds are not evicted
+            Account account = accounts.get(hold.getUserId());
+            account.holds--;
+            // Debits are returned unless committed, credits are added once committed
+            if (hold.isCommitted() == hold.isCredit()) account.balance += hold.getAmount();
+        }
+    }
+
+    private static class Account {
+
+        private long balance;
+        private long lastDebitSeq;
+        private long lastUsed = System.currentTimeMillis();
+        private int holds;
+
+        private Account(long balance) {
+            this.balance = balance;
+        }
+
+    }
+
+    private static class Credit {
+
+        private final JournalRecord record;
+        private final boolean flushed;
+
+        private Credit(JournalRecord record, boolean flushed) {
+            this.record = record;
+            this.flushed = flushed;
+        }
+
+    }
+
+}
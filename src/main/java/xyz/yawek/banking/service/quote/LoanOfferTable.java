@@ -0,0 +1,145 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.quote;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.rest.LoanQuotes;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Repayment amount and term of every loan amount allowed by
+ * {@link xyz.yawek.banking.validation.LoanAmountValidator}, computed once for the
+ * current loan terms. Changing the terms replaces the whole table, so a loan is
+ * always priced by one set of terms.
+ */
+@Slf4j
+@Component
+public class LoanOfferTable {
+
+    public static final long AMOUNT_STEP = 500;
+    public static final long MAX_AMOUNT = 100000;
+    // Every full 500 of the loan gives a year to repay it
+    private static final Money AMOUNT_PER_YEAR = Money.ofMajorUnits(500);
+
+    private volatile Offers offers;
+
+    public LoanOfferTable(@Value("${app.loan-repayment-amount-multiplier}") BigDecimal multiplier,
+                          @Value("${app.loan-repayment-amount-limit}") Money limit) {
+        this.offers = new Offers(multiplier, limit);
+    }
+
+    /**
+     * Replaces the table with one computed for the new terms.
+     */
+    public void reload(BigDecimal multiplier, Money limit) {
+        offers = new Offers(multiplier, limit);
+        log.info("Loan terms changed to repayment multiplier {} and limit {}", multiplier, limit);
+    }
+
+    /**
+     * @param amount loan amount allowed by the validator, in any currency
+     * @return repayment amount in the loan's currency
+     */
+    public Money getRepaymentAmount(long amount) {
+        return Money.ofMinorUnits(offers.repaymentAmounts[index(amount)]);
+    }
+
+    /**
+     * @param amount loan amount allowed by the validator, in the base currency
+     */
+    public long getTermYears(long amount) {
+        return offers.termYears[index(amount)];
+    }
+
+    /**
+     * @param baseAmount loan amount converted to the base currency
+     */
+    public static long termYears(Money baseAmount) {
+        return baseAmount.divideToIntegral(AMOUNT_PER_YEAR);
+    }
+
+    public BigDecimal getMultiplier() {
+        return offers.multiplier;
+    }
+
+    public Money getLimit() {
+        return offers.limit;
+    }
+
+    /**
+     * Offers in the base currency with the biggest amount the user can take. A loan
+     * fits if the outstanding loans and its amount are within the limit, the rule
+     * checked when the loan is taken.
+     */
+    public LoanQuotes quote(Money outstandingLoans) {
+        Offers current = offers;
+        Money headroom = Money.ofMinorUnits(
+                Math.max(0, current.limit.subtract(outstandingLoans).getMinorUnits()));
+        long maxAmount = Math.min(MAX_AMOUNT,
+                headroom.divideToIntegral(Money.ofMajorUnits(AMOUNT_STEP)) * AMOUNT_STEP);
+        return new LoanQuotes(current.limit.toBigDecimal(), headroom.toBigDecimal(),
+                maxAmount, current.list);
+    }
+
+    private static int index(long amount) {
+        if (amount % AMOUNT_STEP != 0 || amount < AMOUNT_STEP || amount > MAX_AMOUNT)
+            throw new IllegalArgumentException("Loan amount " + amount + " is not allowed");
+        return (int) (amount / AMOUNT_STEP - 1);
+    }
+
+    private static long amountOf(int index) {
+        return (index + 1) * AMOUNT_STEP;
+    }
+
+    private static final class Offers {
+
+        private final BigDecimal multiplier;
+        private final Money limit;
+        private final long[] repaymentAmounts;
+        private final long[] termYears;
+        private final List<LoanQuotes.LoanOffer> list;
+
+        private Offers(BigDecimal multiplier, Money limit) {
+            int size = (int) (MAX_AMOUNT / AMOUNT_STEP);
+            this.multiplier = multiplier;
+            this.limit = limit;
+            this.repaymentAmounts = new long[size];
+            this.termYears = new long[size];
+            List<LoanQuotes.LoanOffer> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                Money amount = Money.ofMajorUnits(amountOf(i));
+                Money repaymentAmount = amount.multiply(multiplier, RoundingMode.HALF_UP);
+                repaymentAmounts[i] = repaymentAmount.getMinorUnits();
+                termYears[i] = termYears(amount);
+                list.add(new LoanQuotes.LoanOffer(amountOf(i), repaymentAmount.toBigDecimal(), termYears[i]));
+            }
+            this.list = Collections.unmodifiableList(list);
+        }
+
+    }
+
+}
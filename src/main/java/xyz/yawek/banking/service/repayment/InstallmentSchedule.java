@@ -0,0 +1,58 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.repayment;
+
+import xyz.yawek.banking.model.Loan;
+import xyz.yawek.banking.model.LoanInstallment;
+import xyz.yawek.banking.model.Money;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a loan's repayment amount into monthly installments.
+ */
+public final class InstallmentSchedule {
+
+    private InstallmentSchedule() {
+    }
+
+    /**
+     * Installments are due every month after the loan was taken, the last one on its repayment date.
+     * All are equal, the last one also covers what does not divide evenly.
+     * @param takenOn day the loan was taken
+     */
+    public static List<LoanInstallment> of(Loan loan, LocalDate takenOn) {
+        LocalDate repaymentDay = loan.getRepaymentDate().toLocalDate();
+        int count = (int) Math.max(1, ChronoUnit.MONTHS.between(takenOn, repaymentDay));
+        long total = loan.getRepaymentAmount().getMinorUnits();
+        Money amount = Money.ofMinorUnits(total / count);
+        List<LoanInstallment> installments = new ArrayList<>(count);
+        for (int number = 1; number < count; number++) {
+            installments.add(new LoanInstallment(loan.getId(), loan.getUser().getId(), number,
+                    takenOn.plusMonths(number), amount, loan.getCurrency()));
+        }
+        installments.add(new LoanInstallment(loan.getId(), loan.getUser().getId(), count,
+                repaymentDay, Money.ofMinorUnits(total - total / count * (count - 1)), loan.getCurrency()));
+        return installments;
+    }
+
+}
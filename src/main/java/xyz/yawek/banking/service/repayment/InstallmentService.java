@@ -0,0 +1,74 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.repayment;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.yawek.banking.model.Loan;
+import xyz.yawek.banking.model.LoanInstallment;
+import xyz.yawek.banking.model.Money;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.List;
+
+@Service
+@Transactional
+@RequiredArgsConstructor
+public class InstallmentService {
+
+    private static final String INSERT = "insert into loan_installments"
+            + " (loan_id, user_id, number, due_date, amount, currency, paid) values (?, ?, ?, ?, ?, ?, false)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Writes the loan's installment schedule in one JDBC batch.
+     * @return the installments
+     */
+    public List<LoanInstallment> createSchedule(Loan loan) {
+        List<LoanInstallment> installments = InstallmentSchedule.of(loan, LocalDate.now());
+        jdbcTemplate.batchUpdate(INSERT, installments, installments.size(), (statement, installment) -> {
+            statement.setLong(1, installment.getLoanId());
+            statement.setLong(2, installment.getUserId());
+            statement.setInt(3, installment.getNumber());
+            statement.setDate(4, Date.valueOf(installment.getDueDate()));
+            statement.setBigDecimal(5, installment.getAmount().toBigDecimal());
+            statement.setString(6, installment.getCurrency());
+        });
+        return installments;
+    }
+
+    @Transactional(readOnly = true)
+    public List<LoanInstallment> getInstallments(long loanId) {
+        return jdbcTemplate.query("select id, loan_id, user_id, number, due_date, amount, currency, paid"
+                        + " from loan_installments where loan_id = ? order by number",
+                (rs, i) -> {
+                    LoanInstallment installment = new LoanInstallment(rs.getLong(2), rs.getLong(3), rs.getInt(4),
+                            rs.getDate(5).toLocalDate(), Money.valueOf(rs.getBigDecimal(6)),
+                            rs.getString(7));
+                    installment.setId(rs.getLong(1));
+                    installment.setPaid(rs.getBoolean(8));
+                    return installment;
+                }, loanId);
+    }
+
+}
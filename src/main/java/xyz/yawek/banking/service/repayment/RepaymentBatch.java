@@ -0,0 +1,359 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.repayment;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.LedgerEntry;
+import xyz.yawek.banking.model.Loan;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.rest.RepaymentReport;
+import xyz.yawek.banking.repository.LoanRepository;
+import xyz.yawek.banking.service.LoanService;
+import xyz.yawek.banking.service.ledger.LedgerPosting;
+import xyz.yawek.banking.service.ledger.LedgerService;
+import xyz.yawek.banking.service.outbox.OutboxMessage;
+import xyz.yawek.banking.service.outbox.OutboxService;
+import xyz.yawek.banking.service.pipeline.BalanceHold;
+import xyz.yawek.banking.service.pipeline.PaymentPipeline;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects due loan installments from users' balances. A run covers installments due
+ * up to its date. Users with due installments are split into id ranges processed in
+ * parallel, each range in chunks following the due index, one transaction per chunk.
+ * Every chunk moves the range's checkpoint, which is locked for the chunk, so a run
+ * started again continues where it stopped, also when several instances run it.
+ * Installments are claimed before they are debited, so runs of different dates
+ * overlapping each other never collect one twice.
+ * <p>
+ * Claimed installments are locked first, then rows in the order used by payments:
+ * sharded users, other users, balances in other currencies and balance shards last.
+ */
+@Slf4j
+@Component
+public class RepaymentBatch {
+
+    private static final LocalDate START = LocalDate.of(1970, 1, 1);
+    private static final String SELECT_DUE = "select id, loan_id, user_id, due_date, amount, currency"
+            + " from loan_installments where paid = false and due_date <= ?"
+            + " and (due_date, user_id, id) > (?, ?, ?) and user_id between ? and ?"
+            + " order by due_date, user_id, id limit ?";
+    private static final String CLAIM = "update loan_installments set paid = true where id = ? and paid = false";
+    private static final String DEBIT_USER = "update users set balance = balance - ?, version = version + 1"
+            + " where id = ? and balance >= ?";
+    private static final String DEBIT_CURRENCY = "update currency_balances set balance = balance - ?"
+            + " where user_id = ? and currency = ? and balance >= ?";
+    private static final String CHECKPOINT = "update repayment_checkpoints set last_due_date = ?,"
+            + " last_user_id = ?, last_installment_id = ?, paid = paid + ?, unpaid = unpaid + ? where name = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final LoanRepository loanRepository;
+    private final LoanService loanService;
+    private final LedgerService ledgerService;
+    private final OutboxService outboxService;
+    private final ObjectProvider<PaymentPipeline> paymentPipeline;
+    private final int partitions;
+    private final int threads;
+    private final int chunkSize;
+
+    public RepaymentBatch(JdbcTemplate jdbcTemplate,
+                          NamedParameterJdbcTemplate namedJdbcTemplate,
+                          TransactionTemplate transactionTemplate,
+                          LoanRepository loanRepository,
+                          LoanService loanService,
+                          LedgerService ledgerService,
+                          OutboxService outboxService,
+                          ObjectProvider<PaymentPipeline> paymentPipeline,
+                          @Value("${app.loan.repayment.partitions}") int partitions,
+                          @Value("${app.loan.repayment.threads}") int threads,
+                          @Value("${app.loan.repayment.chunk-size}") int chunkSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.loanRepository = loanRepository;
+        this.loanService = loanService;
+        this.ledgerService = ledgerService;
+        this.outboxService = outboxService;
+        this.paymentPipeline = paymentPipeline;
+        this.partitions = partitions;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    @Scheduled(cron = "${app.loan.repayment.cron}")
+    public void collectDue() {
+        collect(LocalDate.now());
+    }
+
+    /**
+     * Runs, or continues, the repayment run of the given date.
+     */
+    public RepaymentReport collect(LocalDate dueDate) {
+        long start = System.nanoTime();
+        List<String> ranges = plan(dueDate);
+        AtomicLong processed = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>(ranges.size());
+            for (String range : ranges) {
+                futures.add(executor.submit(() -> {
+                    while (processChunk(range, dueDate, processed)) {
+                        // Continue with the next chunk
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Repayment run was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Repayment run failed, it continues from its checkpoints when"
+                    + " started again", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        Map<String, Object> totals = jdbcTemplate.queryForMap("select count(*) ranges,"
+                + " coalesce(sum(paid), 0) paid, coalesce(sum(unpaid), 0) unpaid"
+                + " from repayment_checkpoints where due_date = ?", Date.valueOf(dueDate));
+        RepaymentReport report = new RepaymentReport(dueDate, ((Number) totals.get("ranges")).intValue(),
+                ((Number) totals.get("paid")).longValue(), ((Number) totals.get("unpaid")).longValue(),
+                processed.get(), elapsed, elapsed > 0 ? processed.get() * 1000.0 / elapsed : 0);
+        if (report.getProcessed() > 0) log.info("Repayment run {}", report);
+        return report;
+    }
+
+    /**
+     * Splits users with installments due up to the date into id ranges, unless the run
+     * already has them. All ranges are inserted in one transaction, so instances
+     * planning the run at once wait for each other and end up with the same ranges.
+     * @return names of the unfinished ranges
+     */
+    private List<String> plan(LocalDate dueDate) {
+        Date date = Date.valueOf(dueDate);
+        transactionTemplate.executeWithoutResult(status -> {
+            Integer existing = jdbcTemplate.queryForObject(
+                    "select count(*) from repayment_checkpoints where due_date = ?", Integer.class, date);
+            if (existing != null && existing > 0) return;
+            Map<String, Object> bounds = jdbcTemplate.queryForMap("select min(user_id) lower, max(user_id) upper"
+                    + " from loan_installments where paid = false and due_date <= ?", date);
+            if (bounds.get("lower") == null) return;
+            long lower = ((Number) bounds.get("lower")).longValue();
+            long upper = ((Number) bounds.get("upper")).longValue();
+            long width = Math.max(1, (upper - lower) / partitions + 1);
+            List<Object[]> rows = new ArrayList<>(partitions);
+            for (int partition = 0; partition < partitions && lower + partition * width <= upper; partition++) {
+                long from = lower + partition * width;
+                rows.add(new Object[] { dueDate + "/" + partition, date, from, Math.min(upper, from + width - 1),
+                        Date.valueOf(START) });
+            }
+            jdbcTemplate.batchUpdate("insert ignore into repayment_checkpoints (name, due_date, from_user_id,"
+                    + " to_user_id, last_due_date, last_user_id, last_installment_id, paid, unpaid, finished)"
+                    + " values (?, ?, ?, ?, ?, 0, 0, 0, 0, false)", rows);
+        });
+        return jdbcTemplate.queryForList("select name from repayment_checkpoints"
+                + " where due_date = ? and finished = false order by name", String.class, date);
+    }
+
+    /**
+     * Collects the next chunk of the range's installments.
+     * @return false if the range is finished
+     */
+    private boolean processChunk(String range, LocalDate dueDate, AtomicLong processed) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            Map<String, Object> checkpoint = jdbcTemplate.queryForMap("select from_user_id, to_user_id,"
+                    + " last_due_date, last_user_id, last_installment_id, finished from repayment_checkpoints"
+                    + " where name = ? for update", range);
+            if ((Boolean) checkpoint.get("finished")) return false;
+            List<DueInstallment> due = jdbcTemplate.query(SELECT_DUE, (rs, i) -> new DueInstallment(
+                    rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getDate(4).toLocalDate(),
+                    Money.valueOf(rs.getBigDecimal(5)), rs.getString(6)),
+                    Date.valueOf(dueDate), checkpoint.get("last_due_date"), checkpoint.get("last_user_id"),
+                    checkpoint.get("last_installment_id"), checkpoint.get("from_user_id"),
+                    checkpoint.get("to_user_id"), chunkSize);
+            if (due.isEmpty()) {
+                jdbcTemplate.update("update repayment_checkpoints set finished = true where name = ?", range);
+                return false;
+            }
+
+            List<DueInstallment> claimed = claim(due);
+            List<DueInstallment> paid = debit(claimed);
+            if (paid.size() < claimed.size()) {
+                // Installments not covered by the balance stay due
+                Set<Long> paidIds = new HashSet<>(paid.stream().map(DueInstallment::getId).toList());
+                namedJdbcTemplate.update("update loan_installments set paid = false where id in (:ids)",
+                        Map.of("ids", claimed.stream()
+                                .map(DueInstallment::getId)
+                                .filter(id -> !paidIds.contains(id))
+                                .toList()));
+            }
+            if (!paid.isEmpty()) {
+                ledgerService.record(paid.stream()
+                        .filter(installment -> installment.getCurrency() == null)
+                        .map(installment -> new LedgerPosting(installment.getUserId(), LedgerService.BANK_ACCOUNT_ID,
+                                installment.getAmount(), LedgerEntry.Kind.REPAYMENT, installment.getLoanId()))
+                        .toList());
+                completeLoans(paid);
+            }
+            DueInstallment last = due.get(due.size() - 1);
+            jdbcTemplate.update(CHECKPOINT, Date.valueOf(last.getDueDate()), last.getUserId(), last.getId(),
+                    paid.size(), claimed.size() - paid.size(), range);
+            processed.addAndGet(due.size());
+            return true;
+        }));
+    }
+
+    /**
+     * Marks installments as paid unless another run already did.
+     * @return installments claimed by this run
+     */
+    private List<DueInstallment> claim(List<DueInstallment> due) {
+        int[] counts = jdbcTemplate.batchUpdate(CLAIM, due.stream()
+                .map(installment -> new Object[] { installment.getId() })
+                .toList());
+        List<DueInstallment> claimed = new ArrayList<>(due.size());
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] > 0) claimed.add(due.get(i));
+        return claimed;
+    }
+
+    /**
+     * Takes installments from balances of their users, oldest first, as long as they cover them.
+     * @return paid installments
+     */
+    private List<DueInstallment> debit(List<DueInstallment> due) {
+        if (due.isEmpty()) return List.of();
+        List<DueInstallment> ordered = new ArrayList<>(due);
+        ordered.sort(Comparator.comparingLong(DueInstallment::getUserId)
+                .thenComparing(DueInstallment::getDueDate)
+                .thenComparingLong(DueInstallment::getId));
+        Set<Long> sharded = new HashSet<>(namedJdbcTemplate.queryForList("select id from users"
+                        + " where id in (:ids) and balance_shards > 0 order by id for update",
+                Map.of("ids", ordered.stream().map(DueInstallment::getUserId).distinct().toList()),
+                Long.class));
+
+        List<DueInstallment> paid = new ArrayList<>(ordered.size());
+        paid.addAll(debitUsers(ordered.stream()
+                .filter(installment -> installment.getCurrency() == null
+                        && !sharded.contains(installment.getUserId()))
+                .toList()));
+        List<DueInstallment> inCurrencies = ordered.stream()
+                .filter(installment -> installment.getCurrency() != null)
+                .toList();
+        int[] counts = jdbcTemplate.batchUpdate(DEBIT_CURRENCY, inCurrencies.stream()
+                .map(installment -> new Object[] { installment.getAmount().toBigDecimal(),
+                        installment.getUserId(), installment.getCurrency(), installment.getAmount().toBigDecimal() })
+                .toList());
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] > 0) paid.add(inCurrencies.get(i));
+        if (!sharded.isEmpty()) {
+            sweep(sharded);
+            paid.addAll(debitUsers(ordered.stream()
+                    .filter(installment -> installment.getCurrency() == null
+                            && sharded.contains(installment.getUserId()))
+                    .toList()));
+        }
+        return paid;
+    }
+
+    private List<DueInstallment> debitUsers(List<DueInstallment> installments) {
+        // Payments in the pipeline must not spend the same balance
+        PaymentPipeline pipeline = paymentPipeline.getIfAvailable();
+        List<BalanceHold> holds = new ArrayList<>(installments.size());
+        if (pipeline != null) {
+            List<DueInstallment> held = new ArrayList<>(installments.size());
+            for (DueInstallment installment : installments) {
+                try {
+                    holds.add(pipeline.hold(installment.getUserId(), installment.getAmount()));
+                    held.add(installment);
+                } catch (NotEnoughBalanceException e) {
+                    // Stays unpaid
+                }
+            }
+            installments = held;
+        }
+        int[] counts = jdbcTemplate.batchUpdate(DEBIT_USER, installments.stream()
+                .map(installment -> new Object[] { installment.getAmount().toBigDecimal(),
+                        installment.getUserId(), installment.getAmount().toBigDecimal() })
+                .toList());
+        List<DueInstallment> paid = new ArrayList<>(installments.size());
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) paid.add(installments.get(i));
+            else if (pipeline != null) holds.get(i).cancel();
+        }
+        return paid;
+    }
+
+    /**
+     * Moves balance shards of the users, whose rows are already locked, to their balance.
+     */
+    private void sweep(Set<Long> userIds) {
+        Map<String, Object> ids = Map.of("ids", userIds);
+        Map<Long, Object[]> sums = new HashMap<>();
+        namedJdbcTemplate.query("select user_id, sum(balance) from balance_shards"
+                + " where user_id in (:ids) group by user_id for update", ids, rs -> {
+            sums.put(rs.getLong(1), new Object[] { rs.getBigDecimal(2), rs.getLong(1) });
+        });
+        jdbcTemplate.batchUpdate("update users set balance = balance + ?, version = version + 1 where id = ?",
+                new ArrayList<>(sums.values()));
+        namedJdbcTemplate.update("update balance_shards set balance = 0 where user_id in (:ids)", ids);
+    }
+
+    /**
+     * Marks loans with all installments paid as repaid.
+     */
+    private void completeLoans(List<DueInstallment> paid) {
+        List<Long> completed = namedJdbcTemplate.queryForList("select l.id from loans l"
+                        + " where l.id in (:ids) and l.repaid = false and not exists (select 1"
+                        + " from loan_installments i where i.loan_id = l.id and i.paid = false)",
+                Map.of("ids", paid.stream().map(DueInstallment::getLoanId).distinct().toList()), Long.class);
+        for (Loan loan : loanRepository.findAllById(completed)) {
+            if (loanService.markRepaid(loan))
+                outboxService.append(OutboxMessage.loanRepaid(loan.getId(), loan.getUser().getId()));
+        }
+    }
+
+}
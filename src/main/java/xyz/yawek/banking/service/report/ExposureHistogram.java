@@ -0,0 +1,149 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.report;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Number of loans and their exposure in hundredths per maturity bucket, size band
+ * and customer, kept in primitive arrays. Customers are held in an open-addressing
+ * table keyed by user id, so adding a loan allocates nothing until the table grows.
+ */
+class ExposureHistogram {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    final long[] maturityLoans;
+    final long[] maturityExposure;
+    final long[] bandLoans;
+    final long[] bandExposure;
+    long loans;
+    long exposure;
+
+    private long[] customerIds;
+    private long[] customerLoans;
+    private long[] customerExposure;
+    private int customers;
+
+    ExposureHistogram(int maturities, int bands) {
+        maturityLoans = new long[maturities];
+        maturityExposure = new long[maturities];
+        bandLoans = new long[bands];
+        bandExposure = new long[bands];
+        allocateCustomers(64);
+    }
+
+    void add(int maturity, int band, long userId, long amount) {
+        loans++;
+        exposure += amount;
+        maturityLoans[maturity]++;
+        maturityExposure[maturity] += amount;
+        bandLoans[band]++;
+        bandExposure[band] += amount;
+        addCustomer(userId, 1, amount);
+    }
+
+    /**
+     * Adds counts of the other histogram to this one.
+     */
+    ExposureHistogram merge(ExposureHistogram other) {
+        loans += other.loans;
+        exposure += other.exposure;
+        for (int i = 0; i < maturityLoans.length; i++) {
+            maturityLoans[i] += other.maturityLoans[i];
+            maturityExposure[i] += other.maturityExposure[i];
+        }
+        for (int i = 0; i < bandLoans.length; i++) {
+            bandLoans[i] += other.bandLoans[i];
+            bandExposure[i] += other.bandExposure[i];
+        }
+        for (int i = 0; i < other.customerIds.length; i++) {
+            if (other.customerIds[i] != EMPTY)
+                addCustomer(other.customerIds[i], other.customerLoans[i], other.customerExposure[i]);
+        }
+        return this;
+    }
+
+    int getCustomers() {
+        return customers;
+    }
+
+    /**
+     * @return slots of the customers with the biggest exposure, biggest first
+     */
+    int[] topCustomers(int limit) {
+        return IntStream.range(0, customerIds.length)
+                .filter(slot -> customerIds[slot] != EMPTY)
+                .boxed()
+                .sorted((a, b) -> Long.compare(customerExposure[b], customerExposure[a]))
+                .limit(limit)
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    long customerId(int slot) {
+        return customerIds[slot];
+    }
+
+    long customerLoans(int slot) {
+        return customerLoans[slot];
+    }
+
+    long customerExposure(int slot) {
+        return customerExposure[slot];
+    }
+
+    private void addCustomer(long userId, long loans, long amount) {
+        int mask = customerIds.length - 1;
+        int slot = Long.hashCode(userId * 0x9E3779B97F4A7C15L) & mask;
+        while (customerIds[slot] != EMPTY && customerIds[slot] != userId)
+            slot = (slot + 1) & mask;
+        if (customerIds[slot] == EMPTY) {
+            customerIds[slot] = userId;
+            if (++customers * 2 > customerIds.length) {
+                customerLoans[slot] = loans;
+                customerExposure[slot] = amount;
+                grow();
+                return;
+            }
+        }
+        customerLoans[slot] += loans;
+        customerExposure[slot] += amount;
+    }
+
+    private void grow() {
+        long[] ids = customerIds;
+        long[] loans = customerLoans;
+        long[] amounts = customerExposure;
+        allocateCustomers(ids.length * 2);
+        customers = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != EMPTY) addCustomer(ids[i], loans[i], amounts[i]);
+        }
+    }
+
+    private void allocateCustomers(int capacity) {
+        customerIds = new long[capacity];
+        Arrays.fill(customerIds, EMPTY);
+        customerLoans = new long[capacity];
+        customerExposure = new long[capacity];
+    }
+
+}
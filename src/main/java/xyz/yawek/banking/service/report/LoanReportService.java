@@ -0,0 +1,251 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.report;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.rest.LoanPortfolioReport;
+
+import javax.annotation.PreDestroy;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exposure of the loan portfolio by maturity, loan size and customer. Loans are
+ * streamed in id ranges split by a fork-join pool, each range aggregated into
+ * primitive histograms which are merged as the tasks join, so loans are never
+ * held in memory. The report is cached until a loan is taken or repaid on this
+ * instance, or until it is older than the configured time to live.
+ */
+@Slf4j
+@Service
+public class LoanReportService {
+
+    /**
+     * Lower bounds of maturity buckets, in years until the repayment date.
+     */
+    private static final int[] MATURITY_YEARS = { 0, 1, 2, 5, 10, 25, 50 };
+    private static final long BAND_WIDTH = Money.ofMajorUnits(500).getMinorUnits();
+    // The grid of loan amounts allowed by LoanAmountValidator
+    private static final int BANDS = 200;
+    private static final int TOP_CUSTOMERS = 20;
+    private static final String SELECT_LOANS = "select user_id, amount, repayment_date,"
+            + " coalesce(limit_amount, repayment_amount) from loans"
+            + " where id >= ? and id < ? and repaid = false";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final ForkJoinPool pool;
+    private final long rangeSize;
+    private final long ttl;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile CachedReport cached;
+
+    public LoanReportService(JdbcTemplate jdbcTemplate,
+                             NamedParameterJdbcTemplate namedJdbcTemplate,
+                             @Value("${app.loan.report.parallelism}") int parallelism,
+                             @Value("${app.loan.report.range-size}") long rangeSize,
+                             @Value("${app.loan.report.cache-ttl}") long ttl) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.pool = new ForkJoinPool(parallelism);
+        this.rangeSize = rangeSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return cached report, or a new one if loans changed since it was generated
+     */
+    public LoanPortfolioReport getReport() {
+        CachedReport current = cached;
+        long currentGeneration = generation.get();
+        if (current != null && current.generation == currentGeneration
+                && current.report.getGeneratedAt().plus(ttl, ChronoUnit.MILLIS).isAfter(LocalDateTime.now()))
+            return current.report;
+        LoanPortfolioReport report = generate();
+        // Not cached if loans changed while it was generated
+        if (generation.get() == currentGeneration) cached = new CachedReport(currentGeneration, report);
+        return report;
+    }
+
+    /**
+     * Drops the cached report once the current transaction commits.
+     */
+    public void invalidateAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            generation.incrementAndGet();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                generation.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Generates the report without the cache.
+     */
+    public LoanPortfolioReport generate() {
+        long start = System.nanoTime();
+        LocalDateTime now = LocalDateTime.now();
+        Map<String, Object> bounds = jdbcTemplate.queryForMap(
+                "select coalesce(min(id), 0) lower, coalesce(max(id), -1) upper from loans");
+        long lower = ((Number) bounds.get("lower")).longValue();
+        long upper = ((Number) bounds.get("upper")).longValue() + 1;
+        ExposureHistogram histogram = pool.invoke(new RangeTask(lower, upper, now.toLocalDate()));
+
+        LoanPortfolioReport report = new LoanPortfolioReport(now, histogram.loans,
+                Money.ofMinorUnits(histogram.exposure).toBigDecimal(), histogram.getCustomers(),
+                maturities(histogram), sizeBands(histogram), topCustomers(histogram));
+        log.debug("Generated loan report of {} loans in {} ms", histogram.loans,
+                (System.nanoTime() - start) / 1_000_000);
+        return report;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    static int maturity(LocalDate today, LocalDate repaymentDate) {
+        if (repaymentDate.isBefore(today)) return 0;
+        long years = ChronoUnit.YEARS.between(today, repaymentDate);
+        int bucket = MATURITY_YEARS.length - 1;
+        while (years < MATURITY_YEARS[bucket]) bucket--;
+        return bucket + 1;
+    }
+
+    static int band(long amount) {
+        return (int) Math.max(0, Math.min(BANDS - 1, (amount - 1) / BAND_WIDTH));
+    }
+
+    private List<LoanPortfolioReport.Bucket> maturities(ExposureHistogram histogram) {
+        List<LoanPortfolioReport.Bucket> buckets = new ArrayList<>(MATURITY_YEARS.length + 1);
+        buckets.add(bucket("overdue", histogram.maturityLoans[0], histogram.maturityExposure[0]));
+        for (int i = 0; i < MATURITY_YEARS.length; i++) {
+            String label = i + 1 < MATURITY_YEARS.length
+                    ? MATURITY_YEARS[i] + "-" + MATURITY_YEARS[i + 1] + "y"
+                    : MATURITY_YEARS[i] + "y+";
+            buckets.add(bucket(label, histogram.maturityLoans[i + 1], histogram.maturityExposure[i + 1]));
+        }
+        return buckets;
+    }
+
+    private List<LoanPortfolioReport.Bucket> sizeBands(ExposureHistogram histogram) {
+        List<LoanPortfolioReport.Bucket> bands = new ArrayList<>();
+        for (int band = 0; band < BANDS; band++) {
+            if (histogram.bandLoans[band] == 0) continue;
+            long from = band * BAND_WIDTH / 100 + 1;
+            String label = band == BANDS - 1 ? from + "+" : from + "-" + (band + 1) * BAND_WIDTH / 100;
+            bands.add(bucket(label, histogram.bandLoans[band], histogram.bandExposure[band]));
+        }
+        return bands;
+    }
+
+    private List<LoanPortfolioReport.CustomerExposure> topCustomers(ExposureHistogram histogram) {
+        int[] slots = histogram.topCustomers(TOP_CUSTOMERS);
+        if (slots.length == 0) return List.of();
+        Map<Long, String> emails = new HashMap<>();
+        List<Long> ids = new ArrayList<>(slots.length);
+        for (int slot : slots) ids.add(histogram.customerId(slot));
+        namedJdbcTemplate.query("select id, email from users where id in (:ids)", Map.of("ids", ids),
+                rs -> {
+                    emails.put(rs.getLong(1), rs.getString(2));
+                });
+        List<LoanPortfolioReport.CustomerExposure> customers = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            customers.add(new LoanPortfolioReport.CustomerExposure(emails.get(histogram.customerId(slot)),
+                    histogram.customerLoans(slot), Money.ofMinorUnits(histogram.customerExposure(slot)).toBigDecimal()));
+        }
+        return customers;
+    }
+
+    private static LoanPortfolioReport.Bucket bucket(String label, long loans, long exposure) {
+        return new LoanPortfolioReport.Bucket(label, loans, Money.ofMinorUnits(exposure).toBigDecimal());
+    }
+
+    /**
+     * Aggregates loans with ids in {@code [from, to)}, split in halves down to the range size.
+     */
+    private class RangeTask extends RecursiveTask<ExposureHistogram> {
+
+        private final long from;
+        private final long to;
+        private final LocalDate today;
+
+        private RangeTask(long from, long to, LocalDate today) {
+            this.from = from;
+            this.to = to;
+            this.today = today;
+        }
+
+        @Override
+        protected ExposureHistogram compute() {
+            if (to - from > rangeSize) {
+                long middle = from + (to - from) / 2;
+                RangeTask left = new RangeTask(from, middle, today);
+                left.fork();
+                ExposureHistogram right = new RangeTask(middle, to, today).compute();
+                return left.join().merge(right);
+            }
+            ExposureHistogram histogram = new ExposureHistogram(MATURITY_YEARS.length + 1, BANDS);
+            if (from >= to) return histogram;
+            jdbcTemplate.query(SELECT_LOANS, rs -> {
+                Date repaymentDate = rs.getDate(3);
+                histogram.add(
+                        repaymentDate == null ? 0 : maturity(today, repaymentDate.toLocalDate()),
+                        band(Money.valueOf(rs.getBigDecimal(2)).getMinorUnits()),
+                        rs.getLong(1),
+                        Money.valueOf(rs.getBigDecimal(4)).getMinorUnits());
+            }, from, to);
+            return histogram;
+        }
+
+    }
+
+    private static final class CachedReport {
+
+        private final long generation;
+        private final LoanPortfolioReport report;
+
+        private CachedReport(long generation, LoanPortfolioReport report) {
+            this.generation = generation;
+            this.report = report;
+        }
+
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.rollup;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.model.PaymentRollup;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.rest.PaymentSummary;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Daily and monthly totals of users' payments, so summaries don't scan payments.
+ * New payments are folded into the rollups in batches by a tailer following
+ * payment ids, which keeps the rollup rows of popular receivers out of the
+ * payment transactions and covers every way payments are written.
+ */
+@Slf4j
+@Service
+public class PaymentRollupService {
+
+    private static final String PROGRESS_NAME = "payments";
+    private static final int TOP_COUNTERPARTIES = 5;
+
+    private static final String DAY_START = "date(p.timestamp)";
+    private static final String MONTH_START = "date_format(p.timestamp, '%Y-%m-01')";
+    // Rollups are kept in the base currency, so payments in other currencies are left out
+    private static final String BASE_CURRENCY = " and p.currency is null and p.received_amount is null";
+    private static final String PERIOD_TOTALS = "insert into payment_rollups"
+            + " (user_id, period, period_start, inflow, outflow, received, sent)"
+            + " select user_id, ?, period_start, sum(inflow), sum(outflow), sum(received), sum(sent) from ("
+            + "select p.sender_id user_id, %1$s period_start, 0 inflow, p.amount outflow, 0 received, 1 sent"
+            + " from payments p where p.id > ? and p.id <= ?" + BASE_CURRENCY + " %2$s"
+            + " union all"
+            + " select p.receiver_id, %1$s, p.amount, 0, 1, 0"
+            + " from payments p where p.id > ? and p.id <= ?" + BASE_CURRENCY + " %3$s"
+            + ") t group by user_id, period_start"
+            + " on duplicate key update inflow = inflow + values(inflow), outflow = outflow + values(outflow),"
+            + " received = received + values(received), sent = sent + values(sent)";
+    private static final String COUNTERPARTY_TOTALS = "insert into counterparty_rollups"
+            + " (user_id, month, counterparty_id, inflow, outflow, payments)"
+            + " select user_id, month, counterparty_id, sum(inflow), sum(outflow), count(*) from ("
+            + "select p.sender_id user_id, %3$s month, p.receiver_id counterparty_id,"
+            + " 0 inflow, p.amount outflow from payments p where p.id > ? and p.id <= ?" + BASE_CURRENCY + " %1$s"
+            + " union all"
+            + " select p.receiver_id, %3$s, p.sender_id, p.amount, 0"
+            + " from payments p where p.id > ? and p.id <= ?" + BASE_CURRENCY + " %2$s"
+            + ") t group by user_id, month, counterparty_id"
+            + " on duplicate key update inflow = inflow + values(inflow), outflow = outflow + values(outflow),"
+            + " payments = payments + values(payments)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final long lag;
+    private final long maxPayments;
+    private final int rebuildThreads;
+
+    public PaymentRollupService(JdbcTemplate jdbcTemplate,
+                                TransactionTemplate transactionTemplate,
+                                @Value("${app.payment.rollup.lag}") long lag,
+                                @Value("${app.payment.rollup.max-payments}") long maxPayments,
+                                @Value("${app.payment.rollup.rebuild-threads}") int rebuildThreads) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.lag = lag;
+        this.maxPayments = maxPayments;
+        this.rebuildThreads = rebuildThreads;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initProgress() {
+        jdbcTemplate.update("insert ignore into rollup_progress (name, last_payment_id) values (?, 0)",
+                PROGRESS_NAME);
+    }
+
+    /**
+     * Adds payments written since the previous run to the rollups.
+     * The progress row is locked and moved in the same transaction as the rollups,
+     * so every payment is counted once even with many instances running.
+     * Payments newer than the configured lag are left for the next run,
+     * so payments of transactions committing out of id order are not skipped.
+     *
+     * @return number of folded payments
+     */
+    @Scheduled(fixedDelayString = "${app.payment.rollup.interval}",
+            initialDelayString = "${app.payment.rollup.interval}")
+    public int tail() {
+        Integer folded = transactionTemplate.execute(status -> {
+            long lower = lockFoldedPaymentId();
+            Long firstRecent = jdbcTemplate.queryForObject(
+                    "select min(id) from payments where id > ? and timestamp >= ?",
+                    Long.class, lower, Timestamp.valueOf(LocalDateTime.now().minus(lag, ChronoUnit.MILLIS)));
+            long bound = lower + maxPayments;
+            if (firstRecent != null) bound = Math.min(bound, firstRecent - 1);
+            Long upper = jdbcTemplate.queryForObject(
+                    "select max(id) from payments where id > ? and id <= ?",
+                    Long.class, lower, bound);
+            if (upper == null) return 0;
+
+            fold(lower, upper, "", "");
+            jdbcTemplate.update("update rollup_progress set last_payment_id = ? where name = ?",
+                    upper, PROGRESS_NAME);
+            return jdbcTemplate.queryForObject(
+                    "select count(*) from payments where id > ? and id <= ?", Integer.class, lower, upper);
+        });
+        if (folded != null && folded > 0) log.debug("Folded {} payments into rollups", folded);
+        return folded == null ? 0 : folded;
+    }
+
+    /**
+     * Recomputes all rollups from payments. Users are split by id into partitions
+     * rebuilt in parallel, each in its own transaction, so partitions never touch
+     * the same rows. The tailer and archiving are held off for the whole rebuild and
+     * the rollups are rebuilt up to the tailer's progress, so it continues exactly where
+     * they end. Rollups of archived months are kept as they are.
+     */
+    public void rebuild() {
+        transactionTemplate.executeWithoutResult(status -> {
+            long upper = lockFoldedPaymentId();
+            Timestamp horizon = jdbcTemplate.queryForObject(
+                    "select max(archived_before) from payment_segments", Timestamp.class);
+            ExecutorService executor = Executors.newFixedThreadPool(rebuildThreads);
+            try {
+                List<Future<?>> partitions = new ArrayList<>(rebuildThreads);
+                for (int partition = 0; partition < rebuildThreads; partition++) {
+                    int current = partition;
+                    partitions.add(executor.submit(() -> rebuildPartition(current, upper, horizon)));
+                }
+                for (Future<?> partition : partitions) {
+                    partition.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Rollup rebuild was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Rollup rebuild failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+            log.info("Rebuilt payment rollups up to payment {}", upper);
+        });
+    }
+
+    /**
+     * @return user's totals per period of the given months and the counterparties
+     * with the biggest payment volume in these months
+     */
+    public PaymentSummary getSummary(User user, YearMonth from, YearMonth to, PaymentRollup.Period period) {
+        Date start = Date.valueOf(from.atDay(1));
+        Date end = Date.valueOf(to.atEndOfMonth());
+        List<PaymentSummary.PeriodTotals> periods = jdbcTemplate.query(
+                "select period_start, inflow, outflow, received, sent from payment_rollups"
+                + " where user_id = ? and period = ? and period_start between ? and ?"
+                + " order by period_start",
+                (rs, i) -> new PaymentSummary.PeriodTotals(rs.getDate(1).toLocalDate(),
+                        rs.getBigDecimal(2), rs.getBigDecimal(3), rs.getLong(4), rs.getLong(5)),
+                user.getId(), period.name(), start, end);
+        List<PaymentSummary.CounterpartyTotals> counterparties = jdbcTemplate.query(
+                "select u.email, t.inflow, t.outflow, t.payments from ("
+                + "select counterparty_id, sum(inflow) inflow, sum(outflow) outflow, sum(payments) payments"
+                + " from counterparty_rollups where user_id = ? and month between ? and ?"
+                + " group by counterparty_id order by sum(inflow) + sum(outflow) desc limit ?"
+                + ") t join users u on u.id = t.counterparty_id"
+                + " order by t.inflow + t.outflow desc",
+                (rs, i) -> new PaymentSummary.CounterpartyTotals(rs.getString(1),
+                        rs.getBigDecimal(2), rs.getBigDecimal(3), rs.getLong(4)),
+                user.getId(), start, end, TOP_COUNTERPARTIES);
+        return new PaymentSummary(periods, counterparties);
+    }
+
+    /**
+     * @return id of the last payment included in the rollups
+     */
+    public long getFoldedPaymentId() {
+        return jdbcTemplate.queryForObject(
+                "select last_payment_id from rollup_progress where name = ?", Long.class, PROGRESS_NAME);
+    }
+
+    /**
+     * Locks the progress of the rollups until the current transaction ends.
+     *
+     * @return id of the last payment included in the rollups
+     */
+    public long lockFoldedPaymentId() {
+        return jdbcTemplate.queryForObject(
+                "select last_payment_id from rollup_progress where name = ? for update",
+                Long.class, PROGRESS_NAME);
+    }
+
+    private void rebuildPartition(int partition, long upper, Timestamp horizon) {
+        // Archived payments were removed from payments, so rollups of their months are kept
+        String since = horizon == null ? ""
+                : " and period_start >= '" + horizon.toLocalDateTime().toLocalDate() + "'";
+        String paymentsSince = horizon == null ? "" : " and p.timestamp >= '" + horizon + "'";
+        transactionTemplate.executeWithoutResult(status -> {
+            String users = "mod(user_id, " + rebuildThreads + ") = " + partition;
+            jdbcTemplate.update("delete from payment_rollups where " + users + since);
+            jdbcTemplate.update("delete from counterparty_rollups where " + users
+                    + since.replace("period_start", "month"));
+            fold(0, upper,
+                    "and mod(p.sender_id, " + rebuildThreads + ") = " + partition + paymentsSince,
+                    "and mod(p.receiver_id, " + rebuildThreads + ") = " + partition + paymentsSince);
+        });
+    }
+
+    private void fold(long lower, long upper, String senderFilter, String receiverFilter) {
+        jdbcTemplate.update(PERIOD_TOTALS.formatted(DAY_START, senderFilter, receiverFilter),
+                PaymentRollup.Period.DAY.name(), lower, upper, lower, upper);
+        jdbcTemplate.update(PERIOD_TOTALS.formatted(MONTH_START, senderFilter, receiverFilter),
+                PaymentRollup.Period.MONTH.name(), lower, upper, lower, upper);
+        jdbcTemplate.update(COUNTERPARTY_TOTALS.formatted(senderFilter, receiverFilter, MONTH_START),
+                lower, upper, lower, upper);
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.scheduled;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.exception.UserNotFoundException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.ScheduledPayment;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.repository.UserRepository;
+import xyz.yawek.banking.service.BatchPaymentService;
+import xyz.yawek.banking.service.Transfer;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Executes due scheduled payments. Due payments are claimed with {@code SKIP LOCKED},
+ * so several nodes can execute them at once without waiting for each other.
+ * Claimed payments of each sender are sent as one batch, in order of creation.
+ * Payments which cannot be sent are retried later, after the configured number
+ * of attempts the occurrence is skipped.
+ */
+@Slf4j
+@Component
+public class ScheduledPaymentExecutor {
+
+    private static final String CLAIM = "select id, sender_id, receiver_id, amount, frequency,"
+            + " start_at, runs, failures from scheduled_payments"
+            + " where status = 'ACTIVE' and next_run_at <= ?"
+            + " and (claimed_until is null or claimed_until < ?)"
+            + " order by sender_id, id limit ? for update skip locked";
+    private static final String ADVANCE = "update scheduled_payments set runs = runs + 1,"
+            + " next_run_at = ?, failures = 0, claim_token = null, claimed_until = null"
+            + " where id = ? and claim_token = ? and status = 'ACTIVE'";
+    private static final String FAIL = "update scheduled_payments set failures = ?, last_error = ?,"
+            + " runs = ?, next_run_at = ?, claim_token = null, claimed_until = null"
+            + " where id = ? and claim_token = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final UserRepository userRepository;
+    private final BatchPaymentService batchPaymentService;
+    private final int batchSize;
+    private final long lease;
+    private final long retryDelay;
+    private final int maxAttempts;
+
+    @Autowired
+    public ScheduledPaymentExecutor(
+            JdbcTemplate jdbcTemplate,
+            NamedParameterJdbcTemplate namedJdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            UserRepository userRepository,
+            BatchPaymentService batchPaymentService,
+            @Value("${app.payment.scheduled.batch-size}") int batchSize,
+            @Value("${app.payment.scheduled.lease}") long lease,
+            @Value("${app.payment.scheduled.retry-delay}") long retryDelay,
+            @Value("${app.payment.scheduled.max-attempts}") int maxAttempts) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = namedJdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.userRepository = userRepository;
+        this.batchPaymentService = batchPaymentService;
+        this.batchSize = batchSize;
+        this.lease = lease;
+        this.retryDelay = retryDelay;
+        this.maxAttempts = maxAttempts;
+    }
+
+    @Scheduled(fixedDelayString = "${app.payment.scheduled.poll-interval}")
+    public void executeDue() {
+        int claimed;
+        do {
+            claimed = executeBatch();
+        } while (claimed == batchSize);
+    }
+
+    /**
+     * Claims and executes one batch of due payments.
+     * @return number of claimed payments
+     */
+    public int executeBatch() {
+        String token = UUID.randomUUID().toString();
+        List<ScheduledPaymentClaim> claims = transactionTemplate.execute(status -> claim(token));
+        if (claims == null) return 0;
+
+        int from = 0;
+        while (from < claims.size()) {
+            long senderId = claims.get(from).getSenderId();
+            int to = from;
+            while (to < claims.size() && claims.get(to).getSenderId() == senderId) to++;
+            execute(token, claims.subList(from, to));
+            from = to;
+        }
+        return claims.size();
+    }
+
+    private List<ScheduledPaymentClaim> claim(String token) {
+        Timestamp now = Timestamp.valueOf(now());
+        List<ScheduledPaymentClaim> claims = jdbcTemplate.query(CLAIM, (rs, i) -> new ScheduledPaymentClaim(
+                rs.getLong("id"), rs.getLong("sender_id"), rs.getLong("receiver_id"),
+                rs.getBigDecimal("amount"), ScheduledPayment.Frequency.valueOf(rs.getString("frequency")),
+                rs.getTimestamp("start_at").toLocalDateTime(), rs.getInt("runs"), rs.getInt("failures")),
+                now, now, batchSize);
+        if (!claims.isEmpty()) {
+            namedJdbcTemplate.update("update scheduled_payments"
+                    + " set claim_token = :token, claimed_until = :until where id in (:ids)",
+                    Map.of("token", token,
+                            "until", Timestamp.valueOf(now().plus(lease, ChronoUnit.MILLIS)),
+                            "ids", claims.stream().map(ScheduledPaymentClaim::getId).toList()));
+        }
+        return claims;
+    }
+
+    private void execute(String token, List<ScheduledPaymentClaim> claims) {
+        try {
+            send(token, claims);
+        } catch (NotEnoughBalanceException e) {
+            if (claims.size() == 1) {
+                fail(token, claims.get(0), e);
+                return;
+            }
+            // Send in order as many as the balance covers
+            for (ScheduledPaymentClaim claim : claims)
+                execute(token, List.of(claim));
+        } catch (ClaimLostException e) {
+            log.debug("Scheduled payments of user {} were cancelled or claimed again",
+                    claims.get(0).getSenderId());
+        } catch (RuntimeException e) {
+            log.warn("Could not execute scheduled payments of user {}", claims.get(0).getSenderId(), e);
+            claims.forEach(claim -> fail(token, claim, e));
+        }
+    }
+
+    private void send(String token, List<ScheduledPaymentClaim> claims) {
+        transactionTemplate.executeWithoutResult(status -> {
+            User sender = userRepository.findById(claims.get(0).getSenderId())
+                    .orElseThrow(() -> new UserNotFoundException("User not found"));
+            batchPaymentService.transfer(sender, claims.stream()
+                    .map(claim -> new Transfer(claim.getReceiverId(), Money.valueOf(claim.getAmount())))
+                    .toList());
+            int[] updated = jdbcTemplate.batchUpdate(ADVANCE, claims, claims.size(), (statement, claim) -> {
+                statement.setTimestamp(1, Timestamp.valueOf(
+                        claim.getFrequency().occurrence(claim.getStartAt(), claim.getRuns() + 1)));
+                statement.setLong(2, claim.getId());
+                statement.setString(3, token);
+            })[0];
+            for (int count : updated)
+                if (count == 0) throw new ClaimLostException();
+        });
+    }
+
+    private void fail(String token, ScheduledPaymentClaim claim, RuntimeException cause) {
+        int failures = claim.getFailures() + 1;
+        boolean skip = failures >= maxAttempts;
+        LocalDateTime nextRunAt = skip
+                ? claim.getFrequency().occurrence(claim.getStartAt(), claim.getRuns() + 1)
+                : now().plus(retryDelay * failures, ChronoUnit.MILLIS);
+        String error = cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+        jdbcTemplate.update(FAIL, skip ? 0 : failures, error.substring(0, Math.min(error.length(), 255)),
+                skip ? claim.getRuns() + 1 : claim.getRuns(), Timestamp.valueOf(nextRunAt),
+                claim.getId(), token);
+    }
+
+    private LocalDateTime now() {
+        return LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+    }
+
+    private static class ClaimLostException extends RuntimeException {
+    }
+
+}
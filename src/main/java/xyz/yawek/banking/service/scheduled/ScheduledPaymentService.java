@@ -0,0 +1,62 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.scheduled;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.yawek.banking.exception.ScheduledPaymentNotFoundException;
+import xyz.yawek.banking.model.ScheduledPayment;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.ScheduledPaymentView;
+import xyz.yawek.banking.model.rest.ScheduledPaymentRequest;
+import xyz.yawek.banking.repository.ScheduledPaymentRepository;
+
+import java.time.LocalDateTime;
+
+@Service
+@Transactional
+@RequiredArgsConstructor
+public class ScheduledPaymentService {
+
+    private final ScheduledPaymentRepository repository;
+
+    public ScheduledPayment schedule(User sender, User receiver, ScheduledPaymentRequest request) {
+        LocalDateTime startAt = request.getStartAt() == null ? LocalDateTime.now() : request.getStartAt();
+        return repository.save(new ScheduledPayment(sender, receiver,
+                request.getAmount(), request.getFrequency(), startAt));
+    }
+
+    public Page<ScheduledPaymentView> getBySender(User sender, Pageable pageable) {
+        return repository.findViewsBySender(sender.getId(), pageable);
+    }
+
+    /**
+     * Stops future payments of the schedule.
+     * @throws ScheduledPaymentNotFoundException if the sender has no such scheduled payment
+     */
+    public void cancel(User sender, long id) {
+        ScheduledPayment scheduledPayment = repository.findByIdAndSenderId(id, sender.getId())
+                .orElseThrow(ScheduledPaymentNotFoundException::new);
+        scheduledPayment.setStatus(ScheduledPayment.Status.CANCELLED);
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.velocity;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Payment recorded in the sender's velocity counters, removed again
+ * if the payment is not made after all.
+ */
+public class VelocityRecord {
+
+    static final VelocityRecord NONE = new VelocityRecord(null, 0, 0, 0);
+
+    private final VelocityTracker tracker;
+    private final long accountId;
+    private final long amount;
+    private final long recordedAt;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    VelocityRecord(VelocityTracker tracker, long accountId, long amount, long recordedAt) {
+        this.tracker = tracker;
+        this.accountId = accountId;
+        this.amount = amount;
+        this.recordedAt = recordedAt;
+    }
+
+    /**
+     * Removes the payment from the counters, only the first call has any effect.
+     */
+    public void cancel() {
+        if (tracker != null && cancelled.compareAndSet(false, true))
+            tracker.remove(accountId, amount, recordedAt);
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.velocity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+
+/**
+ * Limit of payments sent from an account within a sliding window.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VelocityRule {
+
+    private String name;
+
+    private Duration window;
+
+    /**
+     * Maximum number of payments in the window, 0 for no limit.
+     */
+    private int maxPayments;
+
+    /**
+     * Maximum sum of payments in the window in the base currency, {@code null} for no limit.
+     */
+    private BigDecimal maxAmount;
+
+}
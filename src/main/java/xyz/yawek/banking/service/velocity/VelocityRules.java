@@ -0,0 +1,109 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.velocity;
+
+import xyz.yawek.banking.model.Money;
+
+import java.util.List;
+
+/**
+ * Immutable set of velocity rules prepared for evaluation.
+ * Rules with the same window share its counters.
+ */
+public final class VelocityRules {
+
+    public static final VelocityRules NONE = new VelocityRules(List.of(), 1);
+
+    private final List<VelocityRule> rules;
+    final int buckets;
+    /**
+     * Length of a bucket of each distinct window.
+     */
+    final long[] bucketMillis;
+    final int[] ruleWindows;
+    final long[] maxPayments;
+    final long[] maxAmounts;
+    final long longestWindowMillis;
+
+    /**
+     * @param buckets number of buckets each window is split into
+     * @throws IllegalArgumentException if any rule is invalid
+     */
+    public VelocityRules(List<VelocityRule> rules, int buckets) {
+        if (buckets < 1) throw new IllegalArgumentException("Number of buckets must be positive");
+        this.rules = List.copyOf(rules);
+        this.buckets = buckets;
+        ruleWindows = new int[rules.size()];
+        maxPayments = new long[rules.size()];
+        maxAmounts = new long[rules.size()];
+        long[] windows = rules.stream()
+                .mapToLong(rule -> validate(rule, buckets))
+                .distinct()
+                .sorted()
+                .toArray();
+        bucketMillis = new long[windows.length];
+        for (int i = 0; i < windows.length; i++)
+            bucketMillis[i] = windows[i] / buckets;
+        for (int i = 0; i < rules.size(); i++) {
+            VelocityRule rule = rules.get(i);
+            ruleWindows[i] = indexOf(windows, rule.getWindow().toMillis());
+            maxPayments[i] = rule.getMaxPayments() > 0 ? rule.getMaxPayments() : Long.MAX_VALUE;
+            maxAmounts[i] = rule.getMaxAmount() != null
+                    ? Money.valueOf(rule.getMaxAmount()).getMinorUnits()
+                    : Long.MAX_VALUE;
+        }
+        longestWindowMillis = windows.length > 0 ? windows[windows.length - 1] : 0;
+    }
+
+    public List<VelocityRule> getRules() {
+        return rules;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    private static long validate(VelocityRule rule, int buckets) {
+        if (rule.getName() == null || rule.getName().isBlank())
+            throw new IllegalArgumentException("Rule must have a name");
+        if (rule.getWindow() == null || rule.getWindow().toMillis() < buckets)
+            throw new IllegalArgumentException("Window of rule " + rule.getName() + " is too short");
+        if (rule.getMaxPayments() < 0)
+            throw new IllegalArgumentException("Payment limit of rule " + rule.getName() + " is negative");
+        if (rule.getMaxPayments() == 0 && rule.getMaxAmount() == null)
+            throw new IllegalArgumentException("Rule " + rule.getName() + " has no limit");
+        if (rule.getMaxAmount() != null) {
+            try {
+                if (Money.valueOf(rule.getMaxAmount()).signum() <= 0)
+                    throw new IllegalArgumentException("Amount limit of rule " + rule.getName() + " is not positive");
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Invalid amount limit of rule " + rule.getName(), e);
+            }
+        }
+        return rule.getWindow().toMillis();
+    }
+
+    private static int indexOf(long[] windows, long window) {
+        for (int i = 0; i < windows.length; i++) {
+            if (windows[i] == window) return i;
+        }
+        throw new IllegalStateException("Unknown window " + window);
+    }
+
+}
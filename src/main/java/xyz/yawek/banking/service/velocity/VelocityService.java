@@ -0,0 +1,135 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.velocity;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xyz.yawek.banking.exception.VelocityLimitException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.service.fx.FxRateService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+/**
+ * Blocks bursts of payments sent from an account, by the rules read from the JSON file
+ * at {@code app.payment.velocity.rules-path}. Counters are kept only in memory of this
+ * instance, so the rules are checked without any database queries.
+ */
+@Slf4j
+@Service
+public class VelocityService {
+
+    private final VelocityTracker tracker = new VelocityTracker();
+    private final ObjectMapper objectMapper;
+    private final FxRateService fxRateService;
+    private final Path rulesPath;
+    private final int buckets;
+    private final int maxAccounts;
+    private volatile FileTime rulesModified;
+
+    /**
+     * @throws IOException if the rules exist but could not be read
+     */
+    public VelocityService(ObjectMapper objectMapper,
+                           FxRateService fxRateService,
+                           @Value("${app.payment.velocity.rules-path}") String rulesPath,
+                           @Value("${app.payment.velocity.buckets}") int buckets,
+                           @Value("${app.payment.velocity.max-accounts}") int maxAccounts) throws IOException {
+        this.objectMapper = objectMapper;
+        this.fxRateService = fxRateService;
+        this.rulesPath = Path.of(rulesPath);
+        this.buckets = buckets;
+        this.maxAccounts = maxAccounts;
+        reload();
+    }
+
+    /**
+     * Records the payment in the sender's counters.
+     * @param currency currency of the amount, {@code null} for the base currency
+     * @return recorded payment, to be cancelled if the payment fails
+     * @throws VelocityLimitException if the payment breaks any rule, it is not recorded then
+     */
+    public VelocityRecord check(User sender, Money amount, String currency) {
+        if (tracker.getRules().isEmpty()) return VelocityRecord.NONE;
+        String from = fxRateService.resolve(currency);
+        Money value = fxRateService.convert(amount, from, fxRateService.getBaseCurrency());
+        long now = System.currentTimeMillis();
+        VelocityRule broken = tracker.record(sender.getId(), value.getMinorUnits(), now);
+        if (broken != null)
+            throw new VelocityLimitException("Payment blocked by rule " + broken.getName());
+        return new VelocityRecord(tracker, sender.getId(), value.getMinorUnits(), now);
+    }
+
+    /**
+     * Reads the rules again, counters of windows used before are kept.
+     * A missing file disables all rules.
+     * @return rules in use
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if any rule is invalid, the previous rules are kept then
+     */
+    public synchronized List<VelocityRule> reload() throws IOException {
+        if (!Files.exists(rulesPath)) {
+            rulesModified = null;
+            tracker.setRules(VelocityRules.NONE);
+            return List.of();
+        }
+        FileTime modified = Files.getLastModifiedTime(rulesPath);
+        List<VelocityRule> rules = objectMapper.readValue(rulesPath.toFile(), new TypeReference<>() { });
+        tracker.setRules(new VelocityRules(rules, buckets));
+        rulesModified = modified;
+        log.info("Loaded {} velocity rules", rules.size());
+        return tracker.getRules().getRules();
+    }
+
+    @Scheduled(fixedDelayString = "${app.payment.velocity.reload-interval}",
+            initialDelayString = "${app.payment.velocity.reload-interval}")
+    public void reloadIfModified() {
+        try {
+            FileTime modified = Files.exists(rulesPath) ? Files.getLastModifiedTime(rulesPath) : null;
+            if ((modified == null) != (rulesModified == null)
+                    || (modified != null && !modified.equals(rulesModified))) reload();
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Could not reload velocity rules, keeping the previous ones", e);
+        }
+    }
+
+    /**
+     * Removes counters of accounts without recent payments.
+     */
+    @Scheduled(fixedDelayString = "${app.payment.velocity.eviction-interval}",
+            initialDelayString = "${app.payment.velocity.eviction-interval}")
+    public void evict() {
+        int evicted = tracker.evict(System.currentTimeMillis(), maxAccounts);
+        if (evicted > 0) log.debug("Evicted velocity counters of {} accounts", evicted);
+    }
+
+    public List<VelocityRule> getRules() {
+        return tracker.getRules().getRules();
+    }
+
+}
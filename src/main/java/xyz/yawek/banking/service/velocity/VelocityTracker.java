@@ -0,0 +1,201 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.velocity;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts payments and their value per account in sliding windows split into buckets.
+ * Every bucket counter is a single {@code long} holding the bucket's epoch in its upper
+ * bits and the value in the lower ones, so it is updated with one compare-and-set
+ * and starts from zero once its epoch has passed, without any locks or cleanup.
+ * <p>
+ * A payment is recorded before the rules are checked and removed if it breaks any of them,
+ * so concurrent payments of an account may be rejected together, but never exceed a limit.
+ */
+public class VelocityTracker {
+
+    private static final int VALUE_BITS = 44;
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+    private static final long EPOCH_MASK = (1L << (Long.SIZE - VALUE_BITS)) - 1;
+
+    private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+    private volatile VelocityRules rules = VelocityRules.NONE;
+
+    public VelocityRules getRules() {
+        return rules;
+    }
+
+    /**
+     * Replaces the rules. Counters are kept if windows of the rules did not change.
+     */
+    public void setRules(VelocityRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Records the payment unless it breaks any of the rules.
+     * @param amount value of the payment in hundredths of the base currency
+     * @param now current time in milliseconds
+     * @return broken rule, or {@code null} if the payment was recorded
+     */
+    public VelocityRule record(long accountId, long amount, long now) {
+        VelocityRules rules = this.rules;
+        if (rules.isEmpty()) return null;
+        Account account = account(accountId, rules);
+        account.lastSeen = now;
+        AtomicLongArray counters = account.counters;
+        for (int window = 0; window < rules.bucketMillis.length; window++) {
+            long epoch = now / rules.bucketMillis[window];
+            int index = index(rules, window, epoch);
+            add(counters, index, epoch, 1);
+            add(counters, index + 1, epoch, amount);
+        }
+
+        for (int rule = 0; rule < rules.ruleWindows.length; rule++) {
+            int window = rules.ruleWindows[rule];
+            long epoch = now / rules.bucketMillis[window];
+            if ((rules.maxPayments[rule] != Long.MAX_VALUE
+                    && sum(counters, rules, window, epoch, 0) > rules.maxPayments[rule])
+                    || (rules.maxAmounts[rule] != Long.MAX_VALUE
+                    && sum(counters, rules, window, epoch, 1) > rules.maxAmounts[rule])) {
+                remove(counters, rules, amount, now);
+                return rules.getRules().get(rule);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes a recorded payment which was not made after all. Buckets
+     * moved to a later epoch since it was recorded are left as they are.
+     * @param recordedAt time passed to {@link #record(long, long, long)}
+     */
+    public void remove(long accountId, long amount, long recordedAt) {
+        VelocityRules rules = this.rules;
+        Account account = accounts.get(accountId);
+        if (account == null || !Arrays.equals(account.bucketMillis, rules.bucketMillis)) return;
+        remove(account.counters, rules, amount, recordedAt);
+    }
+
+    /**
+     * Removes accounts without payments in the longest window, their counters are all expired.
+     * If more than {@code maxAccounts} remain, the least recently active ones are removed too.
+     * @return number of removed accounts
+     */
+    public int evict(long now, int maxAccounts) {
+        long idleMillis = rules.longestWindowMillis;
+        int before = accounts.size();
+        accounts.values().removeIf(account -> now - account.lastSeen >= idleMillis);
+        int excess = accounts.size() - maxAccounts;
+        if (excess > 0) {
+            accounts.entrySet().stream()
+                    .sorted(Comparator.comparingLong(entry -> entry.getValue().lastSeen))
+                    .limit(excess)
+                    .toList()
+                    .forEach(entry -> accounts.remove(entry.getKey(), entry.getValue()));
+        }
+        return before - accounts.size();
+    }
+
+    public int getAccounts() {
+        return accounts.size();
+    }
+
+    private Account account(long accountId, VelocityRules rules) {
+        Account account = accounts.get(accountId);
+        if (account != null && account.bucketMillis == rules.bucketMillis) return account;
+        return accounts.compute(accountId, (id, current) -> {
+            if (current == null || !Arrays.equals(current.bucketMillis, rules.bucketMillis))
+                return new Account(rules.bucketMillis,
+                        new AtomicLongArray(rules.bucketMillis.length * rules.buckets * 2));
+            if (current.bucketMillis == rules.bucketMillis) return current;
+            Account reused = new Account(rules.bucketMillis, current.counters);
+            reused.lastSeen = current.lastSeen;
+            return reused;
+        });
+    }
+
+    private static int index(VelocityRules rules, int window, long epoch) {
+        return (window * rules.buckets + (int) (epoch % rules.buckets)) * 2;
+    }
+
+    private static void add(AtomicLongArray counters, int index, long epoch, long delta) {
+        long tag = (epoch & EPOCH_MASK) << VALUE_BITS;
+        while (true) {
+            long current = counters.get(index);
+            long value = (current & ~VALUE_MASK) == tag ? current & VALUE_MASK : 0;
+            long next = tag | Math.min(value + delta, VALUE_MASK);
+            if (counters.compareAndSet(index, current, next)) return;
+        }
+    }
+
+    private static void remove(AtomicLongArray counters, VelocityRules rules, long amount, long recordedAt) {
+        for (int window = 0; window < rules.bucketMillis.length; window++) {
+            long epoch = recordedAt / rules.bucketMillis[window];
+            int index = index(rules, window, epoch);
+            remove(counters, index, epoch, 1);
+            remove(counters, index + 1, epoch, amount);
+        }
+    }
+
+    private static void remove(AtomicLongArray counters, int index, long epoch, long delta) {
+        long tag = (epoch & EPOCH_MASK) << VALUE_BITS;
+        while (true) {
+            long current = counters.get(index);
+            // Bucket already moved to a later epoch
+            if ((current & ~VALUE_MASK) != tag) return;
+            long next = tag | Math.max((current & VALUE_MASK) - delta, 0);
+            if (counters.compareAndSet(index, current, next)) return;
+        }
+    }
+
+    /**
+     * @param offset 0 for number of payments, 1 for their value
+     */
+    private static long sum(AtomicLongArray counters, VelocityRules rules, int window, long epoch, int offset) {
+        int buckets = rules.buckets;
+        int start = window * buckets * 2 + offset;
+        long sum = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            long counter = counters.get(start + bucket * 2);
+            long age = (epoch - (counter >>> VALUE_BITS)) & EPOCH_MASK;
+            if (age < buckets) sum += counter & VALUE_MASK;
+        }
+        return sum;
+    }
+
+    private static final class Account {
+
+        private final long[] bucketMillis;
+        private final AtomicLongArray counters;
+        private volatile long lastSeen;
+
+        private Account(long[] bucketMillis, AtomicLongArray counters) {
+            this.bucketMillis = bucketMillis;
+            this.counters = counters;
+        }
+
+    }
+
+}
@@ -70,10 +70,15 @@ public abstract class BaseTest {
         registerUser("example2@example.com", "password");
     }
 
-    private void registerUser(String email, String password) {
+    /**
+     * Registers a user with the USER role.
+     * @return access token of the user
+     */
+    protected String registerUser(String email, String password) throws Exception {
         User user = userService.buildFromRequest(new UserRequest(email, password));
         user.setRoles(Set.of("USER"));
         userService.registerUser(user);
+        return getToken(email, password);
     }
 
     protected MvcResult testJsonRequest(
@@ -0,0 +1,81 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.annotation.DirtiesContext;
+import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.model.Money;
+
+import java.util.Map;
+
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Compares sending payments one by one through {@code /payment/pay}
+ * with sending them through {@code /payment/batch}. Not run by default, use
+ * {@code mvn test -Dtest=BatchPaymentBenchmark}
+ */
+@DirtiesContext
+class BatchPaymentBenchmark extends BaseTest {
+
+    private static final int PAYMENTS = 200;
+    private static final int ROUNDS = 10;
+
+    @Test
+    void compareWithSinglePayments() throws Exception {
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("1000000.00"));
+                    userRepository.save(user);
+                });
+        Map<String, Object> headers = Map.of("authorization",
+                "Bearer " + getToken("example@example.com", "password"));
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode()
+                .put("receiver", "example2@example.com")
+                .put("amount", "0.01");
+        ObjectNode jsonBatch = jsonMapper.createObjectNode();
+        ArrayNode jsonPayments = jsonBatch.putArray("payments");
+        for (int i = 0; i < PAYMENTS; i++) jsonPayments.add(jsonPayment);
+
+        long singleTime = 0;
+        long batchTime = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < PAYMENTS; i++) {
+                testJsonRequest(HttpMethod.POST, "/payment/pay",
+                        headers, jsonPayment.toString(), status().is(200));
+            }
+            singleTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            testJsonRequest(HttpMethod.POST, "/payment/batch",
+                    headers, jsonBatch.toString(), status().is(200));
+            batchTime += System.nanoTime() - start;
+        }
+
+        System.out.printf("%d payments: single %.2f ms, batch %.2f ms%n", PAYMENTS,
+                singleTime / 1e6 / ROUNDS, batchTime / 1e6 / ROUNDS);
+    }
+
+}
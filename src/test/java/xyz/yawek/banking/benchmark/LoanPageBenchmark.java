@@ -0,0 +1,112 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.rest.KeysetCursor;
+import xyz.yawek.banking.service.LoanService;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures latency of a user's outstanding loans page, first and in the middle
+ * of the history, for users with a growing number of loans, a tenth of them
+ * outstanding. Compares the cursor listing with the offset page and count query.
+ * Not run by default, use {@code mvn test -Dtest=LoanPageBenchmark -Dbenchmark.loans=100000}
+ */
+@DirtiesContext
+class LoanPageBenchmark extends BaseTest {
+
+    private static final int MAX_LOANS = Integer.getInteger("benchmark.loans", 100_000);
+    private static final int PAGE_SIZE = 10;
+    private static final int REPETITIONS = 200;
+    private static final int INSERT_BATCH = 10_000;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private LoanService loanService;
+
+    @Test
+    void measureLatency() {
+        for (int loans = 10; loans <= MAX_LOANS; loans *= 10) {
+            User user = insertUser(loans);
+            int middlePage = loans / 2 / PAGE_SIZE;
+            Map<String, Object> middle = jdbcTemplate.queryForMap("select id, repayment_date from loans"
+                    + " where user_id = ? and repaid = false order by repayment_date desc, id desc"
+                    + " limit 1 offset ?", user.getId(), loans / 20);
+            String cursor = new KeysetCursor(((Timestamp) middle.get("repayment_date")).toLocalDateTime(),
+                    ((Number) middle.get("id")).longValue()).encode();
+
+            assertEquals(PAGE_SIZE, loanService.getPageByUser(user, false, null, null, "", PAGE_SIZE)
+                    .getContent().size());
+            report(loans, "cursor, first page", () -> loanService.getPageByUser(
+                    user, false, null, null, "", PAGE_SIZE));
+            report(loans, "cursor, middle page", () -> loanService.getPageByUser(
+                    user, false, null, null, cursor, PAGE_SIZE));
+            report(loans, "offset, first page", () -> loanService.getLoansByUser(
+                    user, PageRequest.of(0, PAGE_SIZE)));
+            report(loans, "offset, middle page", () -> loanService.getLoansByUser(
+                    user, PageRequest.of(middlePage, PAGE_SIZE)));
+        }
+    }
+
+    private void report(int loans, String name, Supplier<?> page) {
+        for (int i = 0; i < REPETITIONS / 10; i++) page.get();
+        long start = System.nanoTime();
+        for (int i = 0; i < REPETITIONS; i++) page.get();
+        System.out.printf("%d loans, %s: %.1f us/op%n", loans, name,
+                (System.nanoTime() - start) / 1e3 / REPETITIONS);
+    }
+
+    private User insertUser(int loans) {
+        String email = "paging" + loans + "@example.com";
+        jdbcTemplate.update("insert into users (email, password, balance, balance_shards, version)"
+                + " values (?, 'password', 0.00, 0, 0)", email);
+        User user = userService.loadByEmail(email);
+
+        LocalDateTime start = LocalDateTime.now().minusYears(10).withNano(0);
+        List<Object[]> rows = new ArrayList<>(INSERT_BATCH);
+        for (int loan = 0; loan < loans; loan++) {
+            rows.add(new Object[] { Timestamp.valueOf(start.plusMinutes(loan)), loan % 10 != 0, user.getId() });
+            if (rows.size() == INSERT_BATCH || loan == loans - 1) {
+                jdbcTemplate.batchUpdate("insert into loans (amount, repayment_amount, limit_amount,"
+                        + " repayment_date, repaid, accrued_interest, user_id)"
+                        + " values (500.00, 625.00, 625.00, ?, ?, 0.00, ?)", rows);
+                rows.clear();
+            }
+        }
+        return user;
+    }
+
+}
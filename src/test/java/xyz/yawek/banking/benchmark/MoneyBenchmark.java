@@ -0,0 +1,129 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import org.junit.jupiter.api.Test;
+import xyz.yawek.banking.model.Money;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares latency and allocation of balance and loan arithmetic done
+ * with {@link BigDecimal} and with {@link Money}. Not run by default, use
+ * {@code mvn test -Dtest=MoneyBenchmark}
+ */
+class MoneyBenchmark {
+
+    private static final int AMOUNTS = 1024;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+    private static final int OPERATIONS = 100_000;
+    private static final BigDecimal MULTIPLIER = new BigDecimal("1.1");
+    private static final BigDecimal LIMIT = new BigDecimal("100000000");
+
+    private final BigDecimal[] decimals = new BigDecimal[AMOUNTS];
+    private final Money[] amounts = new Money[AMOUNTS];
+
+    @Test
+    void compareWithBigDecimal() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < AMOUNTS; i++) {
+            long minorUnits = random.nextLong(1, 1_000_000);
+            decimals[i] = BigDecimal.valueOf(minorUnits, 2);
+            amounts[i] = Money.ofMinorUnits(minorUnits);
+        }
+        Money limit = Money.valueOf(LIMIT);
+
+        long decimalChecksum = measure("BigDecimal transfer", () -> {
+            BigDecimal sender = new BigDecimal("1000000000.00");
+            BigDecimal receiver = BigDecimal.ZERO;
+            for (int i = 0; i < OPERATIONS; i++) {
+                BigDecimal amount = decimals[i & (AMOUNTS - 1)];
+                if (sender.compareTo(amount) < 0) continue;
+                sender = sender.subtract(amount);
+                receiver = receiver.add(amount);
+            }
+            return receiver.unscaledValue().longValue();
+        });
+        long moneyChecksum = measure("Money transfer", () -> {
+            Money sender = Money.valueOf("1000000000.00");
+            Money receiver = Money.ZERO;
+            for (int i = 0; i < OPERATIONS; i++) {
+                Money amount = amounts[i & (AMOUNTS - 1)];
+                if (sender.compareTo(amount) < 0) continue;
+                sender = sender.subtract(amount);
+                receiver = receiver.add(amount);
+            }
+            return receiver.getMinorUnits();
+        });
+        assertEquals(decimalChecksum, moneyChecksum);
+
+        decimalChecksum = measure("BigDecimal loan", () -> {
+            long years = 0;
+            BigDecimal taken = BigDecimal.ZERO;
+            for (int i = 0; i < OPERATIONS; i++) {
+                BigDecimal amount = decimals[i & (AMOUNTS - 1)];
+                if (taken.add(amount).compareTo(LIMIT) > 0) taken = BigDecimal.ZERO;
+                taken = taken.add(amount.multiply(MULTIPLIER).setScale(2, RoundingMode.HALF_UP));
+                years += (long) (amount.doubleValue() / 500);
+            }
+            return taken.unscaledValue().longValue() + years;
+        });
+        moneyChecksum = measure("Money loan", () -> {
+            Money perYear = Money.ofMajorUnits(500);
+            long years = 0;
+            Money taken = Money.ZERO;
+            for (int i = 0; i < OPERATIONS; i++) {
+                Money amount = amounts[i & (AMOUNTS - 1)];
+                if (taken.add(amount).compareTo(limit) > 0) taken = Money.ZERO;
+                taken = taken.add(amount.multiply(MULTIPLIER, RoundingMode.HALF_UP));
+                years += amount.divideToIntegral(perYear);
+            }
+            return taken.getMinorUnits() + years;
+        });
+        assertEquals(decimalChecksum, moneyChecksum);
+    }
+
+    private long measure(String name, LongSupplier operations) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long checksum = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            checksum = operations.getAsLong();
+
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++)
+            checksum = operations.getAsLong();
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+        long total = (long) ROUNDS * OPERATIONS;
+        System.out.printf("%s: %.1f ns/op, %.1f bytes/op%n",
+                name, (double) elapsed / total, (double) allocated / total);
+        return checksum;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.annotation.DirtiesContext;
+import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.exception.BalanceUpdateConflictException;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.service.PaymentService;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures payment throughput of the configured balance update strategy
+ * with half of the payments sent to a few hot accounts. Not run by default, use
+ * {@code mvn test -Dtest=PaymentThroughputBenchmark -Dapp.payment.balance-update-strategy=...}
+ */
+@DirtiesContext
+class PaymentThroughputBenchmark extends BaseTest {
+
+    private static final int THREADS = 16;
+    private static final int ACCOUNTS = 64;
+    private static final int HOT_ACCOUNTS = 2;
+    private static final long DURATION_SECONDS = 10;
+    private static final Money INITIAL_BALANCE = Money.valueOf("1000000.00");
+
+    @Autowired
+    private PaymentService paymentService;
+
+    @Value("${app.payment.balance-update-strategy}")
+    private String strategy;
+
+    @Test
+    void measureThroughput() throws Exception {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            User user = new User("benchmark" + i + "@example.com", "password");
+            user.setRoles(Set.of("USER"));
+            user.setBalance(INITIAL_BALANCE);
+            users.add(userRepository.save(user));
+        }
+
+        LongAdder completed = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    User sender = users.get(random.nextInt(HOT_ACCOUNTS, ACCOUNTS));
+                    User receiver = users.get(random.nextBoolean()
+                            ? random.nextInt(HOT_ACCOUNTS)
+                            : random.nextInt(ACCOUNTS));
+                    try {
+                        paymentService.makePayment(sender, receiver, Money.valueOf("0.01"));
+                        completed.increment();
+                    } catch (BalanceUpdateConflictException | NotEnoughBalanceException e) {
+                        rejected.increment();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(DURATION_SECONDS + 60, TimeUnit.SECONDS);
+
+        System.out.printf("Strategy %s: %.1f payments/s, %d completed, %d rejected%n",
+                strategy, completed.doubleValue() / DURATION_SECONDS,
+                completed.sum(), rejected.sum());
+
+        Money total = users.stream()
+                .map(user -> userRepository.findById(user.getId()).orElseThrow().getBalance())
+                .reduce(Money.ZERO, Money::add);
+        assertEquals(INITIAL_BALANCE.multiply(BigDecimal.valueOf(ACCOUNTS), RoundingMode.UNNECESSARY), total);
+    }
+
+}
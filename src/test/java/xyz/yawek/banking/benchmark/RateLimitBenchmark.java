@@ -0,0 +1,133 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import xyz.yawek.banking.security.RateLimitFilter;
+import xyz.yawek.banking.security.RateLimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures overhead of the rate limit filter with many concurrent threads, for keys
+ * spread over many users and for a single contended key. Not run by default, use
+ * {@code mvn test -Dtest=RateLimitBenchmark}
+ */
+class RateLimitBenchmark {
+
+    private static final int THREADS = 64;
+    private static final int USERS = 100_000;
+    private static final int OPERATIONS = 50_000;
+    private static final int ROUNDS = 3;
+
+    private final RateLimitFilter filter = new RateLimitFilter(new String[] {
+            "/auth/**:1000000000:1000000000", "/payment/pay:1000000000:1000000000", "/**:1000000000:1000000000" });
+    private final RateLimiter limiter = filter.getRateLimiter();
+    private final String[] users = new String[USERS];
+
+    @Test
+    void benchmarkRateLimit() throws Exception {
+        for (int i = 0; i < USERS; i++)
+            users[i] = "user" + i + "@example.com";
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            measure(executor, "Limiter, spread keys", () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long rejected = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    int limit = limiter.match("/payment/pay");
+                    if (limiter.acquire(limit, users[random.nextInt(USERS)], System.nanoTime()) != 0) rejected++;
+                }
+                return rejected;
+            });
+            measure(executor, "Limiter, single key", () -> {
+                long rejected = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    int limit = limiter.match("/payment/pay");
+                    if (limiter.acquire(limit, users[0], System.nanoTime()) != 0) rejected++;
+                }
+                return rejected;
+            });
+            measure(executor, "Request without filter", () -> requests(false));
+            measure(executor, "Request with filter", () -> requests(true));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private long requests(boolean filtered) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/payment/pay");
+        request.setRemoteAddr("10.0.0.1");
+        long rejected = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+                    users[random.nextInt(USERS)], null, AuthorityUtils.NO_AUTHORITIES));
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            MockFilterChain chain = new MockFilterChain();
+            if (filtered) filter.doFilter(request, response, chain);
+            else chain.doFilter(request, response);
+            if (response.getStatus() != 200) rejected++;
+        }
+        SecurityContextHolder.clearContext();
+        return rejected;
+    }
+
+    private void measure(ExecutorService executor, String name, Operations operations) throws Exception {
+        for (int i = 0; i < ROUNDS; i++)
+            run(executor, operations);
+        long start = System.nanoTime();
+        long rejected = run(executor, operations);
+        long elapsed = System.nanoTime() - start;
+        long total = (long) THREADS * OPERATIONS;
+        System.out.printf("%s, %d threads: %.1f ns/op wall time, %.2f M ops/s%n",
+                name, THREADS, (double) elapsed / total, (double) total * 1000 / elapsed);
+        assertEquals(0, rejected);
+    }
+
+    private long run(ExecutorService executor, Operations operations) throws Exception {
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++)
+            futures.add(executor.submit(operations::run));
+        long rejected = 0;
+        for (Future<Long> future : futures)
+            rejected += future.get();
+        return rejected;
+    }
+
+    @FunctionalInterface
+    private interface Operations {
+        long run() throws Exception;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.model.rest.RepaymentReport;
+import xyz.yawek.banking.service.repayment.RepaymentBatch;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures installments collected per second by a repayment run over a table of
+ * 10M installments, a tenth of them due. Not run by default, use
+ * {@code mvn test -Dtest=RepaymentBatchBenchmark -Dbenchmark.installments=10000000}
+ */
+@DirtiesContext
+class RepaymentBatchBenchmark extends BaseTest {
+
+    private static final int INSTALLMENTS = Integer.getInteger("benchmark.installments", 10_000_000);
+    private static final int USERS = 100_000;
+    private static final int LOANS_PER_USER = 10;
+    private static final int INSERT_BATCH = 10_000;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private RepaymentBatch repaymentBatch;
+
+    @Test
+    void measureThroughput() {
+        int perLoan = Math.max(1, INSTALLMENTS / USERS / LOANS_PER_USER);
+        List<Long> userIds = insertUsers();
+        LocalDate today = LocalDate.now();
+
+        List<Object[]> rows = new ArrayList<>(INSERT_BATCH);
+        long start = System.nanoTime();
+        for (int user = 0; user < USERS; user++) {
+            for (int loan = 0; loan < LOANS_PER_USER; loan++) {
+                for (int number = 1; number <= perLoan; number++) {
+                    // Only the first installment of every loan is due
+                    rows.add(new Object[] { (long) user * LOANS_PER_USER + loan + 1_000_000_000L,
+                            userIds.get(user), number, Date.valueOf(today.plusMonths(number - 1)) });
+                    if (rows.size() == INSERT_BATCH) {
+                        insertInstallments(rows);
+                        rows.clear();
+                    }
+                }
+            }
+        }
+        insertInstallments(rows);
+        long total = (long) USERS * LOANS_PER_USER * perLoan;
+        System.out.printf("Inserted %d installments in %.1f s%n", total, (System.nanoTime() - start) / 1e9);
+
+        RepaymentReport report = repaymentBatch.collect(today);
+        assertEquals((long) USERS * LOANS_PER_USER, report.getPaid());
+        System.out.printf("Collected %d of %d installments in %d ms: %.0f rows/s, %d ranges%n",
+                report.getPaid(), total, report.getElapsedMillis(), report.getRowsPerSecond(),
+                report.getPartitions());
+    }
+
+    private List<Long> insertUsers() {
+        List<Object[]> users = new ArrayList<>(INSERT_BATCH);
+        for (int user = 0; user < USERS; user++) {
+            users.add(new Object[] { "repayment" + user + "@example.com" });
+            if (users.size() == INSERT_BATCH || user == USERS - 1) {
+                jdbcTemplate.batchUpdate("insert into users (email, password, balance, balance_shards, version)"
+                        + " values (?, 'password', 1000000.00, 0, 0)", users);
+                users.clear();
+            }
+        }
+        return jdbcTemplate.queryForList(
+                "select id from users where email like 'repayment%@example.com' order by id", Long.class);
+    }
+
+    private void insertInstallments(List<Object[]> rows) {
+        jdbcTemplate.batchUpdate("insert into loan_installments"
+                + " (loan_id, user_id, number, due_date, amount, paid) values (?, ?, ?, ?, 10.00, false)", rows);
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.ScheduledPayment;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.repository.ScheduledPaymentRepository;
+import xyz.yawek.banking.service.PaymentService;
+import xyz.yawek.banking.service.scheduled.ScheduledPaymentExecutor;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures how many scheduled payments are executed per second, compared with
+ * sending the same payments one by one. Not run by default, use
+ * {@code mvn test -Dtest=ScheduledPaymentBenchmark}
+ */
+@DirtiesContext
+class ScheduledPaymentBenchmark extends BaseTest {
+
+    private static final int SENDERS = 50;
+    private static final int PAYMENTS_PER_SENDER = 40;
+    private static final Money AMOUNT = Money.valueOf("0.01");
+
+    @Autowired
+    private ScheduledPaymentRepository scheduledPaymentRepository;
+
+    @Autowired
+    private ScheduledPaymentExecutor scheduledPaymentExecutor;
+
+    @Autowired
+    private PaymentService paymentService;
+
+    @Test
+    void measureThroughput() {
+        List<User> senders = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            User user = new User("scheduled" + i + "@example.com", "password");
+            user.setRoles(Set.of("USER"));
+            user.setBalance(Money.valueOf("1000000.00"));
+            senders.add(userRepository.save(user));
+        }
+        User receiver = userService.loadByEmail("example2@example.com");
+
+        List<ScheduledPayment> scheduledPayments = new ArrayList<>();
+        LocalDateTime startAt = LocalDateTime.now().minusMinutes(1);
+        for (User sender : senders) {
+            for (int i = 0; i < PAYMENTS_PER_SENDER; i++) {
+                scheduledPayments.add(new ScheduledPayment(sender, receiver, AMOUNT.toBigDecimal(),
+                        ScheduledPayment.Frequency.DAILY, startAt));
+            }
+        }
+        scheduledPaymentRepository.saveAll(scheduledPayments);
+        int total = scheduledPayments.size();
+
+        long start = System.nanoTime();
+        int executed = 0;
+        int claimed;
+        while ((claimed = scheduledPaymentExecutor.executeBatch()) > 0) executed += claimed;
+        long scheduledTime = System.nanoTime() - start;
+        assertEquals(total, executed);
+
+        start = System.nanoTime();
+        for (User sender : senders) {
+            for (int i = 0; i < PAYMENTS_PER_SENDER; i++)
+                paymentService.makePayment(sender, receiver, AMOUNT);
+        }
+        long singleTime = System.nanoTime() - start;
+
+        System.out.printf("%d scheduled payments: %.0f/s, one by one: %.0f/s%n", total,
+                total / (scheduledTime / 1e9), total / (singleTime / 1e9));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.benchmark;
+
+import org.junit.jupiter.api.Test;
+import xyz.yawek.banking.service.velocity.VelocityRule;
+import xyz.yawek.banking.service.velocity.VelocityRules;
+import xyz.yawek.banking.service.velocity.VelocityTracker;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures latency of velocity checks spread over 100k accounts, with one and with
+ * multiple threads, and memory used by their counters. Not run by default, use
+ * {@code mvn test -Dtest=VelocityBenchmark}
+ */
+class VelocityBenchmark {
+
+    private static final int ACCOUNTS = 100_000;
+    private static final int OPERATIONS = 2_000_000;
+    private static final int ROUNDS = 5;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final VelocityTracker tracker = new VelocityTracker();
+
+    @Test
+    void benchmarkVelocityChecks() throws Exception {
+        tracker.setRules(new VelocityRules(List.of(
+                new VelocityRule("burst", Duration.ofMinutes(1), 10, null),
+                new VelocityRule("hourly-value", Duration.ofHours(1), 0, new BigDecimal("10000.00")),
+                new VelocityRule("daily-count", Duration.ofDays(1), 200, null)), 20));
+
+        long usedBefore = usedMemory();
+        run(1, ACCOUNTS, 0);
+        long usedAfter = usedMemory();
+        System.out.printf("Counters of %d accounts: ~%d bytes/account%n",
+                tracker.getAccounts(), (usedAfter - usedBefore) / tracker.getAccounts());
+
+        for (int i = 0; i < ROUNDS; i++)
+            run(1, OPERATIONS, i);
+        long start = System.nanoTime();
+        long rejected = run(1, OPERATIONS, ROUNDS);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("1 thread: %.1f ns/op, %d rejected%n",
+                (double) elapsed / OPERATIONS, rejected);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int i = 0; i < ROUNDS; i++)
+                runConcurrently(executor, i);
+            start = System.nanoTime();
+            rejected = runConcurrently(executor, ROUNDS);
+            elapsed = System.nanoTime() - start;
+            System.out.printf("%d threads: %.1f ns/op per thread, %.1f M ops/s, %d rejected%n",
+                    THREADS, (double) elapsed / OPERATIONS,
+                    (double) OPERATIONS * THREADS * 1000 / elapsed, rejected);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private long runConcurrently(ExecutorService executor, int round) throws Exception {
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++)
+            futures.add(executor.submit(() -> run(1, OPERATIONS, round)));
+        long rejected = 0;
+        for (Future<Long> future : futures)
+            rejected += future.get();
+        return rejected;
+    }
+
+    /**
+     * Records payments spread over all accounts, advancing the clock by
+     * {@code step} milliseconds per payment so buckets keep rotating.
+     */
+    private long run(long step, int operations, int round) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = (long) round * operations * step;
+        long rejected = 0;
+        for (int i = 0; i < operations; i++) {
+            long account = i < ACCOUNTS && operations == ACCOUNTS ? i : random.nextInt(ACCOUNTS);
+            if (tracker.record(account, random.nextLong(1, 100_000), now) != null) rejected++;
+            now += step;
+        }
+        return rejected;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
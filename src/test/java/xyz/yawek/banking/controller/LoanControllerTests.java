@@ -22,20 +22,57 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpMethod;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.web.servlet.MvcResult;
 import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.rest.LoanPortfolioReport;
+import xyz.yawek.banking.model.rest.RepaymentReport;
+import xyz.yawek.banking.service.OutstandingLoansVerifier;
+import xyz.yawek.banking.service.interest.InterestAccrualService;
+import xyz.yawek.banking.service.quote.LoanOfferTable;
+import xyz.yawek.banking.service.repayment.RepaymentBatch;
+import xyz.yawek.banking.service.report.LoanReportService;
 
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @Order(4)
 @DirtiesContext
 public class LoanControllerTests extends BaseTest {
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private OutstandingLoansVerifier outstandingLoansVerifier;
+
+    @Autowired
+    private RepaymentBatch repaymentBatch;
+
+    @Autowired
+    private InterestAccrualService interestAccrualService;
+
+    @Autowired
+    private LoanReportService loanReportService;
+
+    @Autowired
+    private LoanOfferTable loanOfferTable;
+
     @Test
     void testTakingLoan() throws Exception {
         String token = this.getToken(
@@ -49,7 +86,292 @@ public class LoanControllerTests extends BaseTest {
                 jsonLoanRequest.toString(),
                 status().is(200));
         assertEquals(500.0, userService.loadByEmail("example@example.com")
-                .getBalance().doubleValue());
+                .getBalance().toBigDecimal().doubleValue());
+    }
+
+    @Test
+    void testTakingLoanInOtherCurrency() throws Exception {
+        String token = this.getToken(
+                "example2@example.com", "password");
+
+        ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+        jsonLoanRequest.put("amount", 1000);
+        jsonLoanRequest.put("currency", "EUR");
+
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(),
+                status().is(200));
+        this.testJsonRequest(HttpMethod.GET, "/user/balances",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.EUR").value(1000.00));
+        this.testJsonRequest(HttpMethod.GET, "/loan/loans",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content[0].repaymentAmount").value(1250.00),
+                jsonPath("$.content[0].currency").value("EUR"));
+
+        jsonLoanRequest.put("currency", "GBP");
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(),
+                status().is(400));
+    }
+
+    @Test
+    void testOutstandingLoans() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+        BigDecimal before = outstandingLoans("example@example.com");
+
+        ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+        jsonLoanRequest.put("amount", 1000);
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(), status().is(200));
+        assertEquals(before.add(new BigDecimal("1250.00")), outstandingLoans("example@example.com"));
+
+        // Totals differing from loans are recomputed
+        jdbcTemplate.update("update users set outstanding_loans = 0 where email = ?", "example@example.com");
+        assertEquals(1, outstandingLoansVerifier.verify());
+        assertEquals(before.add(new BigDecimal("1250.00")), outstandingLoans("example@example.com"));
+        assertEquals(0, outstandingLoansVerifier.verify());
+    }
+
+    @Test
+    void testRepayingLoan() throws Exception {
+        String token = registerUser("repaying@example.com", "password");
+
+        ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+        jsonLoanRequest.put("amount", 500);
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(), status().is(200));
+        long userId = userService.loadByEmail("repaying@example.com").getId();
+        long loanId = jdbcTemplate.queryForObject(
+                "select id from loans where user_id = ?", Long.class, userId);
+        assertEquals(12, jdbcTemplate.queryForObject(
+                "select count(*) from loan_installments where loan_id = ?", Integer.class, loanId));
+
+        // Eleven installments are due, the balance covers ten of them
+        jdbcTemplate.update("update loan_installments set due_date = date_sub(due_date, interval 1 year)"
+                + " where loan_id = ? and number < 12", loanId);
+        jdbcTemplate.update("update users set balance = 520.80 where id = ?", userId);
+        RepaymentReport report = repaymentBatch.collect(LocalDate.now());
+        assertEquals(10, report.getPaid());
+        assertEquals(1, report.getUnpaid());
+        assertEquals(0, userService.loadByEmail("repaying@example.com")
+                .getBalance().toBigDecimal().signum());
+        // Finished run is not repeated
+        assertEquals(0, repaymentBatch.collect(LocalDate.now()).getProcessed());
+
+        // Remaining installments are paid by the next run, which repays the loan
+        jdbcTemplate.update("update loan_installments set due_date = date_sub(due_date, interval 1 year)"
+                + " where loan_id = ? and number = 12", loanId);
+        jdbcTemplate.update("update users set balance = 104.20 where id = ?", userId);
+        report = repaymentBatch.collect(LocalDate.now().plusDays(1));
+        assertEquals(2, report.getPaid());
+        assertEquals(0, userService.loadByEmail("repaying@example.com")
+                .getBalance().toBigDecimal().signum());
+        assertEquals(true, jdbcTemplate.queryForObject(
+                "select repaid from loans where id = ?", Boolean.class, loanId));
+        assertEquals(0, outstandingLoans("repaying@example.com").signum());
+    }
+
+    @Test
+    void testRepayingLoanInOverlappingRuns() throws Exception {
+        String token = registerUser("overlapping@example.com", "password");
+
+        ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+        jsonLoanRequest.put("amount", 500);
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(), status().is(200));
+        long userId = userService.loadByEmail("overlapping@example.com").getId();
+        long loanId = jdbcTemplate.queryForObject(
+                "select id from loans where user_id = ?", Long.class, userId);
+        jdbcTemplate.update("update loan_installments set due_date = date_sub(due_date, interval 1 year)"
+                + " where loan_id = ? and number < 12", loanId);
+        jdbcTemplate.update("update users set balance = 1000.00 where id = ?", userId);
+
+        // Runs of different dates collect the same installments at once
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<RepaymentReport> first = executor.submit(
+                    () -> repaymentBatch.collect(LocalDate.now().plusDays(30)));
+            Future<RepaymentReport> second = executor.submit(
+                    () -> repaymentBatch.collect(LocalDate.now().plusDays(31)));
+            first.get();
+            second.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(11, jdbcTemplate.queryForObject(
+                "select count(*) from loan_installments where loan_id = ? and paid = true", Integer.class, loanId));
+        BigDecimal collected = jdbcTemplate.queryForObject(
+                "select sum(amount) from loan_installments where loan_id = ? and paid = true",
+                BigDecimal.class, loanId);
+        assertEquals(0, new BigDecimal("1000.00").subtract(collected).compareTo(
+                userService.loadByEmail("overlapping@example.com").getBalance().toBigDecimal()));
+    }
+
+    @Test
+    void testAccruingInterest() throws Exception {
+        String token = registerUser("accruing@example.com", "password");
+
+        ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+        jsonLoanRequest.put("amount", 1000);
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(), status().is(200));
+        long loanId = jdbcTemplate.queryForObject("select id from loans where user_id = ?",
+                Long.class, userService.loadByEmail("accruing@example.com").getId());
+
+        // Ten missed days are accrued by one entry, 1000.00 * 0.05 * 10 / 365 = 1.369...
+        LocalDate today = LocalDate.now();
+        jdbcTemplate.update("update loans set accrued_through = ? where id = ?", today.minusDays(10), loanId);
+        interestAccrualService.accrue(today);
+        interestAccrualService.accrue(today);
+        assertEquals(1, jdbcTemplate.queryForObject(
+                "select count(*) from interest_accruals where loan_id = ?", Integer.class, loanId));
+        this.testJsonRequest(HttpMethod.GET, "/loan/loans",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content[0].accruedInterest").value(1.37));
+
+        // Half of the principal is repaid
+        jdbcTemplate.update("update loan_installments set paid = true where loan_id = ? and number <= 12",
+                loanId);
+        interestAccrualService.accrue(today.plusDays(1));
+        assertEquals(new BigDecimal("0.07"), jdbcTemplate.queryForObject(
+                "select interest from interest_accruals where loan_id = ? and to_date = ?",
+                BigDecimal.class, loanId, today.plusDays(1)));
+    }
+
+    @Test
+    void testPortfolioReport() throws Exception {
+        String token = registerUser("reported@example.com", "password");
+
+        LoanPortfolioReport before = loanReportService.getReport();
+        assertSame(before, loanReportService.getReport());
+
+        // A taken loan drops the cached report
+        ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+        jsonLoanRequest.put("amount", 100000);
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(), status().is(200));
+        LoanPortfolioReport after = loanReportService.getReport();
+        assertEquals(before.getLoans() + 1, after.getLoans());
+        assertEquals(before.getExposure().add(new BigDecimal("125000.00")), after.getExposure());
+        assertEquals(after.getLoans(), after.getMaturities().stream()
+                .mapToLong(LoanPortfolioReport.Bucket::getLoans).sum());
+        assertEquals(after.getLoans(), after.getSizeBands().stream()
+                .mapToLong(LoanPortfolioReport.Bucket::getLoans).sum());
+        assertEquals("reported@example.com", after.getTopCustomers().get(0).getCustomer());
+        assertEquals(new BigDecimal("125000.00"), after.getTopCustomers().get(0).getExposure());
+    }
+
+    @Test
+    void testGettingQuotes() throws Exception {
+        String token = registerUser("quoted@example.com", "password");
+
+        ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+        jsonLoanRequest.put("amount", 1000);
+        this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                Map.of("authorization", "Bearer " + token),
+                jsonLoanRequest.toString(), status().is(200));
+
+        this.testJsonRequest(HttpMethod.GET, "/loan/quotes",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.headroom").value(99998750.0),
+                jsonPath("$.maxAmount").value(100000),
+                jsonPath("$.offers.length()").value(200),
+                jsonPath("$.offers[0].amount").value(500),
+                jsonPath("$.offers[0].repaymentAmount").value(625.0),
+                jsonPath("$.offers[0].termYears").value(1));
+
+        // Test quoted amount near the limit can be taken, a bigger one cannot
+        BigDecimal multiplier = loanOfferTable.getMultiplier();
+        Money limit = loanOfferTable.getLimit();
+        loanOfferTable.reload(multiplier, Money.valueOf("2250.00"));
+        try {
+            this.testJsonRequest(HttpMethod.GET, "/loan/quotes",
+                    Map.of("authorization", "Bearer " + token),
+                    null, status().is(200),
+                    jsonPath("$.headroom").value(1000.0),
+                    jsonPath("$.maxAmount").value(1000));
+            this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                    Map.of("authorization", "Bearer " + token),
+                    jsonLoanRequest.toString(), status().is(200));
+            this.testJsonRequest(HttpMethod.GET, "/loan/quotes",
+                    Map.of("authorization", "Bearer " + token),
+                    null, status().is(200),
+                    jsonPath("$.maxAmount").value(0));
+            jsonLoanRequest.put("amount", 500);
+            this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                    Map.of("authorization", "Bearer " + token),
+                    jsonLoanRequest.toString(), status().is(423));
+        } finally {
+            loanOfferTable.reload(multiplier, limit);
+        }
+    }
+
+    @Test
+    void testGettingLoansByCursor() throws Exception {
+        String token = registerUser("paginated@example.com", "password");
+
+        // Loans due in 1 to 5 years, the two earliest ones repaid
+        for (int amount = 500; amount <= 2500; amount += 500) {
+            ObjectNode jsonLoanRequest = jsonMapper.createObjectNode();
+            jsonLoanRequest.put("amount", amount);
+            this.testJsonRequest(HttpMethod.POST, "/loan/take",
+                    Map.of("authorization", "Bearer " + token),
+                    jsonLoanRequest.toString(), status().is(200));
+        }
+        jdbcTemplate.update("update loans set repaid = true where user_id = ? and amount <= 1000",
+                userService.loadByEmail("paginated@example.com").getId());
+
+        List<Double> amounts = new ArrayList<>();
+        String cursor = "";
+        do {
+            JsonNode page = jsonMapper.readTree(this.testJsonRequest(
+                            HttpMethod.GET, "/loan/loans?size=2&cursor=" + cursor,
+                            Map.of("authorization", "Bearer " + token),
+                            null, status().is(200))
+                    .getResponse().getContentAsString());
+            page.get("content").forEach(loan -> amounts.add(loan.get("amount").asDouble()));
+            cursor = page.get("nextCursor").isNull() ? null : page.get("nextCursor").asText();
+        } while (cursor != null);
+        assertEquals(List.of(2500.0, 2000.0, 1500.0, 1000.0, 500.0), amounts);
+
+        LocalDate today = LocalDate.now();
+        this.testJsonRequest(HttpMethod.GET, "/loan/loans?cursor=&repaid=false",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content.length()").value(3),
+                jsonPath("$.content[2].amount").value(1500.0));
+        this.testJsonRequest(HttpMethod.GET, "/loan/loans?cursor=&repaid=true&size=1",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content.length()").value(1),
+                jsonPath("$.content[0].amount").value(1000.0),
+                jsonPath("$.nextCursor").isNotEmpty());
+        this.testJsonRequest(HttpMethod.GET, "/loan/loans?cursor=&from=" + today.plusYears(2)
+                        + "&to=" + today.plusYears(3),
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content.length()").value(2),
+                jsonPath("$.content[0].amount").value(1500.0),
+                jsonPath("$.content[1].amount").value(1000.0),
+                jsonPath("$.nextCursor").isEmpty());
+
+        // Test with malformed cursor
+        this.testJsonRequest(HttpMethod.GET, "/loan/loans?cursor=invalid",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(400));
     }
 
     @Test
@@ -76,4 +398,9 @@ public class LoanControllerTests extends BaseTest {
                 .get("amount").doubleValue());
     }
 
+    private BigDecimal outstandingLoans(String email) {
+        return jdbcTemplate.queryForObject("select outstanding_loans from users where email = ?",
+                BigDecimal.class, email);
+    }
+
 }
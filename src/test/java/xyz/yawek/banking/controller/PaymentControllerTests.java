@@ -19,24 +19,65 @@
 package xyz.yawek.banking.controller;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpMethod;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.web.servlet.MvcResult;
 import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.StatementRecorder;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.OutboxEvent;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.service.IdempotencyService;
+import xyz.yawek.banking.service.archive.PaymentArchiver;
+import xyz.yawek.banking.service.outbox.InMemoryOutboxSink;
+import xyz.yawek.banking.service.outbox.OutboxRelay;
+import xyz.yawek.banking.service.rollup.PaymentRollupService;
+import xyz.yawek.banking.service.scheduled.ScheduledPaymentExecutor;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @DirtiesContext
 @Order(3)
 public class PaymentControllerTests extends BaseTest {
 
+    @Autowired
+    private ScheduledPaymentExecutor scheduledPaymentExecutor;
+
+    @Autowired
+    private PaymentRollupService paymentRollupService;
+
+    @Autowired
+    private OutboxRelay outboxRelay;
+
+    @Autowired
+    private InMemoryOutboxSink outboxSink;
+
+    @Autowired
+    private PaymentArchiver paymentArchiver;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
     @Test
     void testPay() throws Exception {
         String token = this.getToken(
@@ -44,7 +85,7 @@ public class PaymentControllerTests extends BaseTest {
 
         userRepository.findByEmail("example@example.com")
                 .ifPresent(user -> {
-                    user.setBalance(new BigDecimal("1.00"));
+                    user.setBalance(Money.valueOf("1.00"));
                     userRepository.save(user);
                 });
 
@@ -65,6 +106,71 @@ public class PaymentControllerTests extends BaseTest {
                 status().is(400));
     }
 
+    @Test
+    void testPayWithIdempotencyKey() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("2.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        Map<String, Object> headers = Map.of(
+                "authorization", "Bearer " + token,
+                "Idempotency-Key", "payment-1");
+
+        // Retried payment is sent only once
+        for (int i = 0; i < 3; i++) {
+            this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                    headers,
+                    jsonPayment.toString(),
+                    status().is(200));
+        }
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Same amount with another scale is the same payment
+        jsonPayment.put("amount", "1.0");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                headers,
+                jsonPayment.toString(),
+                status().is(200));
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Test when key is used for a different payment
+        jsonPayment.put("amount", "0.50");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                headers,
+                jsonPayment.toString(),
+                status().is(422));
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Test when key is claimed by a request executing on another instance
+        jdbcTemplate.update("insert into idempotency_keys (user_id, scope, idempotency_key, request_hash,"
+                        + " status, created_at) values (?, 'payment', 'payment-2', 'hash', 0, ?)",
+                userService.loadByEmail("example@example.com").getId(), Timestamp.valueOf(LocalDateTime.now()));
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token, "Idempotency-Key", "payment-2"),
+                jsonPayment.toString(),
+                status().is(409));
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Test purging expired keys
+        jdbcTemplate.update("update idempotency_keys set created_at = ? where idempotency_key = ?",
+                Timestamp.valueOf(LocalDateTime.now().minusDays(2)), "payment-1");
+        idempotencyService.purgeExpired();
+        assertEquals(0, jdbcTemplate.queryForObject(
+                "select count(*) from idempotency_keys where idempotency_key = ?", Integer.class, "payment-1"));
+    }
+
     @Test
     void testGettingPayments() throws Exception {
         String token = this.getToken(
@@ -72,7 +178,7 @@ public class PaymentControllerTests extends BaseTest {
 
         userRepository.findByEmail("example@example.com")
                 .ifPresent(user -> {
-                    user.setBalance(new BigDecimal("1.00"));
+                    user.setBalance(Money.valueOf("1.00"));
                     userRepository.save(user);
                 });
 
@@ -96,4 +202,587 @@ public class PaymentControllerTests extends BaseTest {
                 .get("amount").doubleValue());
     }
 
+    @Test
+    void testPaymentsQueryCount() throws Exception {
+        String token = registerUser("counted@example.com", "password");
+        userRepository.findByEmail("counted@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("10.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(200));
+        long singlePaymentStatements = countPaymentsPageStatements(token);
+
+        for (int i = 0; i < 5; i++) {
+            registerUser("counted" + i + "@example.com", "password");
+            jsonPayment.put("receiver", "counted" + i + "@example.com");
+            this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                    Map.of("authorization", "Bearer " + token),
+                    jsonPayment.toString(), status().is(200));
+        }
+
+        // Page of payments to many different users needs the same statements
+        assertEquals(singlePaymentStatements, countPaymentsPageStatements(token));
+    }
+
+    private long countPaymentsPageStatements(String token) throws Exception {
+        // Only statements of the request's thread are counted, not the ones of scheduled tasks
+        StatementRecorder.start();
+        List<String> statements;
+        try {
+            // Sorted by amount, so the page is not served from the recent payments cache
+            this.testJsonRequest(HttpMethod.GET, "/payment/payments?sort=amount,desc",
+                    Map.of("authorization", "Bearer " + token),
+                    null, status().is(200));
+        } finally {
+            statements = StatementRecorder.stop();
+        }
+        assertTrue(statements.stream().anyMatch(sql -> sql.contains("from payments")
+                && sql.contains("order by") && sql.contains("amount desc")));
+        return statements.size();
+    }
+
+    @Test
+    void testGettingPaymentsWithCursor() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("5.00"));
+                    userRepository.save(user);
+                });
+
+        // Cache recent payments first, so the new ones are added to it
+        this.testJsonRequest(HttpMethod.GET, "/payment/payments?cursor=",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200));
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        for (int i = 0; i < 5; i++) {
+            this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                    Map.of("authorization", "Bearer " + token),
+                    jsonPayment.toString(), status().is(200));
+        }
+
+        long totalElements = jsonMapper.readTree(this.testJsonRequest(
+                        HttpMethod.GET, "/payment/payments",
+                        Map.of("authorization", "Bearer " + token),
+                        null, status().is(200))
+                .getResponse().getContentAsString())
+                .get("totalElements").asLong();
+
+        long paymentsCount = 0;
+        String cursor = "";
+        do {
+            JsonNode page = jsonMapper.readTree(this.testJsonRequest(
+                            HttpMethod.GET, "/payment/payments?size=2&cursor=" + cursor,
+                            Map.of("authorization", "Bearer " + token),
+                            null, status().is(200))
+                    .getResponse().getContentAsString());
+            paymentsCount += page.get("content").size();
+            cursor = page.get("nextCursor").isNull() ? null : page.get("nextCursor").asText();
+        } while (cursor != null);
+        assertEquals(totalElements, paymentsCount);
+
+        // Test with malformed cursor
+        this.testJsonRequest(HttpMethod.GET, "/payment/payments?cursor=invalid",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(400));
+    }
+
+    @Test
+    void testExportingPayments() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("1.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(200));
+
+        String csv = this.testJsonRequest(HttpMethod.GET, "/payment/export?format=CSV",
+                        Map.of("authorization", "Bearer " + token),
+                        null, status().is(200))
+                .getResponse().getContentAsString();
+        String[] csvLines = csv.split("\n");
+        assertEquals("direction,counterparty,amount,currency,timestamp", csvLines[0]);
+        assertTrue(csv.contains("SENT,example2@example.com,1.00,USD,"));
+
+        String ndjson = this.testJsonRequest(HttpMethod.GET, "/payment/export",
+                        Map.of("authorization", "Bearer " + token),
+                        null, status().is(200))
+                .getResponse().getContentAsString();
+        String[] ndjsonLines = ndjson.split("\n");
+        assertEquals(csvLines.length - 1, ndjsonLines.length);
+        for (String ndjsonLine : ndjsonLines)
+            assertTrue(ndjsonLine.startsWith("{"));
+        JsonNode firstPayment = jsonMapper.readTree(ndjsonLines[0]);
+        assertEquals("SENT", firstPayment.get("direction").asText());
+    }
+
+    @Test
+    void testPayingShardedAccount() throws Exception {
+        registerUser("sharded@example.com", "password");
+        userService.setBalanceShards(userService.loadByEmail("sharded@example.com"), 4);
+
+        String token = this.getToken(
+                "example2@example.com", "password");
+        userRepository.findByEmail("example2@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("3.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "sharded@example.com");
+        jsonPayment.put("amount", "1.00");
+
+        for (int i = 0; i < 3; i++) {
+            this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                    Map.of("authorization", "Bearer " + token),
+                    jsonPayment.toString(), status().is(200));
+        }
+        assertEquals(0, Money.valueOf("3.00").compareTo(userService.getBalance(
+                userService.loadByEmail("sharded@example.com"))));
+
+        // Test debit drawing from all shards
+        String shardedToken = this.getToken(
+                "sharded@example.com", "password");
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "3.00");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + shardedToken),
+                jsonPayment.toString(), status().is(200));
+
+        jsonPayment.put("amount", "0.01");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + shardedToken),
+                jsonPayment.toString(), status().is(400));
+    }
+
+    @Test
+    void testBatchPayment() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("3.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonBatch = jsonMapper.createObjectNode();
+        ArrayNode jsonPayments = jsonBatch.putArray("payments");
+        jsonPayments.addObject()
+                .put("receiver", "example2@example.com")
+                .put("amount", "1.00");
+        jsonPayments.addObject()
+                .put("receiver", "missing@example.com")
+                .put("amount", "1.00");
+        jsonPayments.addObject()
+                .put("receiver", "example2@example.com")
+                .put("amount", "1.00");
+
+        this.testJsonRequest(HttpMethod.POST, "/payment/batch",
+                Map.of("authorization", "Bearer " + token),
+                jsonBatch.toString(),
+                status().is(200),
+                jsonPath("$[0].status").value("COMPLETED"),
+                jsonPath("$[1].status").value("RECEIVER_NOT_FOUND"),
+                jsonPath("$[2].status").value("COMPLETED"));
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Test when balance is not enough for all payments
+        this.testJsonRequest(HttpMethod.POST, "/payment/batch",
+                Map.of("authorization", "Bearer " + token),
+                jsonBatch.toString(),
+                status().is(400));
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+    }
+
+    @Test
+    void testBatchPaymentToShardedAccount() throws Exception {
+        registerUser("sharded@example.com", "password");
+        userService.setBalanceShards(userService.loadByEmail("sharded@example.com"), 4);
+
+        String token = this.getToken(
+                "example2@example.com", "password");
+        userRepository.findByEmail("example2@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("3.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonBatch = jsonMapper.createObjectNode();
+        ArrayNode jsonPayments = jsonBatch.putArray("payments");
+        jsonPayments.addObject()
+                .put("receiver", "sharded@example.com")
+                .put("amount", "1.00");
+        jsonPayments.addObject()
+                .put("receiver", "example@example.com")
+                .put("amount", "1.00");
+        jsonPayments.addObject()
+                .put("receiver", "sharded@example.com")
+                .put("amount", "1.00");
+
+        this.testJsonRequest(HttpMethod.POST, "/payment/batch",
+                Map.of("authorization", "Bearer " + token),
+                jsonBatch.toString(),
+                status().is(200));
+        // Sharded receiver is credited through its shards
+        User sharded = userService.loadByEmail("sharded@example.com");
+        assertEquals(0, Money.ZERO.compareTo(sharded.getBalance()));
+        assertEquals(0, Money.valueOf("2.00").compareTo(userService.getBalance(sharded)));
+        assertEquals(0, Money.ZERO.compareTo(
+                userService.loadByEmail("example2@example.com").getBalance()));
+    }
+
+    @Test
+    void testPayroll() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("5.00"));
+                    userRepository.save(user);
+                });
+
+        String csv = "receiver,amount\n"
+                + "example2@example.com,1.00\n"
+                + "missing@example.com,1.00\n"
+                + "not an email,1.00\n"
+                + "example2@example.com,2.00\n";
+        mockMvc.perform(post("/payment/payroll")
+                        .header("authorization", "Bearer " + token)
+                        .contentType("text/csv")
+                        .content(csv))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.status").value("COMPLETED"))
+                .andExpect(jsonPath("$.linesRead").value(5))
+                .andExpect(jsonPath("$.paymentsCompleted").value(2))
+                .andExpect(jsonPath("$.paymentsRejected").value(2))
+                .andExpect(jsonPath("$.errors[0].line").value(4))
+                .andExpect(jsonPath("$.errors[1].line").value(3));
+        assertEquals(0, Money.valueOf("2.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Test payment in other currency rejected without failing other lines
+        String ndjson = "{\"receiver\": \"example2@example.com\", \"amount\": \"1.00\", \"currency\": \"XYZ\"}\n"
+                + "{\"receiver\": \"example2@example.com\", \"amount\": \"1.00\"}\n";
+        mockMvc.perform(post("/payment/payroll")
+                        .header("authorization", "Bearer " + token)
+                        .contentType("application/x-ndjson")
+                        .content(ndjson))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.status").value("COMPLETED"))
+                .andExpect(jsonPath("$.paymentsCompleted").value(1))
+                .andExpect(jsonPath("$.paymentsRejected").value(1))
+                .andExpect(jsonPath("$.errors[0].line").value(1));
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Test when balance is not enough
+        ndjson = "{\"receiver\": \"example2@example.com\", \"amount\": \"5.00\"}\n";
+        mockMvc.perform(post("/payment/payroll")
+                        .header("authorization", "Bearer " + token)
+                        .contentType("application/x-ndjson")
+                        .content(ndjson))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.status").value("FAILED"))
+                .andExpect(jsonPath("$.paymentsCompleted").value(0));
+        assertEquals(0, Money.valueOf("1.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+
+        // Test first line which is not a header
+        registerUser("receiver.team@example.com", "password");
+        mockMvc.perform(post("/payment/payroll")
+                        .header("authorization", "Bearer " + token)
+                        .contentType("text/csv")
+                        .content("receiver.team@example.com,1.00\n"))
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.status").value("COMPLETED"))
+                .andExpect(jsonPath("$.paymentsCompleted").value(1));
+        assertEquals(0, Money.valueOf("0.00").compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+    }
+
+    @Test
+    void testScheduledPayments() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("1.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonSchedule = jsonMapper.createObjectNode();
+        jsonSchedule.put("receiver", "example2@example.com");
+        jsonSchedule.put("amount", "1.00");
+        jsonSchedule.put("frequency", "DAILY");
+        jsonSchedule.put("startAt", LocalDateTime.now().minusMinutes(1).toString());
+        this.testJsonRequest(HttpMethod.POST, "/payment/scheduled",
+                Map.of("authorization", "Bearer " + token),
+                jsonSchedule.toString(), status().is(200));
+        jsonSchedule.put("frequency", "MONTHLY");
+        long monthlyId = jsonMapper.readTree(this.testJsonRequest(HttpMethod.POST, "/payment/scheduled",
+                        Map.of("authorization", "Bearer " + token),
+                        jsonSchedule.toString(), status().is(200))
+                .getResponse().getContentAsString()).get("id").asLong();
+
+        // Balance covers only the first payment
+        assertEquals(2, scheduledPaymentExecutor.executeBatch());
+        assertEquals(0, Money.ZERO.compareTo(
+                userService.loadByEmail("example@example.com").getBalance()));
+        this.testJsonRequest(HttpMethod.GET, "/payment/scheduled?sort=id",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content[0].failures").value(0),
+                jsonPath("$.content[1].failures").value(1),
+                jsonPath("$.content[1].lastError").value("Not enough balance"));
+        // Neither is due until its next run
+        assertEquals(0, scheduledPaymentExecutor.executeBatch());
+
+        this.testJsonRequest(HttpMethod.DELETE, "/payment/scheduled/" + monthlyId,
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200));
+        this.testJsonRequest(HttpMethod.DELETE, "/payment/scheduled/" + (monthlyId + 1),
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(404));
+    }
+
+    @Test
+    void testPaymentSummary() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("1.00"));
+                    userRepository.save(user);
+                });
+
+        paymentRollupService.tail();
+        BigDecimal outflowBefore = currentMonthOutflow(token);
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(200));
+
+        // Summary doesn't include the payment until the rollups are updated
+        assertEquals(0, outflowBefore.compareTo(currentMonthOutflow(token)));
+        assertTrue(paymentRollupService.tail() > 0);
+        assertEquals(0, outflowBefore.add(new BigDecimal("1.00")).compareTo(currentMonthOutflow(token)));
+
+        String summary = this.testJsonRequest(HttpMethod.GET, "/payment/summary?period=DAY",
+                        Map.of("authorization", "Bearer " + token),
+                        null, status().is(200),
+                        jsonPath("$.topCounterparties[0].counterparty").value("example2@example.com"))
+                .getResponse().getContentAsString();
+
+        // Test that rebuilt rollups are the same as the maintained ones
+        paymentRollupService.rebuild();
+        assertEquals(summary, this.testJsonRequest(HttpMethod.GET, "/payment/summary?period=DAY",
+                        Map.of("authorization", "Bearer " + token),
+                        null, status().is(200))
+                .getResponse().getContentAsString());
+    }
+
+    @Test
+    void testPaymentEventsRelayed() throws Exception {
+        String token = this.getToken(
+                "example@example.com", "password");
+
+        User sender = userRepository.findByEmail("example@example.com").orElseThrow();
+        sender.setBalance(Money.valueOf("1.00"));
+        userRepository.save(sender);
+        long receiverId = userRepository.findByEmail("example2@example.com").orElseThrow().getId();
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(200));
+
+        outboxRelay.relay();
+        assertEquals(0, outboxRelay.getStats().getPending());
+        List<OutboxEvent> events = outboxSink.getEvents();
+        OutboxEvent event = events.get(events.size() - 1);
+        assertEquals(OutboxEvent.Type.PAYMENT_SENT, event.getType());
+        assertEquals(sender.getId(), event.getAggregateId());
+        JsonNode payload = jsonMapper.readTree(event.getPayload());
+        assertEquals(receiverId, payload.get("receiverId").asLong());
+        assertEquals(0, new BigDecimal("1.00").compareTo(payload.get("amount").decimalValue()));
+        for (int i = 1; i < events.size(); i++)
+            assertTrue(events.get(i - 1).getId() < events.get(i).getId());
+    }
+
+    @Test
+    void testReadingArchivedPayments() throws Exception {
+        String token = registerUser("archived@example.com", "password");
+        User user = userRepository.findByEmail("archived@example.com").orElseThrow();
+        user.setBalance(Money.valueOf("1.00"));
+        userRepository.save(user);
+        long receiverId = userRepository.findByEmail("example2@example.com").orElseThrow().getId();
+
+        for (int i = 1; i <= 3; i++) {
+            jdbcTemplate.update("insert into payments (sender_id, receiver_id, amount, timestamp)"
+                    + " values (?, ?, ?, ?)", user.getId(), receiverId, new BigDecimal("0.0" + i),
+                    Timestamp.valueOf(LocalDateTime.now().minusYears(2).plusDays(i)));
+        }
+        paymentRollupService.tail();
+        assertTrue(paymentArchiver.archive() >= 3);
+        assertEquals(0, jdbcTemplate.queryForObject(
+                "select count(*) from payments where sender_id = ?", Integer.class, user.getId()));
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(200));
+
+        // Second page continues from the database into the archive
+        this.testJsonRequest(HttpMethod.GET, "/payment/payments?size=2&page=1",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.totalElements").value(4),
+                jsonPath("$.content[0].amount").value(0.02),
+                jsonPath("$.content[1].amount").value(0.01));
+        this.testJsonRequest(HttpMethod.GET, "/payment/payments?sort=amount,desc",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content[0].amount").value(1.00),
+                jsonPath("$.content[1].amount").value(0.03));
+
+        String cursor = "";
+        int paymentsCount = 0;
+        do {
+            JsonNode page = jsonMapper.readTree(this.testJsonRequest(HttpMethod.GET,
+                            "/payment/payments?size=3&cursor=" + cursor,
+                            Map.of("authorization", "Bearer " + token),
+                            null, status().is(200))
+                    .getResponse().getContentAsString());
+            paymentsCount += page.get("content").size();
+            cursor = page.get("nextCursor").isNull() ? null : page.get("nextCursor").asText();
+        } while (cursor != null);
+        assertEquals(4, paymentsCount);
+
+        String csv = this.testJsonRequest(HttpMethod.GET, "/payment/export?format=CSV",
+                        Map.of("authorization", "Bearer " + token),
+                        null, status().is(200))
+                .getResponse().getContentAsString();
+        assertEquals(5, csv.split("\n").length);
+        assertTrue(csv.contains("SENT,example2@example.com,0.01,"));
+    }
+
+    @Test
+    void testPayingInOtherCurrency() throws Exception {
+        String token = registerUser("currency@example.com", "password");
+        User user = userRepository.findByEmail("currency@example.com").orElseThrow();
+        user.setBalance(Money.valueOf("10.00"));
+        userRepository.save(user);
+        String receiverToken = this.getToken("example2@example.com", "password");
+
+        // 10 USD are received as 8 EUR
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "10.00");
+        jsonPayment.put("targetCurrency", "EUR");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(200));
+
+        // 8 EUR are received as 40 PLN
+        jsonPayment.put("receiver", "currency@example.com");
+        jsonPayment.put("amount", "8.00");
+        jsonPayment.put("currency", "EUR");
+        jsonPayment.put("targetCurrency", "PLN");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + receiverToken),
+                jsonPayment.toString(), status().is(200));
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + receiverToken),
+                jsonPayment.toString(), status().is(400));
+
+        this.testJsonRequest(HttpMethod.GET, "/user/balances",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.USD").value(0.00),
+                jsonPath("$.PLN").value(40.00));
+        this.testJsonRequest(HttpMethod.GET, "/payment/payments",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.content[0].direction").value("RECEIVED"),
+                jsonPath("$.content[0].amount").value(40.00),
+                jsonPath("$.content[0].currency").value("PLN"),
+                jsonPath("$.content[1].direction").value("SENT"),
+                jsonPath("$.content[1].amount").value(10.00),
+                jsonPath("$.content[1].currency").doesNotExist());
+
+        // Currency without a rate
+        jsonPayment.put("currency", "PLN");
+        jsonPayment.put("targetCurrency", "GBP");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(400));
+        this.testJsonRequest(HttpMethod.GET, "/user/balances",
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200),
+                jsonPath("$.PLN").value(40.00));
+    }
+
+    @Test
+    void testVelocityRule() throws Exception {
+        String token = this.getToken("example@example.com", "password");
+
+        // Above the hourly value limit of the test rules, rejected before the balance is checked
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1000000.01");
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token),
+                jsonPayment.toString(), status().is(403));
+
+        // Rejection is not stored for the idempotency key, a later retry can pass
+        this.testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + token, "Idempotency-Key", "velocity-1"),
+                jsonPayment.toString(), status().is(403));
+        assertEquals(0, jdbcTemplate.queryForObject(
+                "select count(*) from idempotency_keys where idempotency_key = ?", Integer.class, "velocity-1"));
+    }
+
+    private BigDecimal currentMonthOutflow(String token) throws Exception {
+        JsonNode periods = jsonMapper.readTree(this.testJsonRequest(HttpMethod.GET,
+                        "/payment/summary?from=" + YearMonth.now(),
+                        Map.of("authorization", "Bearer " + token),
+                        null, status().is(200))
+                .getResponse().getContentAsString()).get("periods");
+        return periods.isEmpty() ? BigDecimal.ZERO : periods.get(0).get("outflow").decimalValue();
+    }
+
 }
@@ -18,13 +18,19 @@
 
 package xyz.yawek.banking.controller;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpMethod;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.web.servlet.MvcResult;
 import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.service.ledger.LedgerService;
 
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -34,6 +40,9 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @Order(2)
 public class UserControllerTests extends BaseTest {
 
+    @Autowired
+    private LedgerService ledgerService;
+
     @Test
     void testGettingBalance() throws Exception {
         String token = this.getToken(
@@ -46,4 +55,50 @@ public class UserControllerTests extends BaseTest {
                 balanceResult.getResponse().getContentAsString()));
     }
 
+    @Test
+    void testGettingBalanceAsOf() throws Exception {
+        String senderToken = this.getToken(
+                "example@example.com", "password");
+        String receiverToken = this.getToken(
+                "example2@example.com", "password");
+        userRepository.findByEmail("example@example.com")
+                .ifPresent(user -> {
+                    user.setBalance(Money.valueOf("3.00"));
+                    userRepository.save(user);
+                });
+
+        ObjectNode jsonPayment = jsonMapper.createObjectNode();
+        jsonPayment.put("receiver", "example2@example.com");
+        jsonPayment.put("amount", "1.00");
+        LocalDateTime beforePayments = LocalDateTime.now();
+        Thread.sleep(5);
+        testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + senderToken),
+                jsonPayment.toString(), status().is(200));
+        ledgerService.takeSnapshots();
+        Thread.sleep(5);
+        LocalDateTime afterFirstPayment = LocalDateTime.now();
+        Thread.sleep(5);
+        jsonPayment.put("amount", "2.00");
+        testJsonRequest(HttpMethod.POST, "/payment/pay",
+                Map.of("authorization", "Bearer " + senderToken),
+                jsonPayment.toString(), status().is(200));
+        Thread.sleep(5);
+        LocalDateTime afterPayments = LocalDateTime.now();
+
+        BigDecimal initialBalance = getBalanceAt(receiverToken, beforePayments);
+        assertEquals(0, initialBalance.add(new BigDecimal("1.00"))
+                .compareTo(getBalanceAt(receiverToken, afterFirstPayment)));
+        assertEquals(0, initialBalance.add(new BigDecimal("3.00"))
+                .compareTo(getBalanceAt(receiverToken, afterPayments)));
+    }
+
+    private BigDecimal getBalanceAt(String token, LocalDateTime time) throws Exception {
+        MvcResult balanceResult = testJsonRequest(
+                HttpMethod.GET, "/user/balance?at=" + time,
+                Map.of("authorization", "Bearer " + token),
+                null, status().is(200));
+        return new BigDecimal(balanceResult.getResponse().getContentAsString());
+    }
+
 }
@@ -0,0 +1,91 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MoneyTests {
+
+    @Test
+    void testConversion() {
+        assertEquals(Money.ofMinorUnits(150), Money.valueOf("1.5"));
+        assertEquals(Money.ofMinorUnits(-1), Money.valueOf("-0.010"));
+        assertEquals(Money.ofMinorUnits(50_000), Money.ofMajorUnits(500));
+        assertSame(Money.ZERO, Money.valueOf("0.00"));
+        assertEquals(new BigDecimal("12.30"), Money.valueOf("12.3").toBigDecimal());
+        assertEquals("-0.05", Money.ofMinorUnits(-5).toString());
+
+        assertThrows(ArithmeticException.class, () -> Money.valueOf("0.001"));
+        assertThrows(ArithmeticException.class, () -> Money.valueOf("100000000000000000"));
+        assertThrows(ArithmeticException.class, () -> Money.ofMajorUnits(Long.MAX_VALUE / 10));
+    }
+
+    @Test
+    void testArithmetic() {
+        Money amount = Money.valueOf("10.25");
+        assertEquals(Money.valueOf("10.26"), amount.add(Money.ofMinorUnits(1)));
+        assertEquals(Money.valueOf("-0.75"), amount.subtract(Money.ofMajorUnits(11)));
+        assertEquals(Money.valueOf("-10.25"), amount.negate());
+        assertEquals(1, amount.signum());
+        assertEquals(-1, amount.negate().compareTo(amount));
+
+        assertThrows(ArithmeticException.class,
+                () -> Money.ofMinorUnits(Long.MAX_VALUE).add(Money.ofMinorUnits(1)));
+        assertThrows(ArithmeticException.class,
+                () -> Money.ofMinorUnits(Long.MIN_VALUE).negate());
+    }
+
+    @Test
+    void testMultiplication() {
+        Money amount = Money.valueOf("10.25");
+        for (RoundingMode rounding : RoundingMode.values()) {
+            if (rounding == RoundingMode.UNNECESSARY) continue;
+            for (String factor : new String[] { "1.1", "-1.1", "0.333", "1.005", "2" }) {
+                assertEquals(amount.toBigDecimal().multiply(new BigDecimal(factor)).setScale(2, rounding),
+                        amount.multiply(new BigDecimal(factor), rounding).toBigDecimal(), factor + " " + rounding);
+            }
+        }
+        assertEquals(Money.valueOf("11.28"), amount.multiply(new BigDecimal("1.1"), RoundingMode.HALF_UP));
+        assertThrows(ArithmeticException.class,
+                () -> amount.multiply(new BigDecimal("1.1"), RoundingMode.UNNECESSARY));
+
+        // Products not fitting in a long go through BigDecimal
+        Money large = Money.ofMinorUnits(Long.MAX_VALUE / 4);
+        assertEquals(Money.ofMinorUnits(Long.MAX_VALUE / 4 * 3),
+                large.multiply(new BigDecimal("3.000"), RoundingMode.UNNECESSARY));
+        assertThrows(ArithmeticException.class,
+                () -> large.multiply(new BigDecimal("5"), RoundingMode.HALF_UP));
+    }
+
+    @Test
+    void testIntegralDivision() {
+        Money perYear = Money.ofMajorUnits(500);
+        assertEquals(0, Money.valueOf("499.99").divideToIntegral(perYear));
+        assertEquals(1, Money.valueOf("500").divideToIntegral(perYear));
+        assertEquals(4, Money.valueOf("2499.99").divideToIntegral(perYear));
+    }
+
+}
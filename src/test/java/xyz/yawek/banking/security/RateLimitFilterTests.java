@@ -0,0 +1,108 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RateLimitFilterTests {
+
+    private static final long SECOND = 1_000_000_000;
+
+    @AfterEach
+    void clearContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void testTokenBucket() {
+        RateLimiter limiter = new RateLimiter(List.of(
+                RateLimit.parse("/auth/**:0.5:3"), RateLimit.parse("/**:10:1")));
+        assertEquals(0, limiter.match("/auth/login"));
+        assertEquals(1, limiter.match("/payment/pay"));
+
+        // Burst is taken at once, then a permit every two seconds
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, limiter.acquire(0, "client", 0));
+        assertEquals(2 * SECOND, limiter.acquire(0, "client", 0));
+        assertEquals(SECOND, limiter.acquire(0, "client", SECOND));
+        assertEquals(0, limiter.acquire(0, "client", 2 * SECOND));
+        assertEquals(2 * SECOND, limiter.acquire(0, "client", 2 * SECOND));
+        // Other keys and limits have their own buckets
+        assertEquals(0, limiter.acquire(0, "other", 2 * SECOND));
+        assertEquals(0, limiter.acquire(1, "client", 2 * SECOND));
+        assertEquals(SECOND / 10, limiter.acquire(1, "client", 2 * SECOND));
+
+        // Only full buckets are evicted
+        assertEquals(3, limiter.getBuckets());
+        assertEquals(1, limiter.evict(3 * SECOND));
+        assertEquals(2, limiter.evict(8 * SECOND));
+        assertEquals(0, limiter.getBuckets());
+        assertEquals(0, limiter.acquire(0, "client", 8 * SECOND));
+    }
+
+    @Test
+    void testInvalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> RateLimit.parse("/**:10"));
+        assertThrows(IllegalArgumentException.class, () -> RateLimit.parse("/**:0:10"));
+        assertThrows(IllegalArgumentException.class, () -> RateLimit.parse("/**:10:0"));
+        assertThrows(IllegalArgumentException.class, () -> RateLimit.parse("/**:fast:10"));
+    }
+
+    @Test
+    void testFilter() throws Exception {
+        RateLimitFilter filter = new RateLimitFilter(new String[] { "/auth/**:0.001:1", "/payment/**:0.001:1" });
+
+        assertEquals(200, filter(filter, "/auth/login", "10.0.0.1").getStatus());
+        MockHttpServletResponse response = filter(filter, "/auth/login", "10.0.0.1");
+        assertEquals(429, response.getStatus());
+        assertEquals("1000", response.getHeader(HttpHeaders.RETRY_AFTER));
+        assertEquals(200, filter(filter, "/auth/login", "10.0.0.2").getStatus());
+        // Paths without a limit are not counted
+        assertEquals(200, filter(filter, "/user/balance", "10.0.0.1").getStatus());
+
+        // Authenticated requests are counted per user, other than to /auth/**
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+                "example@example.com", null, AuthorityUtils.createAuthorityList("USER")));
+        assertEquals(200, filter(filter, "/payment/pay", "10.0.0.1").getStatus());
+        assertEquals(429, filter(filter, "/payment/pay", "10.0.0.3").getStatus());
+        assertEquals(429, filter(filter, "/auth/login", "10.0.0.1").getStatus());
+    }
+
+    private MockHttpServletResponse filter(RateLimitFilter filter, String path, String address) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", path);
+        request.setRemoteAddr(address);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+}
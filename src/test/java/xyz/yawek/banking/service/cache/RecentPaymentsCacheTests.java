@@ -0,0 +1,131 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.Payment;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.model.projection.PaymentView;
+import xyz.yawek.banking.repository.PaymentRepository;
+import xyz.yawek.banking.service.archive.PaymentArchive;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RecentPaymentsCacheTests {
+
+    private final PaymentRepository repository = mock(PaymentRepository.class);
+    private final PaymentArchive archive = mock(PaymentArchive.class);
+    private final User sender = user(1, "sender@example.com");
+    private final User receiver = user(2, "receiver@example.com");
+    private long paymentId;
+
+    @Test
+    void testServingLatestPayments() {
+        when(repository.findViewsByUserBefore(anyLong(), any(), anyLong(), anyInt()))
+                .thenReturn(List.of());
+        RecentPaymentsCache cache = createCache(3, Long.MAX_VALUE);
+
+        assertEquals(0, cache.get(1).orElseThrow().getTotal());
+        for (int i = 1; i <= 5; i++)
+            cache.addAfterCommit(payment(i));
+
+        // Only the newest payments fit in the buffer
+        RecentPayments recent = cache.get(1).orElseThrow();
+        assertEquals(5, recent.getTotal());
+        assertEquals(List.of(5L, 4L, 3L),
+                recent.getPayments().stream().map(PaymentView::getAmount).map(BigDecimal::longValue).toList());
+        assertEquals(PaymentView.Direction.SENT, recent.getPayments().get(0).getDirection());
+        assertEquals("receiver@example.com", recent.getPayments().get(0).getCounterparty());
+
+        // Receiver was not cached, so it is loaded with all its payments
+        cache.get(2);
+        verify(repository, times(2)).findViewsByUserBefore(anyLong(), any(), anyLong(), anyInt());
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(2, cache.getStats().getMisses());
+    }
+
+    @Test
+    void testEvictingOverBudget() {
+        when(repository.findViewsByUserBefore(anyLong(), any(), anyLong(), anyInt()))
+                .thenReturn(List.of());
+        RecentPaymentsCache cache = createCache(3, 200);
+
+        cache.get(1);
+        cache.get(2);
+        assertEquals(1, cache.getStats().getUsers());
+        assertEquals(1, cache.getStats().getEvictions());
+
+        cache.invalidate(2);
+        assertEquals(0, cache.getStats().getUsers());
+        assertEquals(0, cache.getStats().getEstimatedBytes());
+    }
+
+    @Test
+    void testLoadingArchivedPayments() {
+        LocalDateTime now = LocalDateTime.now();
+        when(repository.findViewsByUserBefore(anyLong(), any(), anyLong(), anyInt()))
+                .thenReturn(List.of(view(3, now)));
+        when(repository.countByUser(1)).thenReturn(1L);
+        when(archive.countByUser(1)).thenReturn(2L);
+        when(archive.findByUserBefore(anyLong(), any(), anyLong(), anyInt()))
+                .thenReturn(List.of(view(2, now.minusYears(1)), view(1, now.minusYears(2))));
+        RecentPaymentsCache cache = createCache(2, Long.MAX_VALUE);
+
+        RecentPayments recent = cache.get(1).orElseThrow();
+        assertEquals(3, recent.getTotal());
+        assertEquals(List.of(3L, 2L), recent.getPayments().stream().map(PaymentView::getId).toList());
+    }
+
+    private RecentPaymentsCache createCache(int capacity, long maxBytes) {
+        return new RecentPaymentsCache(repository, archive,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), capacity, maxBytes);
+    }
+
+    private Payment payment(long amount) {
+        Payment payment = new Payment(sender, receiver, Money.valueOf(BigDecimal.valueOf(amount)));
+        payment.setId(++paymentId);
+        payment.setTimestamp(LocalDateTime.now().plusSeconds(paymentId));
+        return payment;
+    }
+
+    private static PaymentView view(long id, LocalDateTime timestamp) {
+        return new CachedPayment(id, PaymentView.Direction.SENT, "receiver@example.com", BigDecimal.ONE, null, timestamp);
+    }
+
+    private static User user(long id, String email) {
+        User user = new User(email, "password");
+        user.setId(id);
+        return user;
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.fx;
+
+import org.junit.jupiter.api.Test;
+import xyz.yawek.banking.exception.UnsupportedCurrencyException;
+import xyz.yawek.banking.model.Money;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FxRateServiceTests {
+
+    private final AtomicReference<Map<String, BigDecimal>> rates = new AtomicReference<>(
+            Map.of("EUR", new BigDecimal("0.8"), "JPY", new BigDecimal("150")));
+    private final FxRateSource source = () -> {
+        Map<String, BigDecimal> current = rates.get();
+        if (current == null) throw new IOException("Source unavailable");
+        return current;
+    };
+
+    @Test
+    void testConversion() throws IOException {
+        FxRateService service = new FxRateService(source, "USD");
+
+        assertEquals(Money.valueOf("8.00"), service.convert(Money.valueOf("10.00"), "USD", "EUR"));
+        assertEquals(Money.valueOf("12.50"), service.convert(Money.valueOf("10.00"), "EUR", "USD"));
+        assertEquals(Money.valueOf("1875.00"), service.convert(Money.valueOf("10.00"), "EUR", "JPY"));
+        // Rounded half up to hundredths
+        assertEquals(Money.valueOf("0.01"), service.convert(Money.valueOf("1.00"), "JPY", "USD"));
+        assertEquals(Money.valueOf("0.01"), service.convert(Money.valueOf("1.00"), "JPY", "EUR"));
+        assertEquals(Money.valueOf("1.00"), service.convert(Money.valueOf("1.00"), "JPY", "JPY"));
+
+        assertEquals("USD", service.resolve(null));
+        assertEquals("EUR", service.resolve("EUR"));
+        assertThrows(UnsupportedCurrencyException.class, () -> service.resolve("GBP"));
+        assertThrows(UnsupportedCurrencyException.class,
+                () -> service.convert(Money.valueOf("1.00"), "USD", "GBP"));
+        assertThrows(UnsupportedCurrencyException.class,
+                () -> service.convert(Money.valueOf("1.00"), "GBP", "GBP"));
+    }
+
+    @Test
+    void testRefreshingRates() throws IOException {
+        FxRateService service = new FxRateService(source, "USD");
+        FxRateTable initial = service.getTable();
+
+        rates.set(Map.of("EUR", new BigDecimal("0.5")));
+        FxRateTable refreshed = service.refresh();
+        assertNotSame(initial, refreshed);
+        assertSame(refreshed, service.getTable());
+        assertEquals(Money.valueOf("5.00"), service.convert(Money.valueOf("10.00"), "USD", "EUR"));
+        assertThrows(UnsupportedCurrencyException.class, () -> service.resolve("JPY"));
+        // Tables are never modified, conversions holding the previous one keep its rates
+        assertEquals(Money.valueOf("8.00"), initial.convert(Money.valueOf("10.00"), "USD", "EUR"));
+
+        // Failed refreshes keep the current rates
+        rates.set(null);
+        assertSame(refreshed, service.refresh());
+        rates.set(Map.of("EUR", new BigDecimal("-1")));
+        assertSame(refreshed, service.refresh());
+        rates.set(Map.of("USD", new BigDecimal("2")));
+        assertSame(refreshed, service.refresh());
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.interest;
+
+import org.junit.jupiter.api.Test;
+import xyz.yawek.banking.model.Money;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DailyInterestTests {
+
+    @Test
+    void testInterest() {
+        DailyInterest interest = new DailyInterest(new BigDecimal("0.05"));
+
+        // 1000.00 * 0.05 / 365 = 0.1369...
+        assertEquals(Money.valueOf("0.14"), interest.forDays(Money.valueOf("1000.00"), 1));
+        // Missed days are rounded once, not day by day
+        assertEquals(Money.valueOf("1.37"), interest.forDays(Money.valueOf("1000.00"), 10));
+        assertEquals(Money.valueOf("50.00"), interest.forDays(Money.valueOf("1000.00"), 365));
+        assertEquals(Money.ZERO, interest.forDays(Money.valueOf("1000.00"), 0));
+        // 73.00 * 0.05 / 365 = 0.01 exactly, 36.50 gives 0.005 rounded to even
+        assertEquals(Money.valueOf("0.01"), interest.forDays(Money.valueOf("73.00"), 1));
+        assertEquals(Money.ZERO, interest.forDays(Money.valueOf("36.50"), 1));
+        assertEquals(Money.valueOf("0.02"), interest.forDays(Money.valueOf("109.50"), 1));
+    }
+
+    @Test
+    void testLargeAmounts() {
+        DailyInterest interest = new DailyInterest(new BigDecimal("0.0375"));
+        Money principal = Money.valueOf("90000000000000000.00");
+
+        assertEquals(Money.valueOf(principal.toBigDecimal()
+                        .multiply(new BigDecimal("0.0375"))
+                        .multiply(BigDecimal.valueOf(400))
+                        .divide(BigDecimal.valueOf(365), 2, RoundingMode.HALF_EVEN)),
+                interest.forDays(principal, 400));
+        assertEquals(new BigDecimal("0.0375"), interest.getAnnualRate());
+        assertThrows(IllegalArgumentException.class, () -> new DailyInterest(new BigDecimal("-0.01")));
+    }
+
+    @Test
+    void testOutstandingPrincipal() {
+        Money amount = Money.valueOf("500.00");
+        Money repaymentAmount = Money.valueOf("625.00");
+
+        assertEquals(amount, DailyInterest.outstandingPrincipal(amount, repaymentAmount, repaymentAmount));
+        assertEquals(Money.valueOf("250.00"),
+                DailyInterest.outstandingPrincipal(amount, repaymentAmount, Money.valueOf("312.50")));
+        // 500.00 * 52.12 / 625.00 = 41.696
+        assertEquals(Money.valueOf("41.69"),
+                DailyInterest.outstandingPrincipal(amount, repaymentAmount, Money.valueOf("52.12")));
+        assertEquals(Money.ZERO, DailyInterest.outstandingPrincipal(amount, repaymentAmount, Money.ZERO));
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.pipeline;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaymentJournalTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReplayingAndClearing() throws Exception {
+        Path path = directory.resolve("payments.journal");
+        int size = 16 + 4 * PaymentJournal.RECORD_SIZE;
+        List<JournalRecord> records = List.of(
+                new JournalRecord(1, 10, 20, 150, 1000),
+                new JournalRecord(2, 20, 10, 50, 2000));
+
+        try (PaymentJournal journal = new PaymentJournal(path, size)) {
+            assertTrue(journal.append(records));
+            assertTrue(journal.append(records));
+            // Test appending when there is no space left
+            assertFalse(journal.append(records.subList(0, 1)));
+        }
+
+        try (PaymentJournal journal = new PaymentJournal(path, size)) {
+            assertEquals(4, journal.readAll().size());
+            assertEquals(records.get(1), journal.readAll().get(1));
+
+            assertTrue(journal.clearIfFlushed());
+            assertTrue(journal.readAll().isEmpty());
+
+            // Test clearing when appended records were not flushed
+            assertTrue(journal.append(records));
+            assertFalse(journal.clearIfFlushed());
+            journal.markFlushed(records.size());
+            assertTrue(journal.clearIfFlushed());
+        }
+    }
+
+    @Test
+    void testAppendingMoreThanCapacity() throws Exception {
+        int size = 16 + 2 * PaymentJournal.RECORD_SIZE;
+        JournalRecord record = new JournalRecord(1, 10, 20, 150, 1000);
+
+        try (PaymentJournal journal = new PaymentJournal(directory.resolve("small.journal"), size)) {
+            assertEquals(2, journal.getMaxRecords());
+            // Batch would never fit, even in the cleared journal
+            assertThrows(IllegalArgumentException.class,
+                    () -> journal.append(List.of(record, record, record)));
+            assertTrue(journal.append(List.of(record, record)));
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.pipeline;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import xyz.yawek.banking.BaseTest;
+import xyz.yawek.banking.exception.NotEnoughBalanceException;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+import xyz.yawek.banking.service.BatchPaymentService;
+import xyz.yawek.banking.service.Transfer;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DirtiesContext
+@TestPropertySource(properties = {
+        "app.payment.mode=pipeline",
+        "app.payment.pipeline.journal-path=target/pipeline-tests.journal",
+        "app.payment.pipeline.journal-size=1048576"
+})
+class PaymentPipelineTests extends BaseTest {
+
+    @Autowired
+    private PaymentPipeline pipeline;
+
+    @Autowired
+    private BatchPaymentService batchPaymentService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void testDebitingOutsidePipeline() throws Exception {
+        registerUser("pipeline-sender@example.com", "password");
+        registerUser("pipeline-receiver@example.com", "password");
+        User sender = userService.loadByEmail("pipeline-sender@example.com");
+        User receiver = userService.loadByEmail("pipeline-receiver@example.com");
+        jdbcTemplate.update("update users set balance = 100.00 where id = ?", sender.getId());
+
+        pipeline.transfer(sender, receiver, Money.valueOf("60.00"));
+        // Batch debit sees the pipelined payment before it is flushed
+        assertThrows(NotEnoughBalanceException.class, () -> batchPaymentService.transfer(sender,
+                List.of(new Transfer(receiver.getId(), Money.valueOf("60.00")))));
+        batchPaymentService.transfer(sender, List.of(new Transfer(receiver.getId(), Money.valueOf("40.00"))));
+        // And the pipeline sees the batch debit
+        assertThrows(NotEnoughBalanceException.class,
+                () -> pipeline.transfer(sender, receiver, Money.valueOf("0.01")));
+
+        // Credit of the receiver is counted whether it was flushed or not
+        pipeline.transfer(receiver, sender, Money.valueOf("100.00"));
+        assertThrows(NotEnoughBalanceException.class,
+                () -> pipeline.transfer(receiver, sender, Money.valueOf("0.01")));
+
+        assertEquals(new BigDecimal("100.00"), awaitBalance(sender, new BigDecimal("100.00")));
+        assertEquals(new BigDecimal("0.00"), awaitBalance(receiver, new BigDecimal("0.00")));
+    }
+
+    @Test
+    void testReleasingHoldOnRollback() throws Exception {
+        registerUser("pipeline-holder@example.com", "password");
+        User sender = userService.loadByEmail("pipeline-holder@example.com");
+        User receiver = userService.loadByEmail("example@example.com");
+        jdbcTemplate.update("update users set balance = 10.00 where id = ?", sender.getId());
+
+        // Receiver does not exist, so the batch rolls back after its hold was taken
+        assertThrows(RuntimeException.class, () -> batchPaymentService.transfer(sender,
+                List.of(new Transfer(-1, Money.valueOf("10.00")))));
+        pipeline.transfer(sender, receiver, Money.valueOf("10.00"));
+        assertEquals(new BigDecimal("0.00"), awaitBalance(sender, new BigDecimal("0.00")));
+    }
+
+    @Test
+    void testCreditingOutsidePipeline() throws Exception {
+        registerUser("pipeline-payer@example.com", "password");
+        registerUser("pipeline-payee@example.com", "password");
+        User payer = userService.loadByEmail("pipeline-payer@example.com");
+        User payee = userService.loadByEmail("pipeline-payee@example.com");
+        jdbcTemplate.update("update users set balance = 50.00 where id = ?", payer.getId());
+        jdbcTemplate.update("update users set balance = 10.00 where id = ?", payee.getId());
+
+        // Account of the payee is cached by its payment
+        pipeline.transfer(payee, payer, Money.valueOf("10.00"));
+        batchPaymentService.transfer(payer, List.of(new Transfer(payee.getId(), Money.valueOf("50.00"))));
+        // Batch credit can be spent in the pipeline, but only once
+        pipeline.transfer(payee, payer, Money.valueOf("50.00"));
+        assertThrows(NotEnoughBalanceException.class,
+                () -> pipeline.transfer(payee, payer, Money.valueOf("0.01")));
+
+        assertEquals(new BigDecimal("60.00"), awaitBalance(payer, new BigDecimal("60.00")));
+        assertEquals(new BigDecimal("0.00"), awaitBalance(payee, new BigDecimal("0.00")));
+    }
+
+    private BigDecimal awaitBalance(User user, BigDecimal expected) {
+        BigDecimal balance = null;
+        for (int i = 0; i < 100 && !expected.equals(balance); i++) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            balance = jdbcTemplate.queryForObject(
+                    "select balance from users where id = ?", BigDecimal.class, user.getId());
+        }
+        return balance;
+    }
+
+}
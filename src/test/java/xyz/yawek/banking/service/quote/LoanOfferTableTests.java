@@ -0,0 +1,80 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.quote;
+
+import org.junit.jupiter.api.Test;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.rest.LoanQuotes;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LoanOfferTableTests {
+
+    @Test
+    void testOffers() {
+        LoanOfferTable table = new LoanOfferTable(new BigDecimal("1.25"), Money.valueOf("100000000.00"));
+
+        assertEquals(Money.valueOf("625.00"), table.getRepaymentAmount(500));
+        assertEquals(Money.valueOf("125000.00"), table.getRepaymentAmount(100000));
+        assertEquals(1, table.getTermYears(500));
+        assertEquals(3, table.getTermYears(1500));
+        assertEquals(200, table.getTermYears(100000));
+        assertEquals(2, LoanOfferTable.termYears(Money.valueOf("1499.99")));
+        assertThrows(IllegalArgumentException.class, () -> table.getRepaymentAmount(750));
+        assertThrows(IllegalArgumentException.class, () -> table.getRepaymentAmount(0));
+        assertThrows(IllegalArgumentException.class, () -> table.getRepaymentAmount(100500));
+
+        table.reload(new BigDecimal("1.333"), Money.valueOf("5000.00"));
+        // 500 * 1.333 = 666.50, 1500 * 1.333 = 1999.50
+        assertEquals(Money.valueOf("666.50"), table.getRepaymentAmount(500));
+        assertEquals(Money.valueOf("1999.50"), table.getRepaymentAmount(1500));
+        assertEquals(Money.valueOf("5000.00"), table.getLimit());
+    }
+
+    @Test
+    void testQuotes() {
+        LoanOfferTable table = new LoanOfferTable(new BigDecimal("1.25"), Money.valueOf("5000.00"));
+
+        LoanQuotes quotes = table.quote(Money.ZERO);
+        assertEquals(200, quotes.getOffers().size());
+        assertEquals(new BigDecimal("5000.00"), quotes.getHeadroom());
+        assertEquals(5000, quotes.getMaxAmount());
+
+        quotes = table.quote(Money.valueOf("3875.00"));
+        assertEquals(new BigDecimal("1125.00"), quotes.getHeadroom());
+        assertEquals(1000, quotes.getMaxAmount());
+
+        // Near the limit, outstanding loans and the amount must be within it
+        quotes = table.quote(Money.valueOf("4500.00"));
+        assertEquals(500, quotes.getMaxAmount());
+        quotes = table.quote(Money.valueOf("4500.01"));
+        assertEquals(0, quotes.getMaxAmount());
+
+        quotes = table.quote(Money.valueOf("6000.00"));
+        assertEquals(new BigDecimal("0.00"), quotes.getHeadroom());
+        assertEquals(0, quotes.getMaxAmount());
+
+        table.reload(new BigDecimal("1.25"), Money.valueOf("1000000000.00"));
+        assertEquals(LoanOfferTable.MAX_AMOUNT, table.quote(Money.ZERO).getMaxAmount());
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.repayment;
+
+import org.junit.jupiter.api.Test;
+import xyz.yawek.banking.model.Loan;
+import xyz.yawek.banking.model.LoanInstallment;
+import xyz.yawek.banking.model.Money;
+import xyz.yawek.banking.model.User;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InstallmentScheduleTests {
+
+    private static final LocalDate TAKEN_ON = LocalDate.of(2022, 1, 31);
+
+    @Test
+    void testMonthlyInstallments() {
+        List<LoanInstallment> installments = InstallmentSchedule.of(loan("625.00", TAKEN_ON.plusYears(1)), TAKEN_ON);
+
+        assertEquals(12, installments.size());
+        assertEquals(Money.valueOf("625.00"), installments.stream()
+                .map(LoanInstallment::getAmount)
+                .reduce(Money.ZERO, Money::add));
+        assertEquals(Money.valueOf("52.08"), installments.get(0).getAmount());
+        assertEquals(Money.valueOf("52.12"), installments.get(11).getAmount());
+        assertEquals(LocalDate.of(2022, 2, 28), installments.get(0).getDueDate());
+        assertEquals(LocalDate.of(2022, 3, 31), installments.get(1).getDueDate());
+        assertEquals(TAKEN_ON.plusYears(1), installments.get(11).getDueDate());
+        for (int i = 0; i < installments.size(); i++) {
+            assertEquals(i + 1, installments.get(i).getNumber());
+            assertEquals(7, installments.get(i).getLoanId());
+            assertEquals(3, installments.get(i).getUserId());
+            assertEquals("EUR", installments.get(i).getCurrency());
+        }
+    }
+
+    @Test
+    void testSingleInstallment() {
+        List<LoanInstallment> installments = InstallmentSchedule.of(loan("0.01", TAKEN_ON), TAKEN_ON);
+
+        assertEquals(1, installments.size());
+        assertEquals(Money.valueOf("0.01"), installments.get(0).getAmount());
+        assertEquals(TAKEN_ON, installments.get(0).getDueDate());
+    }
+
+    private Loan loan(String repaymentAmount, LocalDate repaymentDate) {
+        User user = new User("example@example.com", "password");
+        user.setId(3);
+        Loan loan = new Loan();
+        loan.setId(7);
+        loan.setUser(user);
+        loan.setCurrency("EUR");
+        loan.setRepaymentAmount(Money.valueOf(repaymentAmount));
+        loan.setRepaymentDate(repaymentDate.atTime(12, 0));
+        return loan;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.report;
+
+import org.junit.jupiter.api.Test;
+import xyz.yawek.banking.model.Money;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExposureHistogramTests {
+
+    @Test
+    void testAddingLoans() {
+        ExposureHistogram histogram = new ExposureHistogram(8, 200);
+        histogram.add(1, 0, 7, 625_00);
+        histogram.add(3, 1, 7, 1250_00);
+        histogram.add(3, 1, 8, 1250_00);
+
+        assertEquals(3, histogram.loans);
+        assertEquals(3125_00, histogram.exposure);
+        assertEquals(2, histogram.getCustomers());
+        assertArrayEquals(new long[] { 0, 1, 0, 2, 0, 0, 0, 0 }, histogram.maturityLoans);
+        assertEquals(2500_00, histogram.maturityExposure[3]);
+        assertEquals(2, histogram.bandLoans[1]);
+
+        int[] top = histogram.topCustomers(1);
+        assertEquals(1, top.length);
+        assertEquals(7, histogram.customerId(top[0]));
+        assertEquals(2, histogram.customerLoans(top[0]));
+        assertEquals(1875_00, histogram.customerExposure(top[0]));
+    }
+
+    @Test
+    void testMergingHistograms() {
+        ExposureHistogram left = new ExposureHistogram(8, 200);
+        ExposureHistogram right = new ExposureHistogram(8, 200);
+        // Enough customers to grow both tables a few times
+        for (long userId = 1; userId <= 1000; userId++) {
+            left.add(0, 0, userId, userId == 1000 ? 10000 : 100);
+            right.add(7, 199, userId + 500, userId);
+        }
+        left.merge(right);
+
+        assertEquals(2000, left.loans);
+        assertEquals(1500, left.getCustomers());
+        assertEquals(1000, left.maturityLoans[0]);
+        assertEquals(1000, left.bandLoans[199]);
+
+        int[] top = left.topCustomers(3);
+        // Customers in both halves have their loans summed
+        assertEquals(1000, left.customerId(top[0]));
+        assertEquals(2, left.customerLoans(top[0]));
+        assertEquals(10500, left.customerExposure(top[0]));
+        assertEquals(1500, left.customerId(top[1]));
+        assertEquals(1, left.customerLoans(top[1]));
+        assertEquals(1000, left.customerExposure(top[1]));
+    }
+
+    @Test
+    void testBuckets() {
+        LocalDate today = LocalDate.of(2024, 3, 1);
+        assertEquals(0, LoanReportService.maturity(today, today.minusDays(1)));
+        assertEquals(1, LoanReportService.maturity(today, today));
+        assertEquals(2, LoanReportService.maturity(today, today.plusYears(1)));
+        assertEquals(3, LoanReportService.maturity(today, today.plusYears(4)));
+        assertEquals(6, LoanReportService.maturity(today, today.plusYears(49)));
+        assertEquals(7, LoanReportService.maturity(today, today.plusYears(50)));
+        assertEquals(7, LoanReportService.maturity(today, today.plusYears(150)));
+
+        assertEquals(0, LoanReportService.band(Money.ofMajorUnits(500).getMinorUnits()));
+        assertEquals(1, LoanReportService.band(Money.valueOf("500.01").getMinorUnits()));
+        assertEquals(1, LoanReportService.band(Money.ofMajorUnits(1000).getMinorUnits()));
+        assertEquals(199, LoanReportService.band(Money.ofMajorUnits(100000).getMinorUnits()));
+        assertEquals(199, LoanReportService.band(Money.ofMajorUnits(250000).getMinorUnits()));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of Banking API, licensed under GNU GPLv3 license.
+ * Copyright (C) 2022 yawek9
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package xyz.yawek.banking.service.velocity;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class VelocityTrackerTests {
+
+    private static final long MINUTE = 60_000;
+
+    private static final VelocityRule COUNT = new VelocityRule(
+            "count", Duration.ofMinutes(1), 3, null);
+    private static final VelocityRule AMOUNT = new VelocityRule(
+            "amount", Duration.ofHours(1), 0, new BigDecimal("100.00"));
+
+    @Test
+    void testLimits() {
+        VelocityTracker tracker = new VelocityTracker();
+        tracker.setRules(new VelocityRules(List.of(COUNT, AMOUNT), 10));
+
+        assertNull(tracker.record(1, 10_00, 0));
+        assertNull(tracker.record(1, 10_00, 1000));
+        assertNull(tracker.record(1, 10_00, 2000));
+        assertEquals(COUNT, tracker.record(1, 10_00, 3000));
+        // Other accounts are counted separately
+        assertNull(tracker.record(2, 10_00, 3000));
+
+        // Rejected payment was not counted, so only the count window has to pass
+        assertNull(tracker.record(1, 70_00, MINUTE));
+        assertEquals(AMOUNT, tracker.record(1, 1, MINUTE + 1000));
+        assertEquals(AMOUNT, tracker.record(2, 90_01, MINUTE));
+        assertNull(tracker.record(2, 90_00, MINUTE));
+
+        // Whole value slides out of the hour window
+        assertNull(tracker.record(1, 100_00, 61 * MINUTE));
+    }
+
+    @Test
+    void testReload() {
+        VelocityTracker tracker = new VelocityTracker();
+        tracker.setRules(new VelocityRules(List.of(COUNT), 10));
+        assertNull(tracker.record(1, 1, 0));
+        assertNull(tracker.record(1, 1, 0));
+
+        // Same window, counters are kept
+        tracker.setRules(new VelocityRules(List.of(
+                new VelocityRule("stricter", Duration.ofMinutes(1), 2, null)), 10));
+        assertEquals("stricter", tracker.record(1, 1, 1000).getName());
+
+        // Different window, counting starts again
+        tracker.setRules(new VelocityRules(List.of(
+                new VelocityRule("longer", Duration.ofMinutes(2), 2, null)), 10));
+        assertNull(tracker.record(1, 1, 1000));
+
+        tracker.setRules(VelocityRules.NONE);
+        assertNull(tracker.record(1, Long.MAX_VALUE, 1000));
+    }
+
+    @Test
+    void testEviction() {
+        VelocityTracker tracker = new VelocityTracker();
+        tracker.setRules(new VelocityRules(List.of(COUNT, AMOUNT), 10));
+        for (long account = 0; account < 10; account++)
+            tracker.record(account, 1, account * MINUTE);
+        assertEquals(10, tracker.getAccounts());
+
+        assertEquals(1, tracker.evict(60 * MINUTE, 100));
+        assertEquals(4, tracker.evict(60 * MINUTE, 5));
+        assertEquals(5, tracker.getAccounts());
+        // The most recent account is kept with its counters
+        assertEquals(AMOUNT, tracker.record(9, 100_00, 60 * MINUTE));
+    }
+
+    @Test
+    void testRemoving() {
+        VelocityTracker tracker = new VelocityTracker();
+        tracker.setRules(new VelocityRules(List.of(COUNT, AMOUNT), 10));
+
+        assertNull(tracker.record(1, 60_00, 0));
+        assertNull(tracker.record(1, 40_00, 1000));
+        assertEquals(AMOUNT, tracker.record(1, 1, 2000));
+        // Failed payment no longer counts towards the limits
+        tracker.remove(1, 40_00, 1000);
+        assertNull(tracker.record(1, 40_00, 3000));
+
+        // Bucket which moved to a later epoch is not changed
+        assertNull(tracker.record(1, 100_00, 61 * MINUTE));
+        tracker.remove(1, 100_00, 0);
+        assertEquals(AMOUNT, tracker.record(1, 1, 61 * MINUTE));
+    }
+
+    @Test
+    void testInvalidRules() {
+        assertThrows(IllegalArgumentException.class, () -> new VelocityRules(List.of(
+                new VelocityRule("none", Duration.ofMinutes(1), 0, null)), 10));
+        assertThrows(IllegalArgumentException.class, () -> new VelocityRules(List.of(
+                new VelocityRule("short", Duration.ofMillis(5), 1, null)), 10));
+        assertThrows(IllegalArgumentException.class, () -> new VelocityRules(List.of(
+                new VelocityRule("negative", Duration.ofMinutes(1), 0, new BigDecimal("-1"))), 10));
+        assertThrows(IllegalArgumentException.class, () -> new VelocityRules(List.of(
+                new VelocityRule(null, Duration.ofMinutes(1), 1, null)), 10));
+    }
+
+}